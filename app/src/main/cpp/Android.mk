@@ -1,8 +1,17 @@
 LOCAL_PATH := $(call my-dir)
+
+# CAUTION: BONANZA_ENGINE_SLOTS must count up to BonanzaJNI.MAX_ENGINES - 1.
+BONANZA_ENGINE_SLOTS := 0 1 2
+
+# The native methods of BonanzaJNI. They forward each call to one of the
+# engines below.
 include $(CLEAR_VARS)
 LOCAL_MODULE := bonanza-jni
-LOCAL_LDLIBS := -llog
-LOCAL_SRC_FILES := \
+LOCAL_SRC_FILES := bonanza_jni.c
+LOCAL_CFLAGS := -std=gnu99 -DBONANZA_MAX_ENGINES=$(words $(BONANZA_ENGINE_SLOTS)) -O3
+include $(BUILD_SHARED_LIBRARY)
+
+BONANZA_SRC_FILES := \
  shogi_jni.c \
  data.c io.c proce.c utility.c ini.c attack.c book.c makemove.c \
  unmake.c time.c csa.c valid.c bitop.c iterate.c searchr.c search.c \
@@ -23,6 +32,20 @@ LOCAL_SRC_FILES := \
 # -DCSA_LAN         enables bonanza to talk CSA Shogi TCP/IP protcol.
 # -DNO_LOGGING      suppresses dumping log files.
 
-LOCAL_CFLAGS := -DMINIMUM -DNDEBUG -std=gnu99 -DNO_LOGGING -DANDROID -DNO_STDOUT -DTLP -DTLP_MAX_THREADS=8 -O3
+BONANZA_CFLAGS := -DMINIMUM -DNDEBUG -std=gnu99 -DNO_LOGGING -DANDROID -DNO_STDOUT -DTLP -DTLP_MAX_THREADS=8 -DMPV -O3
 
-include $(BUILD_SHARED_LIBRARY)
+# One copy of Bonanza per engine slot, libbonanza-engine<slot>.so. Bonanza
+# keeps its state in globals, so each engine needs its own copy of them.
+# -fvisibility=hidden keeps a copy from binding to the globals of another.
+define bonanza-engine
+include $$(CLEAR_VARS)
+LOCAL_MODULE := bonanza-engine$(1)
+LOCAL_LDLIBS := -llog
+LOCAL_SRC_FILES := $$(BONANZA_SRC_FILES)
+LOCAL_CFLAGS := $$(BONANZA_CFLAGS) -fvisibility=hidden \
+  -DBONANZA_ENGINE_SLOT=$(1) -DBONANZA_MAX_ENGINES=$(words $(BONANZA_ENGINE_SLOTS))
+LOCAL_SHARED_LIBRARIES := bonanza-jni
+include $$(BUILD_SHARED_LIBRARY)
+endef
+
+$(foreach slot,$(BONANZA_ENGINE_SLOTS),$(eval $(call bonanza-engine,$(slot))))
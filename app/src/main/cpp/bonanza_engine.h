@@ -0,0 +1,61 @@
+#ifndef BONANZA_ENGINE_H
+#define BONANZA_ENGINE_H
+
+#include <jni.h>
+
+// Bonanza keeps all of its state (search trees, transposition table, time
+// control, game record) in globals. To run several engines in one process,
+// Android.mk builds the engine as BONANZA_MAX_ENGINES copies,
+// libbonanza-engine<slot>.so, each compiled with -fvisibility=hidden so
+// that it only sees its own globals.
+//
+// libbonanza-jni.so (bonanza_jni.c) owns the BonanzaJNI native methods.
+// Each takes an engine handle, which is the slot of the engine, and
+// forwards the call to the functions below. An engine library registers
+// them from its JNI_OnLoad, i.e., when BonanzaJNI loads it.
+//
+// CAUTION: BONANZA_MAX_ENGINES must match BonanzaJNI.MAX_ENGINES and the
+// slots listed in Android.mk.
+#ifndef BONANZA_MAX_ENGINES
+#define BONANZA_MAX_ENGINES 3
+#endif
+
+// See BonanzaJNI.java for the description of each function.
+struct bonanza_engine {
+    void (*initialize)(JNIEnv *env, jstring storage_dir);
+    jint (*start_game)(JNIEnv *env,
+                       jint resume_instance_id,
+                       jobject initial_board,
+                       jint next_turn,
+                       jint difficulty,
+                       jint num_cores,
+                       jint total_think_time_secs,
+                       jint per_turn_think_time_secs,
+                       jint hash_mb,
+                       jobject result);
+    void (*reset_time)(JNIEnv *env, jint btime, jint wtime);
+    void (*human_move)(JNIEnv *env, jint instance_id, jstring move_str,
+                       jobject result);
+    void (*computer_move)(JNIEnv *env, jint instance_id, jint time_ms,
+                          jlong max_nodes, jint token, jobject result);
+    void (*undo)(JNIEnv *env, jint instance_id,
+                 jint undo_cookie1, jint undo_cookie2, jobject result);
+    void (*abort)(JNIEnv *env);
+    void (*move_now)(JNIEnv *env, jint token);
+    void (*set_pondering)(JNIEnv *env, jboolean enable);
+    void (*stop_pondering)(JNIEnv *env);
+    void (*get_ponder_stats)(JNIEnv *env, jlongArray stats);
+    void (*get_hash_stats)(JNIEnv *env, jlongArray stats);
+    void (*get_book_stats)(JNIEnv *env, jlongArray stats);
+    void (*get_stats)(JNIEnv *env, jlongArray stats);
+    void (*benchmark_fill)(JNIEnv *env, jint mode, jobject result);
+    void (*analyze)(JNIEnv *env, jobject board, jint next_turn,
+                    jint num_threads, jint time_ms, jlong max_nodes,
+                    jint token, jobject result);
+    jint (*bench)(JNIEnv *env, jint depth, jint num_threads, jlongArray stats);
+};
+
+// Defined in libbonanza-jni.so.
+JNIEXPORT void bonanza_register_engine(int slot, const struct bonanza_engine *engine);
+
+#endif  // BONANZA_ENGINE_H
@@ -0,0 +1,220 @@
+#include <jni.h>
+#include <stddef.h>
+
+#include "bonanza_engine.h"
+
+// Native methods of BonanzaJNI. Each one forwards the call to the engine
+// named by its handle; see bonanza_engine.h.
+
+static const struct bonanza_engine *volatile g_engines[BONANZA_MAX_ENGINES];
+
+void bonanza_register_engine(int slot, const struct bonanza_engine *engine) {
+    if (slot >= 0 && slot < BONANZA_MAX_ENGINES) {
+        g_engines[slot] = engine;
+    }
+}
+
+// Returns the engine for "handle", or throws IllegalStateException and
+// returns NULL if its library is not loaded.
+static const struct bonanza_engine *Engine(JNIEnv *env, jlong handle) {
+    const struct bonanza_engine *engine = NULL;
+    if (handle >= 0 && handle < BONANZA_MAX_ENGINES) {
+        engine = g_engines[handle];
+    }
+    if (engine == NULL) {
+        jclass cls = (*env)->FindClass(env, "java/lang/IllegalStateException");
+        if (cls != NULL) (*env)->ThrowNew(env, cls, "No such engine");
+    }
+    return engine;
+}
+
+void Java_mobi_omegacentauri_shogi_BonanzaJNI_initializeEngine(
+        JNIEnv *env,
+        jclass unused_bonanza_class,
+        jlong handle,
+        jstring storage_dir) {
+    const struct bonanza_engine *engine = Engine(env, handle);
+    if (engine != NULL) engine->initialize(env, storage_dir);
+}
+
+jint Java_mobi_omegacentauri_shogi_BonanzaJNI_startGame(
+        JNIEnv *env,
+        jclass unused_bonanza_class,
+        jlong handle,
+        jint resume_instance_id,
+        jobject initial_board,
+        jint next_turn,  // 0: black 1: white
+        jint difficulty,
+        jint num_cores,
+        jint total_think_time_secs,
+        jint per_turn_think_time_secs,
+        jint hash_mb,
+        jobject result) {
+    const struct bonanza_engine *engine = Engine(env, handle);
+    if (engine == NULL) return -1;
+    return engine->start_game(env, resume_instance_id, initial_board,
+                              next_turn, difficulty, num_cores,
+                              total_think_time_secs, per_turn_think_time_secs,
+                              hash_mb, result);
+}
+
+void Java_mobi_omegacentauri_shogi_BonanzaJNI_resetTime(
+        JNIEnv *env,
+        jclass unused_bonanza_class,
+        jlong handle,
+        jint btime,
+        jint wtime) {
+    const struct bonanza_engine *engine = Engine(env, handle);
+    if (engine != NULL) engine->reset_time(env, btime, wtime);
+}
+
+void Java_mobi_omegacentauri_shogi_BonanzaJNI_humanMove(
+        JNIEnv *env,
+        jclass unused_bonanza_class,
+        jlong handle,
+        jint instance_id,
+        jstring move_str,
+        jobject result) {
+    const struct bonanza_engine *engine = Engine(env, handle);
+    if (engine != NULL) engine->human_move(env, instance_id, move_str, result);
+}
+
+void Java_mobi_omegacentauri_shogi_BonanzaJNI_computerMove(
+        JNIEnv *env,
+        jclass unused_bonanza_class,
+        jlong handle,
+        jint instance_id,
+        jint time_ms,
+        jlong max_nodes,
+        jint token,
+        jobject result) {
+    const struct bonanza_engine *engine = Engine(env, handle);
+    if (engine != NULL) {
+        engine->computer_move(env, instance_id, time_ms, max_nodes, token,
+                              result);
+    }
+}
+
+void Java_mobi_omegacentauri_shogi_BonanzaJNI_undo(
+        JNIEnv *env,
+        jclass unused_bonanza_class,
+        jlong handle,
+        jint instance_id,
+        jint undo_cookie1,
+        jint undo_cookie2,
+        jobject result) {
+    const struct bonanza_engine *engine = Engine(env, handle);
+    if (engine != NULL) {
+        engine->undo(env, instance_id, undo_cookie1, undo_cookie2, result);
+    }
+}
+
+void Java_mobi_omegacentauri_shogi_BonanzaJNI_abort(
+        JNIEnv *env,
+        jclass unused_bonanza_class,
+        jlong handle) {
+    const struct bonanza_engine *engine = Engine(env, handle);
+    if (engine != NULL) engine->abort(env);
+}
+
+void Java_mobi_omegacentauri_shogi_BonanzaJNI_moveNow(
+        JNIEnv *env,
+        jclass unused_bonanza_class,
+        jlong handle,
+        jint token) {
+    const struct bonanza_engine *engine = Engine(env, handle);
+    if (engine != NULL) engine->move_now(env, token);
+}
+
+void Java_mobi_omegacentauri_shogi_BonanzaJNI_setPondering(
+        JNIEnv *env,
+        jclass unused_bonanza_class,
+        jlong handle,
+        jboolean enable) {
+    const struct bonanza_engine *engine = Engine(env, handle);
+    if (engine != NULL) engine->set_pondering(env, enable);
+}
+
+void Java_mobi_omegacentauri_shogi_BonanzaJNI_stopPondering(
+        JNIEnv *env,
+        jclass unused_bonanza_class,
+        jlong handle) {
+    const struct bonanza_engine *engine = Engine(env, handle);
+    if (engine != NULL) engine->stop_pondering(env);
+}
+
+void Java_mobi_omegacentauri_shogi_BonanzaJNI_getPonderStats(
+        JNIEnv *env,
+        jclass unused_bonanza_class,
+        jlong handle,
+        jlongArray stats) {
+    const struct bonanza_engine *engine = Engine(env, handle);
+    if (engine != NULL) engine->get_ponder_stats(env, stats);
+}
+
+void Java_mobi_omegacentauri_shogi_BonanzaJNI_getHashStats(
+        JNIEnv *env,
+        jclass unused_bonanza_class,
+        jlong handle,
+        jlongArray stats) {
+    const struct bonanza_engine *engine = Engine(env, handle);
+    if (engine != NULL) engine->get_hash_stats(env, stats);
+}
+
+void Java_mobi_omegacentauri_shogi_BonanzaJNI_getBookStats(
+        JNIEnv *env,
+        jclass unused_bonanza_class,
+        jlong handle,
+        jlongArray stats) {
+    const struct bonanza_engine *engine = Engine(env, handle);
+    if (engine != NULL) engine->get_book_stats(env, stats);
+}
+
+void Java_mobi_omegacentauri_shogi_BonanzaJNI_getStats(
+        JNIEnv *env,
+        jclass unused_bonanza_class,
+        jlong handle,
+        jlongArray stats) {
+    const struct bonanza_engine *engine = Engine(env, handle);
+    if (engine != NULL) engine->get_stats(env, stats);
+}
+
+void Java_mobi_omegacentauri_shogi_BonanzaJNI_benchmarkFill(
+        JNIEnv *env,
+        jclass unused_bonanza_class,
+        jlong handle,
+        jint mode,
+        jobject result) {
+    const struct bonanza_engine *engine = Engine(env, handle);
+    if (engine != NULL) engine->benchmark_fill(env, mode, result);
+}
+
+void Java_mobi_omegacentauri_shogi_BonanzaJNI_analyze(
+        JNIEnv *env,
+        jclass unused_bonanza_class,
+        jlong handle,
+        jobject board,
+        jint next_turn,  // 0: black 1: white
+        jint num_threads,
+        jint time_ms,
+        jlong max_nodes,
+        jint token,
+        jobject result) {
+    const struct bonanza_engine *engine = Engine(env, handle);
+    if (engine != NULL) {
+        engine->analyze(env, board, next_turn, num_threads, time_ms,
+                        max_nodes, token, result);
+    }
+}
+
+jint Java_mobi_omegacentauri_shogi_BonanzaJNI_bench(
+        JNIEnv *env,
+        jclass unused_bonanza_class,
+        jlong handle,
+        jint depth,
+        jint num_threads,
+        jlongArray stats) {
+    const struct bonanza_engine *engine = Engine(env, handle);
+    if (engine == NULL) return -1;
+    return engine->bench(env, depth, num_threads, stats);
+}
@@ -5,6 +5,7 @@
 #include <limits.h>
 #include <float.h>
 #include "shogi.h"
+#include "shogi_jni.h"
 
 /*
   Opening Book Data Structure: Index BookData
@@ -48,6 +49,10 @@ typedef struct { unsigned short smove, freq; } book_move_t;
 
 typedef struct { int from, to; } ft_t;
 
+typedef struct { unsigned int position, size; } book_index_t;
+
+static int CONV book_load( void );
+static void CONV book_unload( void );
 static int CONV book_read( uint64_t key, book_move_t *pbook_move,
 		      unsigned int *pposition );
 static uint64_t CONV book_hash_func( const tree_t * restrict ptree,
@@ -58,6 +63,15 @@ static ft_t CONV flip_ft( ft_t ft, int turn, int is_flip );
 static int CONV normalize_book_move( book_move_t * restrict pbook_move,
 				     int moves );
 
+/*
+  book.bin is small (about 400KB), so book_on() reads all of it at once
+  and book_read() looks positions up in memory. book_index[] holds the
+  IndexEntry of each section, checked against the size of the file.
+*/
+static unsigned char *book_image      = NULL;
+static unsigned int   book_image_size = 0;
+static book_index_t   book_index[ NUM_SECTION ];
+
 
 int CONV
 book_on( void )
@@ -68,6 +82,14 @@ book_on( void )
   pf_book = file_open( str_book, "rb+" );
   if ( pf_book == NULL ) { return -2; }
 
+  iret = book_load();
+  if ( iret < 0 )
+    {
+      file_close( pf_book );
+      pf_book = NULL;
+      return iret;
+    }
+
   return 1;
 }
 
@@ -79,24 +101,109 @@ book_off( void )
   if ( iret < 0 ) { return iret; }
 
   pf_book = NULL;
+  book_unload();
 
   return 1;
 }
 
 
+static int CONV
+book_load( void )
+{
+  const unsigned char *p;
+  unsigned int elapsed_start, elapsed_end, position, size_section;
+  unsigned short s;
+  long size;
+  int i;
+
+  if ( get_elapsed( &elapsed_start ) < 0 ) { return -1; }
+
+  book_unload();
+  if ( fseek( pf_book, 0, SEEK_END ) == EOF
+       || ( size = ftell( pf_book ) ) < 0
+       || fseek( pf_book, 0, SEEK_SET ) == EOF )
+    {
+      str_error = str_io_error;
+      return -2;
+    }
+  if ( size < BK_SIZE_INDEX * NUM_SECTION )
+    {
+      str_error = str_book_error;
+      return -2;
+    }
+
+  book_image = memory_alloc( (size_t)size );
+  if ( book_image == NULL ) { return -2; }
+
+  if ( fread( book_image, 1, (size_t)size, pf_book ) != (size_t)size )
+    {
+      book_unload();
+      str_error = str_io_error;
+      return -2;
+    }
+  book_image_size = (unsigned int)size;
+
+  for ( i = 0; i < NUM_SECTION; i++ )
+    {
+      p = book_image + BK_SIZE_INDEX * i;
+      memcpy( &position, p, sizeof(unsigned int) );
+      memcpy( &s, p + sizeof(unsigned int), sizeof(unsigned short) );
+      size_section = (unsigned int)s;
+      if ( size_section > MAX_SIZE_SECTION
+	   || position > book_image_size
+	   || size_section > book_image_size - position )
+	{
+	  book_unload();
+	  str_error = str_book_error;
+	  return -2;
+	}
+      book_index[i].position = position;
+      book_index[i].size     = size_section;
+    }
+
+  book_nprobe     = 0;
+  book_nhit       = 0;
+  book_usec_total = 0;
+  book_usec_max   = 0;
+
+  if ( get_elapsed( &elapsed_end ) < 0 ) { return -1; }
+  LOG_DEBUG( "%s read in %ums, %u bytes", str_book,
+	     elapsed_end - elapsed_start, book_image_size );
+
+  return 1;
+}
+
+
+static void CONV
+book_unload( void )
+{
+  if ( book_image == NULL ) { return; }
+
+  memory_free( book_image );
+  book_image      = NULL;
+  book_image_size = 0;
+}
+
+
 int CONV
 book_probe( tree_t * restrict ptree )
 {
   book_move_t abook_move[ BK_MAX_MOVE+1 ];
   uint64_t key;
   double dscore, drand;
-  unsigned int move, position, freq_lower_limit;
+  unsigned int move, position, freq_lower_limit, usec;
   int is_flip, i, j, moves, ply;
 
+  usec  = get_elapsed_usec();
   key   = book_hash_func( ptree, &is_flip );
-
   moves = book_read( key, abook_move, &position );
+  usec  = get_elapsed_usec() - usec;
+
+  book_nprobe     += 1U;
+  book_usec_total += usec;
+  if ( book_usec_max < usec ) { book_usec_max = usec; }
   if ( moves <= 0 ) { return moves; }
+  book_nhit       += 1U;
 
 #if ! defined(MINIMUM) || ! defined(NDEBUG)
   for ( j = i = 0; i < moves; i++ ) { j += abook_move[i].freq; }
@@ -176,66 +283,43 @@ static int CONV
 book_read( uint64_t key, book_move_t *pbook_move, unsigned int *pposition )
 {
   uint64_t book_key;
-  const unsigned char *p;
-  unsigned int position, size_section, size, u;
+  const unsigned char *p, *section_end;
+  unsigned int size, u;
   int ibook_section, moves;
-  unsigned short s;
 
   ibook_section = (int)( (unsigned int)key & (unsigned int)( NUM_SECTION-1 ) );
 
-  if ( fseek( pf_book, BK_SIZE_INDEX*ibook_section, SEEK_SET ) == EOF )
-    {
-      str_error = str_io_error;
-      return -2;
-    }
-  
-  if ( fread( &position, sizeof(int), 1, pf_book ) != 1 )
-    {
-      str_error = str_io_error;
-      return -2;
-    }
-  
-  if ( fread( &s, sizeof(unsigned short), 1, pf_book ) != 1 )
-    {
-      str_error = str_io_error;
-      return -2;
-    }
-  size_section = (unsigned int)s;
-  if ( size_section > MAX_SIZE_SECTION )
+  if ( book_image == NULL )
     {
       str_error = str_book_error;
       return -2;
     }
 
-  if ( fseek( pf_book, (long)position, SEEK_SET ) == EOF )
+  size        = 0;
+  p           = book_image + book_index[ibook_section].position;
+  section_end = p + book_index[ibook_section].size;
+  *pposition  = book_index[ibook_section].position;
+  while ( section_end > p )
     {
-      str_error = str_io_error;
-      return -2;
-    }
-  if ( fread( book_section, sizeof(unsigned char), (size_t)size_section,
-	      pf_book ) != (size_t)size_section )
-    {
-      str_error = str_io_error;
-      return -2;
-    }
-  
-  size       = 0;
-  p          = book_section;
-  *pposition = position;
-  while ( book_section + size_section > p )
-    {
-      size     = (unsigned int)p[0];
-      book_key = *(uint64_t *)( p + 1 );
+      size = (unsigned int)p[0];
+      if ( size < BK_SIZE_HEADER
+	   || size > BK_SIZE_HEADER + BK_SIZE_MOVE * BK_MAX_MOVE
+	   || size > (unsigned int)( section_end - p ) )
+	{
+	  str_error = str_book_error;
+	  return -2;
+	}
+      memcpy( &book_key, p + 1, sizeof(uint64_t) );
       if ( book_key == key ) { break; }
       p          += size;
       *pposition += size;
     }
-  if ( book_section + size_section <= p ) { return 0; }
+  if ( section_end <= p ) { return 0; }
 
   for ( moves = 0, u = BK_SIZE_HEADER; u < size; moves++, u += BK_SIZE_MOVE )
     {
-      pbook_move[moves].smove  = *(unsigned short *)(p+u+0);
-      pbook_move[moves].freq   = *(unsigned short *)(p+u+2);
+      memcpy( &pbook_move[moves].smove, p+u+0, sizeof(unsigned short) );
+      memcpy( &pbook_move[moves].freq,  p+u+2, sizeof(unsigned short) );
     }
 
   return moves;
@@ -649,6 +733,7 @@ read_anti_book( tree_t * restrict ptree, record_t * pr )
 	  str_error = str_io_error;
 	  return -2;
 	}
+      memcpy( book_image + position + BK_SIZE_HEADER, book_section, size );
       
       out_board( ptree, stdout, 0, 0 );
       printf( "%s is discarded\n\n", str_CSA_move(move) );
@@ -3,6 +3,10 @@
 #include "shogi.h"
 
 FILE *pf_book;
+unsigned int book_nprobe;
+unsigned int book_nhit;
+unsigned int book_usec_total;
+unsigned int book_usec_max;
 uint64_t ehash_tbl[ EHASH_MASK + 1 ];
 trans_table_t *ptrans_table_orig;
 SHARE trans_table_t *ptrans_table;
@@ -93,6 +97,11 @@ unsigned int time_start;
 unsigned int time_turn_start;
 unsigned int time_limit;
 unsigned int time_max_limit;
+unsigned int time_iter_move;
+int time_iter_value;
+int time_nstable;
+int time_nunstable;
+int time_book_hit;
 unsigned int time_last_search;
 unsigned int time_response;
 unsigned int ponder_move;
@@ -136,8 +145,8 @@ int alast_root_value_save[NUM_UNMAKE];
 int p_value_ex[31];
 int p_value_pm[15];
 int p_value[31];
-short pc_on_sq[nsquare][pos_n];
-short kkp[nsquare][nsquare][kkp_end];
+short (*pc_on_sq)[pos_n];
+short (*kkp)[nsquare][kkp_end];
 unsigned char ansuc_check_save[NUM_UNMAKE];
 unsigned char book_section[ MAX_SIZE_SECTION+1 ];
 unsigned char adirec[ nsquare ][ nsquare ];
@@ -195,6 +204,9 @@ int tlp_max;
 int tlp_nsplit;
 int tlp_nabort;
 int tlp_nslot;
+unsigned int tlp_nsplit_thread[ TLP_MAX_THREADS ];
+unsigned int tlp_usec_busy[ TLP_MAX_THREADS ];
+unsigned int tlp_usec_wait[ TLP_MAX_THREADS ];
 #else
 tree_t tree;
 #endif
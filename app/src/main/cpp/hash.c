@@ -23,7 +23,7 @@ ini_trans_table( void )
 				    & ~(ptrdiff_t)15U );
   hash_mask    = ntrans_table - 1;
   Out( "Trans. Table Entries = %dK (%dMB)\n",
-       ( ntrans_table * 3U ) / 1024U, size / (1024U * 1024U ) );
+       ( ntrans_table * 3U ) / 1024U, (int)( size / (1024U * 1024U ) ) );
 
   return clear_trans_table();
 }
@@ -86,7 +86,7 @@ word2  key      57      7
  */
 
 void CONV
-hash_store( const tree_t * restrict ptree, int ply, int depth, int turn,
+hash_store( tree_t * restrict ptree, int ply, int depth, int turn,
 	    int value_type, int value, unsigned int move,
 	    unsigned int state_node )
 {
@@ -130,11 +130,21 @@ hash_store( const tree_t * restrict ptree, int ply, int depth, int turn,
 
   if ( age_hash != trans_table_age || depth_hash <= depth )
     {
+      /* count the entries of this search that give way to another key */
+      if ( age_hash == trans_table_age
+	   && ( hash_word2 & ~(uint64_t)0x7fU )
+	      != ( HASH_KEY & ~(uint64_t)0x7fU ) ) { ptree->ntrans_overwrite++; }
       ptrans_table[index].prefer.word1 = word1;
       ptrans_table[index].prefer.word2 = word2;
     }
   else {
     slot = (unsigned int)HASH_KEY >> 31;
+    hash_word1 = ptrans_table[index].always[slot].word1;
+    hash_word2 = ptrans_table[index].always[slot].word2;
+    SignKey( hash_word2, hash_word1 );
+    if ( ( (unsigned int)hash_word2 & 0x07U ) == (unsigned int)trans_table_age
+	 && ( hash_word2 & ~(uint64_t)0x7fU )
+	    != ( HASH_KEY & ~(uint64_t)0x7fU ) ) { ptree->ntrans_overwrite++; }
     ptrans_table[index].always[slot].word1 = word1;
     ptrans_table[index].always[slot].word2 = word2;
   }
@@ -0,0 +1,18 @@
+#ifndef HOST_ANDROID_LOG_H
+#define HOST_ANDROID_LOG_H
+
+// The part of the NDK's <android/log.h> that the JNI code uses, for host
+// builds. See android_log.c.
+
+#include <stdarg.h>
+
+#define ANDROID_LOG_DEBUG 3
+#define ANDROID_LOG_INFO 4
+#define ANDROID_LOG_WARN 5
+#define ANDROID_LOG_ERROR 6
+#define ANDROID_LOG_FATAL 7
+
+int __android_log_print(int prio, const char *tag, const char *fmt, ...);
+int __android_log_vprint(int prio, const char *tag, const char *fmt, va_list ap);
+
+#endif  // HOST_ANDROID_LOG_H
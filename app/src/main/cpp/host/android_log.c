@@ -0,0 +1,23 @@
+#include <stdio.h>
+#include <stdlib.h>
+
+#include "android/log.h"
+
+// Host stand-in for liblog. Writes warnings and worse to stderr, and debug
+// messages too if BONANZA_LOG_DEBUG is set in the environment.
+
+int __android_log_vprint(int prio, const char *tag, const char *fmt, va_list ap) {
+    if (prio < ANDROID_LOG_WARN && getenv("BONANZA_LOG_DEBUG") == NULL) return 0;
+    fprintf(stderr, "%s: ", tag);
+    vfprintf(stderr, fmt, ap);
+    fputc('\n', stderr);
+    return 1;
+}
+
+int __android_log_print(int prio, const char *tag, const char *fmt, ...) {
+    va_list ap;
+    va_start(ap, fmt);
+    int r = __android_log_vprint(prio, tag, fmt, ap);
+    va_end(ap);
+    return r;
+}
@@ -5,6 +5,19 @@
 #  include <unistd.h>
 #endif
 #include "shogi.h"
+#include "shogi_jni.h"
+
+/*
+  The evaluation tables are only read unless Bonanza learns, so they can
+  be mapped from fv.bin instead of copied. The pages then stay clean, and
+  they are shared with every other mapping of the file, e.g., the other
+  engine slots.
+*/
+#if ! defined(_WIN32) && defined(MINIMUM) && ! defined(MNJ_LAN)
+#  define FV_MMAP
+#  include <sys/mman.h>
+#  include <sys/stat.h>
+#endif
 
 #if   defined(_MSC_VER)
 #elif defined(__GNUC__) && ( defined(__i386__) || defined(__x86_64__) )
@@ -21,34 +34,78 @@ static void ini_is_same( void );
 static void ini_tables( void );
 static void ini_attack_tables( void );
 static void ini_random_table( void );
+static void unload_fv( void );
+
+/* pc_on_sq and kkp point into this block of fv_size bytes. */
+static short *fv_base   = NULL;
+static size_t fv_size   = 0;
+static int    fv_mapped = 0;
 
 
 int CONV load_fv( void )
 {
   FILE *pf;
-  size_t size;
+  short *p;
+  size_t size_pc_on_sq, size_kkp, size;
+  unsigned int elapsed_start, elapsed_end;
   int iret;
 
+  if ( get_elapsed( &elapsed_start ) < 0 ) { return -1; }
+
   pf = file_open( str_fv, "rb" );
   if ( pf == NULL ) { return -2; }
 
-  size = nsquare * pos_n;
-  if ( fread( pc_on_sq, sizeof(short), size, pf ) != size )
-    {
-      str_error = str_io_error;
-      return -2;
-    }
+  unload_fv();
+  size_pc_on_sq = nsquare * pos_n;
+  size_kkp      = nsquare * nsquare * kkp_end;
+  size          = ( size_pc_on_sq + size_kkp ) * sizeof(short);
+  p             = NULL;
+
+#if defined(FV_MMAP)
+  {
+    struct stat st;
 
-  size = nsquare * nsquare * kkp_end;
-  if ( fread( kkp, sizeof(short), size, pf ) != size )
+    /* a short file would fault on access, so it takes the read path and
+       fails there. */
+    if ( fstat( fileno( pf ), &st ) == 0 && (size_t)st.st_size >= size )
+      {
+	p = mmap( NULL, size, PROT_READ, MAP_SHARED, fileno( pf ), 0 );
+	if ( p == MAP_FAILED ) { p = NULL; }
+	else                   { fv_mapped = 1; }
+      }
+  }
+#endif
+
+  if ( p == NULL )
     {
-      str_error = str_io_error;
-      return -2;
+      p = memory_alloc( size );
+      if ( p == NULL )
+	{
+	  file_close( pf );
+	  return -2;
+	}
+      if ( fread( p, sizeof(short), size_pc_on_sq + size_kkp, pf )
+	   != size_pc_on_sq + size_kkp )
+	{
+	  memory_free( p );
+	  file_close( pf );
+	  str_error = str_io_error;
+	  return -2;
+	}
     }
 
+  fv_base  = p;
+  fv_size  = size;
+  pc_on_sq = (short (*)[pos_n])p;
+  kkp      = (short (*)[nsquare][kkp_end])( p + size_pc_on_sq );
+
   iret = file_close( pf );
   if ( iret < 0 ) { return iret; }
 
+  if ( get_elapsed( &elapsed_end ) < 0 ) { return -1; }
+  LOG_DEBUG( "%s %s in %ums", str_fv, fv_mapped ? "mapped" : "read",
+	     elapsed_end - elapsed_start );
+
 #if 0
 #  define X0 -10000
 #  define X1 +10000
@@ -82,6 +139,24 @@ int CONV load_fv( void )
 }
 
 
+static void unload_fv( void )
+{
+  if ( fv_base == NULL ) { return; }
+
+#if defined(FV_MMAP)
+  if ( fv_mapped ) { munmap( fv_base, fv_size ); }
+  else
+#endif
+    { memory_free( fv_base ); }
+
+  fv_base   = NULL;
+  fv_size   = 0;
+  fv_mapped = 0;
+  pc_on_sq  = NULL;
+  kkp       = NULL;
+}
+
+
 int
 ini( tree_t * restrict ptree )
 {
@@ -288,6 +363,7 @@ fin( void )
 #endif
 
   memory_free( (void *)ptrans_table_orig );
+  unload_fv();
 
 #if defined(TLP) || defined(DFPN_CLIENT)
   if ( lock_free( &io_lock ) < 0 ) { return -1; }
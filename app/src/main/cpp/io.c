@@ -252,7 +252,6 @@ int
 open_history( const char *str_name1, const char *str_name2 )
 {
 #if defined(NO_LOGGING)
-  char str_file[SIZE_FILENAME];
   int iret;
 
   iret = record_close( &record_game );
@@ -344,10 +343,6 @@ out_board( const tree_t * restrict ptree, FILE *pf, unsigned int move,
 {
   int irank, ifile, i, iret, ito, ifrom;
 
-#if ! defined(WIN32_PIPE)
-  int is_promote;
-#endif
-
   if ( game_status & flag_nostdout ) { return 1; }
 
   if ( ! is_strict && move )
@@ -640,8 +635,10 @@ out_hand0( FILE *pf, int n, const char *str_prefix, const char *str )
 
   if ( n > 0 )
     {
+#if defined(__clang__)
 #pragma clang diagnostic ignored "-Wformat-security"
 #pragma clang diagnostic ignored "-Wformat"
+#endif
       fprintf( pf, str_prefix );
       for ( i = 0; i < n; i++ ) { fprintf( pf, str ); }
       fprintf( pf, "\n" );
@@ -42,6 +42,7 @@ iterate( tree_t * restrict ptree )
 	  pv_close( ptree, 2, book_hit );
 	  last_pv         = ptree->pv[1];
 	  last_root_value = 0;
+	  time_book_hit   = 1;
 	  if ( ! ( game_status & flag_puzzling ) )
 	    {
 	      for ( i = 0; i < (int)HIST_SIZE; i++ )
@@ -126,6 +127,9 @@ iterate( tree_t * restrict ptree )
   ptree->ntrans_upper          =  0;
   ptree->ntrans_superior_hit   =  0;
   ptree->ntrans_inferior_hit   =  0;
+  ptree->ntrans_overwrite      =  0;
+  ptree->nmate1ply_called      =  0;
+  ptree->nmate3_called         =  0;
   ptree->fail_high             =  0;
   ptree->fail_high_first       =  0;
   ptree->current_move[0]       =  0;
@@ -138,6 +142,10 @@ iterate( tree_t * restrict ptree )
   iteration_depth              =  0;
   easy_value                   =  0;
   easy_abs                     =  0;
+  time_iter_move               =  0;
+  time_iter_value              =  0;
+  time_nstable                 =  0;
+  time_nunstable               =  0;
   right_answer_made            =  0;
   root_abort                   =  0;
   root_nmove                   =  0;
@@ -163,6 +171,9 @@ iterate( tree_t * restrict ptree )
   tlp_nsplit                   = 0;
   tlp_nabort                   = 0;
   tlp_nslot                    = 0;
+  memset( tlp_nsplit_thread, 0, sizeof(tlp_nsplit_thread) );
+  memset( tlp_usec_busy, 0, sizeof(tlp_usec_busy) );
+  memset( tlp_usec_wait, 0, sizeof(tlp_usec_wait) );
 #endif
 
 #if defined(MPV)
@@ -582,6 +593,8 @@ iterate( tree_t * restrict ptree )
       {
 	last_root_value = root_turn ? - root_value : root_value;
 	last_pv         = ptree->pv[0];
+	time_iteration_done( ptree->pv[0].a[1], root_value );
+	JniProgress( ptree, root_value );
       }
 
     if ( root_abort ) { break; }
@@ -21,6 +21,7 @@ is_b_mate_in_1ply( tree_t * restrict ptree )
   int to, from, idirec;
 
   assert( ! is_black_attacked( ptree, SQ_BKING ) );
+  ptree->nmate1ply_called++;
 
   /*  Drops  */
   BBOr( bb_drop, BB_BOCCUPY, BB_WOCCUPY );
@@ -987,6 +988,7 @@ is_w_mate_in_1ply( tree_t * restrict ptree )
   int to, from, idirec;
 
   assert( ! is_white_attacked( ptree, SQ_WKING ) );
+  ptree->nmate1ply_called++;
 
   /* Drops */
   BBOr( bb_drop, BB_BOCCUPY, BB_WOCCUPY );
@@ -93,6 +93,7 @@ is_mate_in3ply( tree_t * restrict ptree, int turn, int ply )
 {
   int value, flag_skip;
 
+  ptree->nmate3_called++;
   if ( mhash_probe( ptree, turn, ply ) )
     {
       if ( MOVE_CURR == MOVE_NA ) { return 0; }
@@ -59,6 +59,7 @@ ponder( tree_t * restrict ptree )
   
   if ( get_elapsed( &time_start ) < 0 ) { return -1; }
 
+  JniPonderStart( ptree );
   game_status |= flag_pondering;
 
   iret = iterate( ptree );
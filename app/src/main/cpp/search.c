@@ -814,6 +814,15 @@ detect_signals( tree_t * restrict ptree )
 #endif
 
 
+  /* a move of the opponent while pondering */
+  if ( JniPonderSignal( ptree ) ) { return 1; }
+
+  /* the deadline or cancellation of an analysis */
+  if ( JniAnalysisSignal( ptree ) ) { return 1; }
+
+  /* the deadline of a computer move, or "move now" */
+  if ( JniMoveSignal( ptree ) ) { return 1; }
+
   if ( ! ( game_status & flag_nopeek ) )
     {
       /* peek input-buffer to find a command */
@@ -940,6 +949,7 @@ detect_signals( tree_t * restrict ptree )
     tlimit = time_limit;
     tmax   = time_max_limit;
   }
+  tlimit = time_soft_limit( tlimit, tmax );
 
   telapsed   = tnow            - time_turn_start;
   tpondered  = time_turn_start - time_start;
@@ -975,7 +985,9 @@ detect_signals( tree_t * restrict ptree )
        && easy_min < last_value - easy_value
        && easy_max > last_value - easy_value )
     {
-      u = tlimit_count / 5U;
+      /* a recapture needs even less time than other easy moves */
+      if ( time_is_recapture( ptree->pv[0].a[1] ) ) { u = tlimit_count / 20U; }
+      else                                          { u = tlimit_count / 5U; }
       if ( u < tpondered ) { ; }
       else if ( u - tpondered < 2000U - time_response )
 	{
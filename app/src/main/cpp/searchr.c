@@ -522,6 +522,7 @@ save_result( tree_t * restrict ptree, int value, int beta, int turn )
 	      ( mnj_depth_stable <= iteration_depth ) ? " stable" : "" );
 
       out_pv( ptree, value, turn, time_last_result - time_start );
+      JniProgress( ptree, value );
     }
 
   return 1;
@@ -94,6 +94,10 @@ extern unsigned char ailast_one[512];
 #define RAND_N                  624
 #define TC_NMOVE                35U
 #define SEC_MARGIN              15U
+#define TC_OPENING_PLY          24U
+#define TC_ENDGAME_PLY          100U
+#define TC_NSTABLE              4
+#define TC_NUNSTABLE_MAX        4
 #define SEC_KEEP_ALIVE          180U
 #define TIME_RESPONSE           200U
 #define RESIGN_THRESHOLD       ( ( MT_CAP_DRAGON * 5 ) /  8 )
@@ -722,6 +726,9 @@ struct tree {
   unsigned int ntrans_upper;
   unsigned int ntrans_superior_hit;
   unsigned int ntrans_inferior_hit;
+  unsigned int ntrans_overwrite;
+  unsigned int nmate1ply_called;
+  unsigned int nmate3_called;
   unsigned int fail_high;
   unsigned int fail_high_first;
   unsigned int rep_hand_list[ REP_HIST_LEN ];
@@ -813,6 +820,11 @@ extern unsigned int time_turn_start;
 extern unsigned int time_start;
 extern unsigned int time_max_limit;
 extern unsigned int time_limit;
+extern unsigned int time_iter_move;
+extern int time_iter_value;
+extern int time_nstable;
+extern int time_nunstable;
+extern int time_book_hit;
 extern unsigned int time_response;
 extern unsigned int sec_limit;
 extern unsigned int sec_limit_up;
@@ -824,13 +836,17 @@ extern unsigned int sec_w_total;
 extern record_t record_problems;
 extern record_t record_game;
 extern FILE *pf_book;
+extern unsigned int book_nprobe;
+extern unsigned int book_nhit;
+extern unsigned int book_usec_total;
+extern unsigned int book_usec_max;
 extern int record_num;
 
 extern int p_value_ex[31];
 extern int p_value_pm[15];
 extern int p_value[31];
-extern short pc_on_sq[nsquare][fe_end*(fe_end+1)/2];
-extern short kkp[nsquare][nsquare][kkp_end];
+extern short (*pc_on_sq)[fe_end*(fe_end+1)/2];
+extern short (*kkp)[nsquare][kkp_end];
 
 extern uint64_t ehash_tbl[ EHASH_MASK + 1 ];
 extern rand_work_t rand_work;
@@ -986,6 +1002,9 @@ void CONV pv_close( tree_t * restrict ptree, int ply, int type );
 void CONV pv_copy( tree_t * restrict ptree, int ply );
 void set_derivative_param( void );
 void CONV set_search_limit_time( int turn );
+void CONV time_iteration_done( unsigned int move, int value );
+unsigned int CONV time_soft_limit( unsigned int tlimit, unsigned int tmax );
+int CONV time_is_recapture( unsigned int move );
 void CONV ehash_clear( void );
 void CONV hash_store_pv( const tree_t * restrict ptree, unsigned int move,
 			 int turn );
@@ -1003,7 +1022,7 @@ void ini_rand( unsigned int s );
 void out_CSA( tree_t * restrict ptree, record_t *pr, unsigned int move );
 void CONV out_pv( tree_t * restrict ptree, int value, int turn,
 		  unsigned int time );
-void CONV hash_store( const tree_t * restrict ptree, int ply, int depth,
+void CONV hash_store( tree_t * restrict ptree, int ply, int depth,
 		      int turn, int value_type, int value, unsigned int move,
 		      unsigned int state_node );
 void * CONV memory_alloc( size_t nbytes );
@@ -1068,6 +1087,7 @@ int next_cmdline( int is_wait );
 int CONV procedure( tree_t * restrict ptree );
 int CONV get_cputime( unsigned int *ptime );
 int CONV get_elapsed( unsigned int *ptime );
+unsigned int CONV get_elapsed_usec( void );
 int interpret_CSA_move( tree_t * restrict ptree, unsigned int *pmove,
 			const char *str );
 int in_CSA( tree_t * restrict ptree, record_t *pr, unsigned int *pmove,
@@ -1151,10 +1171,10 @@ const char * CONV str_time_symple( unsigned int time );
 const char *str_CSA_move( unsigned int move );
 
 #if defined(MPV)
-int root_mpv;
-int mpv_num;
-int mpv_width;
-pv_t mpv_pv[ MPV_MAX_PV*2 + 1 ];
+extern int root_mpv;
+extern int mpv_num;
+extern int mpv_width;
+extern pv_t mpv_pv[ MPV_MAX_PV*2 + 1 ];
 #endif
 
 #  if ! defined(_WIN32) && ( defined(DFPN_CLIENT) || defined(TLP) )
@@ -1191,6 +1211,9 @@ extern int tlp_max;
 extern int tlp_nsplit;
 extern int tlp_nabort;
 extern int tlp_nslot;
+extern unsigned int tlp_nsplit_thread[ TLP_MAX_THREADS ];
+extern unsigned int tlp_usec_busy[ TLP_MAX_THREADS ];
+extern unsigned int tlp_usec_wait[ TLP_MAX_THREADS ];
 extern tree_t tlp_atree_work[ TLP_NUM_WORK ];
 extern tree_t * volatile tlp_ptrees[ TLP_MAX_THREADS ];
 #else /* no TLP */
@@ -1211,7 +1234,9 @@ int exam_bb( const tree_t *ptree );
 #  define Out( ... ) out( __VA_ARGS__ )
 void out( const char *format, ... );
 #else
-#  define Out( ... )
+/* Type-check the arguments, so that they count as used, but generate no
+   code. */
+#  define Out( ... ) ( (void)( 0 && printf( __VA_ARGS__ ) ) )
 #endif
 
 #if ! defined(NO_LOGGING)
@@ -1308,6 +1333,25 @@ int analyze( tree_t * restrict ptree );
 #  define USIOut( ... )
 #endif
 
+#if defined(ANDROID)
+#  define JniProgress( ptree, value ) jni_search_progress( ptree, value )
+#  define JniPonderStart( ptree )     jni_ponder_start( ptree )
+#  define JniPonderSignal( ptree )    jni_ponder_signal( ptree )
+#  define JniAnalysisSignal( ptree )  jni_analysis_signal( ptree )
+#  define JniMoveSignal( ptree )      jni_move_signal( ptree )
+void CONV jni_search_progress( const tree_t * restrict ptree, int value );
+void CONV jni_ponder_start( const tree_t * restrict ptree );
+int CONV jni_ponder_signal( tree_t * restrict ptree );
+int CONV jni_analysis_signal( const tree_t * restrict ptree );
+int CONV jni_move_signal( const tree_t * restrict ptree );
+#else
+#  define JniProgress( ptree, value )
+#  define JniPonderStart( ptree )
+#  define JniPonderSignal( ptree )    0
+#  define JniAnalysisSignal( ptree )  0
+#  define JniMoveSignal( ptree )      0
+#endif
+
 #if defined(CSA_LAN) || defined(MNJ_LAN) || defined(DFPN_CLIENT)||defined(DFPN)
 const char *str_WSAError( const char *str );
 #endif
@@ -1316,7 +1360,7 @@ const char *str_WSAError( const char *str );
 #  define OutCsaShogi( ... ) out_csashogi( __VA_ARGS__ )
 void out_csashogi( const char *format, ... );
 #else
-#  define OutCsaShogi( ... )
+#  define OutCsaShogi( ... ) ( (void)( 0 && printf( __VA_ARGS__ ) ) )
 #endif
 
 
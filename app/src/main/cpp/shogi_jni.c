@@ -1,4 +1,6 @@
+#include <ctype.h>
 #include <jni.h>
+#include <limits.h>
 #include <pthread.h>
 #include <stdarg.h>
 #include <string.h>
@@ -7,6 +9,12 @@
 
 #include "shogi.h"
 #include "shogi_jni.h"
+#include "bonanza_engine.h"
+
+// The slot of this copy of the engine; see bonanza_engine.h.
+#ifndef BONANZA_ENGINE_SLOT
+#define BONANZA_ENGINE_SLOT 0
+#endif
 
 // CAUTION: These constants must match the values defined in BonanzaJNI.java
 #define R_OK 0
@@ -41,8 +49,6 @@ char *g_storage_dir = NULL;
 
 static tree_t *restrict g_tree = NULL;
 
-static int count = 0;
-
 static char *Basename(const char *path, char *buf, int buf_size) {
     const char *r = strrchr(path, '/');
     if (r == NULL) r = path;
@@ -98,88 +104,181 @@ void CheckIntCmpFailure(const char *file, int line,
     abort();
 }
 
-static void LogTree(const char *label, tree_t *ptree) {
-    char msg[1024];
-#if 0  // full board display. this is too verbose, so turn off
-    for (int i = 0; i < 9; ++i) {
-      sprintf(msg, "%d: ", i);
-      for (int j = 0; j < 9; ++j) {
-        char* p = msg + strlen(msg);
-        sprintf(p, "%02d ", BOARD[i * 9 + j]);
-      }
-      LOG_DEBUG("%s: Board: %s", label, msg);
-    }
-#endif
-    LOG_DEBUG("%s: captured black %x white %x material %x",
-              label,
-              ptree->posi.hand_black,
-              ptree->posi.hand_white,
-              ptree->posi.material);
-    msg[0] = '\0';
-    if (game_status & flag_quit) {
-        strcat(msg, "quit ");
-    }
-    if (game_status & flag_mated) {
-        strcat(msg, "checkmate ");
+// Class and field IDs used to exchange data with Java. Looked up once in
+// JNI_OnLoad, so that no call has to do reflective lookups.
+static struct {
+    jclass board_class;
+    jfieldID board_squares;           // int[] Board.mSquares
+    jfieldID board_captured_black;    // int Board.mCapturedBlack
+    jfieldID board_captured_white;    // int Board.mCapturedWhite
+
+    jclass result_class;
+    jfieldID result_status;           // int BonanzaJNI.Result.status
+    jfieldID result_error;            // String BonanzaJNI.Result.error
+    jfieldID result_move;             // String BonanzaJNI.Result.move
+    jfieldID result_move_cookie;      // int BonanzaJNI.Result.moveCookie
+    jfieldID result_board;            // Board BonanzaJNI.Result.board
+    jfieldID result_board_buffer;     // ByteBuffer BonanzaJNI.Result.boardBuffer
+    jfieldID result_board_in_buffer;  // boolean BonanzaJNI.Result.boardInBuffer
+    jfieldID result_search_depth;     // int BonanzaJNI.Result.searchDepth
+    jfieldID result_search_nodes;     // long BonanzaJNI.Result.searchNodes
+    jfieldID result_search_time_ms;   // int BonanzaJNI.Result.searchTimeMs
+
+    jclass analysis_class;
+    jfieldID analysis_status;         // int BonanzaJNI.Analysis.status
+    jfieldID analysis_error;          // String BonanzaJNI.Analysis.error
+    jfieldID analysis_complete;       // boolean BonanzaJNI.Analysis.complete
+    jfieldID analysis_num_lines;      // int BonanzaJNI.Analysis.numLines
+    jfieldID analysis_scores;         // int[] BonanzaJNI.Analysis.scores
+    jfieldID analysis_depths;         // int[] BonanzaJNI.Analysis.depths
+    jfieldID analysis_pvs;            // String[] BonanzaJNI.Analysis.pvs
+
+    jclass bonanza_class;
+    jmethodID on_search_progress;     // static BonanzaJNI.onSearchProgress()
+} g_ids;
+
+static JavaVM *g_vm;
+
+static jclass FindGlobalClass(JNIEnv *env, const char *name) {
+    jclass cls = (*env)->FindClass(env, name);
+    if (cls == NULL) return NULL;
+    jclass global = (jclass) (*env)->NewGlobalRef(env, cls);
+    (*env)->DeleteLocalRef(env, cls);
+    return global;
+}
+
+static const struct bonanza_engine kEngine;
+
+// Called when BonanzaJNI loads this copy of the engine.
+JNIEXPORT jint JNI_OnLoad(JavaVM *vm, void *reserved) {
+    JNIEnv *env;
+    if ((*vm)->GetEnv(vm, (void **) &env, JNI_VERSION_1_6) != JNI_OK) {
+        return JNI_ERR;
     }
-    if (game_status & flag_drawn) {
-        strcat(msg, "draw ");
+    g_vm = vm;
+    g_ids.board_class = FindGlobalClass(env, "mobi/omegacentauri/shogi/Board");
+    g_ids.result_class = FindGlobalClass(env, "mobi/omegacentauri/shogi/BonanzaJNI$Result");
+    g_ids.analysis_class = FindGlobalClass(env, "mobi/omegacentauri/shogi/BonanzaJNI$Analysis");
+    g_ids.bonanza_class = FindGlobalClass(env, "mobi/omegacentauri/shogi/BonanzaJNI");
+    if (g_ids.board_class == NULL || g_ids.result_class == NULL ||
+        g_ids.analysis_class == NULL || g_ids.bonanza_class == NULL) {
+        return JNI_ERR;
     }
-    if (game_status & flag_resigned) {
-        strcat(msg, "resigned ");
-    }
-    LOG_DEBUG("%s: game: %s", label, msg);
+
+    jclass b = g_ids.board_class;
+    g_ids.board_squares = (*env)->GetFieldID(env, b, "mSquares", "[I");
+    g_ids.board_captured_black = (*env)->GetFieldID(env, b, "mCapturedBlack", "I");
+    g_ids.board_captured_white = (*env)->GetFieldID(env, b, "mCapturedWhite", "I");
+
+    jclass r = g_ids.result_class;
+    g_ids.result_status = (*env)->GetFieldID(env, r, "status", "I");
+    g_ids.result_error = (*env)->GetFieldID(env, r, "error", "Ljava/lang/String;");
+    g_ids.result_move = (*env)->GetFieldID(env, r, "move", "Ljava/lang/String;");
+    g_ids.result_move_cookie = (*env)->GetFieldID(env, r, "moveCookie", "I");
+    g_ids.result_board = (*env)->GetFieldID(env, r, "board",
+                                            "Lmobi/omegacentauri/shogi/Board;");
+    g_ids.result_board_buffer = (*env)->GetFieldID(env, r, "boardBuffer",
+                                                   "Ljava/nio/ByteBuffer;");
+    g_ids.result_board_in_buffer = (*env)->GetFieldID(env, r, "boardInBuffer", "Z");
+    g_ids.result_search_depth = (*env)->GetFieldID(env, r, "searchDepth", "I");
+    g_ids.result_search_nodes = (*env)->GetFieldID(env, r, "searchNodes", "J");
+    g_ids.result_search_time_ms = (*env)->GetFieldID(env, r, "searchTimeMs", "I");
+
+    jclass a = g_ids.analysis_class;
+    g_ids.analysis_status = (*env)->GetFieldID(env, a, "status", "I");
+    g_ids.analysis_error = (*env)->GetFieldID(env, a, "error", "Ljava/lang/String;");
+    g_ids.analysis_complete = (*env)->GetFieldID(env, a, "complete", "Z");
+    g_ids.analysis_num_lines = (*env)->GetFieldID(env, a, "numLines", "I");
+    g_ids.analysis_scores = (*env)->GetFieldID(env, a, "scores", "[I");
+    g_ids.analysis_depths = (*env)->GetFieldID(env, a, "depths", "[I");
+    g_ids.analysis_pvs = (*env)->GetFieldID(env, a, "pvs", "[Ljava/lang/String;");
+
+    g_ids.on_search_progress = (*env)->GetStaticMethodID(
+            env, g_ids.bonanza_class, "onSearchProgress", "(JIJIILjava/lang/String;)V");
+    if ((*env)->ExceptionCheck(env)) return JNI_ERR;  // a member is missing
+
+    bonanza_register_engine(BONANZA_ENGINE_SLOT, &kEngine);
+    return JNI_VERSION_1_6;
 }
 
-static void FillIntField(JNIEnv *env,
-                         int value, jclass cls, jobject obj,
-                         const char *field) {
-    jfieldID fid = (*env)->GetFieldID(env, cls, field, "I");
-    (*env)->SetIntField(env, obj, fid, value);
+// Size of a board snapshot, in the layout of Board.saveSnapshot(): one byte
+// per square, hand_black and hand_white as big-endian ints, then the side to
+// move.
+#define SNAPSHOT_SIZE (nsquare + 4 + 4 + 1)
+
+static void PutInt(unsigned char *p, unsigned int v) {
+    p[0] = (unsigned char) (v >> 24);
+    p[1] = (unsigned char) (v >> 16);
+    p[2] = (unsigned char) (v >> 8);
+    p[3] = (unsigned char) v;
 }
 
-static int ExtractIntField(JNIEnv *env,
-                           jclass cls, jobject obj,
-                           const char *field) {
-    jfieldID fid = (*env)->GetFieldID(env, cls, field, "I");
-    return (*env)->GetIntField(env, obj, fid);
+static void FillSnapshot(const posi_t *posi, int turn, unsigned char *buf) {
+    memcpy(buf, posi->asquare, nsquare);
+    PutInt(buf + nsquare, posi->hand_black);
+    PutInt(buf + nsquare + 4, posi->hand_white);
+    buf[nsquare + 8] = (unsigned char) turn;
 }
 
 // Copy the board config (piece locations and captured pieces for each player)
-// from "ptree" to "board".
-static void FillBoard(const char *label,
-                      JNIEnv *env,
-                      tree_t *ptree, /* source */
+// from "posi" to "board".
+static void FillBoard(JNIEnv *env,
+                      const posi_t *posi, /* source */
                       jobject board /* dest */) {
-    LogTree(label, ptree);
-
-    jclass boardClass = (*env)->GetObjectClass(env, board);
-    jfieldID fid = (*env)->GetFieldID(env, boardClass, "mSquares", "[I");
-    jintArray jarray = (jintArray) ((*env)->GetObjectField(env, board, fid));
-    jint tmp[nsquare];
+    jintArray jarray = (jintArray) (*env)->GetObjectField(env, board, g_ids.board_squares);
+    jint *squares = (*env)->GetPrimitiveArrayCritical(env, jarray, NULL);
+    CHECK(squares != NULL);
     for (int i = 0; i < nsquare; ++i) {
-        tmp[i] = BOARD[i];
+        squares[i] = posi->asquare[i];
     }
-    (*env)->SetIntArrayRegion(env, jarray, 0, nsquare, tmp);
-
-    fid = (*env)->GetFieldID(env, boardClass, "mCapturedBlack", "I");
-    (*env)->SetIntField(env, board, fid, ptree->posi.hand_black);
-
-    fid = (*env)->GetFieldID(env, boardClass, "mCapturedWhite", "I");
-    (*env)->SetIntField(env, board, fid, ptree->posi.hand_white);
+    (*env)->ReleasePrimitiveArrayCritical(env, jarray, squares, 0);
+    (*env)->DeleteLocalRef(env, jarray);
+    (*env)->SetIntField(env, board, g_ids.board_captured_black, posi->hand_black);
+    (*env)->SetIntField(env, board, g_ids.board_captured_white, posi->hand_white);
 }
 
-static void FillMoveResult(JNIEnv *env,
-                           jobject move_result,
-                           int move,
-                           const char *move_str) {
-    jclass move_class = (*env)->GetObjectClass(env, move_result);
-    jfieldID fid = (*env)->GetFieldID(env, move_class,
-                                      "move", "Ljava/lang/String;");
-    (*env)->SetObjectField(env, move_result, fid,
-                           (*env)->NewStringUTF(env, move_str));
+// Like FillResult, but takes the board from "posi", where "turn" is to move.
+static void FillPosiResult(const char *label,
+                           JNIEnv *env,
+                           int iret,
+                           const char *error,
+                           const char *move_str,
+                           int move_cookie,
+                           const posi_t *posi,
+                           int turn,
+                           jobject result) {
+    (*env)->SetIntField(env, result, g_ids.result_status, iret);
+    if (error != NULL) {
+        (*env)->SetObjectField(env, result, g_ids.result_error,
+                               (*env)->NewStringUTF(env, error));
+    }
+
+    // Fill move_str and move_cookie
+    if (move_str != NULL) {
+        (*env)->SetObjectField(env, result, g_ids.result_move,
+                               (*env)->NewStringUTF(env, move_str));
+    }
+    (*env)->SetIntField(env, result, g_ids.result_move_cookie, move_cookie);
 
-    FillIntField(env, move, move_class, move_result, "cookie");
+    // Fill the board: into the shared direct buffer if the caller supplied
+    // one, else into Result.board.
+    if (posi != NULL) {
+        jobject buffer = (*env)->GetObjectField(env, result, g_ids.result_board_buffer);
+        unsigned char *buf = NULL;
+        if (buffer != NULL &&
+            (*env)->GetDirectBufferCapacity(env, buffer) >= SNAPSHOT_SIZE) {
+            buf = (unsigned char *) (*env)->GetDirectBufferAddress(env, buffer);
+        }
+        if (buf != NULL) {
+            FillSnapshot(posi, turn, buf);
+            (*env)->SetBooleanField(env, result, g_ids.result_board_in_buffer, JNI_TRUE);
+        } else {
+            jobject board = (*env)->GetObjectField(env, result, g_ids.result_board);
+            FillBoard(env, posi, board);
+            (*env)->DeleteLocalRef(env, board);
+        }
+        if (buffer != NULL) (*env)->DeleteLocalRef(env, buffer);
+    }
 }
 
 static void FillResult(const char *label,
@@ -190,44 +289,60 @@ static void FillResult(const char *label,
                        int move_cookie,
                        tree_t *ptree,
                        jobject result) {
-    jclass result_class = (*env)->GetObjectClass(env, result);
+    FillPosiResult(label, env, iret, error, move_str, move_cookie,
+                   ptree != NULL ? &ptree->posi : NULL, root_turn, result);
+}
 
-    FillIntField(env, iret, result_class, result, "status");
-    if (error != NULL) {
-        jfieldID fid = (*env)->GetFieldID(env, result_class,
-                                          "error", "Ljava/lang/String;");
-        (*env)->SetObjectField(env, result, fid, (*env)->NewStringUTF(env, error));
-    }
+// Search progress reporting. computerMove() sets g_progress_env for the
+// duration of the search. iterate.c and searchr.c call
+// jni_search_progress() on the search thread when an iteration completes
+// or the root PV changes; it forwards at most one report per
+// PROGRESS_INTERVAL_MS to BonanzaJNI.onSearchProgress(). It takes no lock,
+// so the helper threads never wait for it.
+#define PROGRESS_INTERVAL_MS 250
+#define PROGRESS_PV_MAX 8  // Max number of moves reported in the PV
 
-    // Fill move_str and move_cookie
-    if (move_str != NULL) {
-        jfieldID fid = (*env)->GetFieldID(env, result_class,
-                                          "move", "Ljava/lang/String;");
-        (*env)->SetObjectField(env, result, fid,
-                               (*env)->NewStringUTF(env, move_str));
-    }
-    FillIntField(env, move_cookie, result_class, result, "moveCookie");
-
-    // Fill the board
-    if (ptree != NULL) {
-        jfieldID fid = (*env)->GetFieldID(env, result_class,
-                                          "board", "Lmobi/omegacentauri/shogi/Board;");
-        jobject board = (*env)->GetObjectField(env, result, fid);
-        jclass board_class = (*env)->GetObjectClass(env, board);
-        fid = (*env)->GetFieldID(env, board_class, "mSquares", "[I");
-        jintArray jarray = (jintArray) ((*env)->GetObjectField(env, board, fid));
-        jint tmp[nsquare];
-        for (int i = 0; i < nsquare; ++i) {
-            tmp[i] = BOARD[i];
-        }
-        (*env)->SetIntArrayRegion(env, jarray, 0, nsquare, tmp);
-        fid = (*env)->GetFieldID(env, board_class, "mCapturedBlack", "I");
-        (*env)->SetIntField(env, board, fid, ptree->posi.hand_black);
-        fid = (*env)->GetFieldID(env, board_class, "mCapturedWhite", "I");
-        (*env)->SetIntField(env, board, fid, ptree->posi.hand_white);
+static JNIEnv *g_progress_env = NULL;
+static unsigned int g_progress_last_ms;
+
+// Write up to "max_moves" moves of "pv" to "buf" in CSA format, separated
+// by spaces. "buf" must hold max_moves * 8 + 1 bytes.
+static void FormatPv(const pv_t *pv, int max_moves, char *buf, int buf_size) {
+    int len = 0;
+    int n = pv->length;
+    if (n > max_moves) n = max_moves;
+    buf[0] = '\0';
+    for (int ply = 1; ply <= n; ++ply) {
+        len += snprintf(buf + len, buf_size - len, "%s%s",
+                        ply > 1 ? " " : "", str_CSA_move(pv->a[ply]));
     }
 }
 
+void CONV jni_search_progress(const tree_t *restrict ptree, int value) {
+    JNIEnv *env = g_progress_env;
+    unsigned int now;
+    if (env == NULL || get_elapsed(&now) < 0) return;
+    if (now - g_progress_last_ms < PROGRESS_INTERVAL_MS) return;
+    g_progress_last_ms = now;
+
+    // Nodes of the helper threads are added to the root tree when they
+    // join, so this lags a little behind the true count.
+    uint64_t nodes = ptree->node_searched;
+    unsigned int elapsed = now - time_start;
+    jint nps = elapsed > 0 ? (jint) (nodes * 1000 / elapsed) : 0;
+
+    char pv[PROGRESS_PV_MAX * 8 + 1];
+    FormatPv(&ptree->pv[0], PROGRESS_PV_MAX, pv, sizeof(pv));
+
+    jstring jpv = (*env)->NewStringUTF(env, pv);
+    (*env)->CallStaticVoidMethod(env, g_ids.bonanza_class, g_ids.on_search_progress,
+                                 (jlong) BONANZA_ENGINE_SLOT, (jint) iteration_depth, (jlong) nodes, nps,
+                                 (jint) value, jpv);
+    // An exception in a listener must not abort the search.
+    if ((*env)->ExceptionCheck(env)) (*env)->ExceptionClear(env);
+    (*env)->DeleteLocalRef(env, jpv);
+}
+
 static void RunCommand(const char *command) {
     LOG_DEBUG("Run %s", command);
     strcpy(str_cmdline, command);
@@ -253,12 +368,405 @@ static int ParseCsaMove(JNIEnv *env,
     return r;
 }
 
+// Pondering. When enabled, computerMove() starts a thread that runs
+// ponder() after making its move: a short search guesses the human's reply,
+// then the engine searches the position after it until the human moves.
+// The thread holds g_lock all the while.
+//
+// humanMove() hands the human's move to the thread and waits for the
+// verdict, which jni_ponder_signal() gives from detect_signals(). While
+// pondering, detect_signals() runs every node_per_second/32 nodes, so the
+// wait is bounded by about 1/32 s of search. On a hit the search turns into
+// the computer's regular search of the same position, and humanMove()
+// returns at once with the position saved by jni_ponder_start(); the next
+// computerMove() waits for the search to finish. On a miss the search is
+// aborted and the move is made as usual.
+enum { PONDER_NONE, PONDER_REPLY, PONDER_STOP };                   // request
+enum { PONDER_PENDING, PONDER_HIT, PONDER_MISS, PONDER_FINISHED };  // outcome
+
+static struct {
+    pthread_mutex_t lock;   // guards all fields
+    pthread_cond_t cond;    // broadcast when "outcome" changes
+    int enabled;            // BonanzaJNI.setPondering()
+    int running;            // "thread" exists and nobody has joined it yet
+    pthread_t thread;
+    JNIEnv *env;            // of "thread"
+    // Request from the Java threads. Read without the lock by
+    // jni_ponder_signal() for a quick check.
+    volatile int request;
+    MoveBuf reply;          // the human's move, for PONDER_REPLY
+    int outcome;
+    MoveBuf move_str;       // the predicted move, or "" while guessing it
+    unsigned int move;
+    posi_t root;            // the position after "move"
+    int root_turn;
+    unsigned int start_ms;  // when the search of "root" started
+    int iret;               // value returned by ponder()
+    uint64_t nodes;         // searched by ponder()
+} g_ponder = {
+    .lock = PTHREAD_MUTEX_INITIALIZER,
+    .cond = PTHREAD_COND_INITIALIZER,
+};
+
+// Counters for BonanzaJNI.getStats() and getHashStats() since the game
+// started, indexed like the BonanzaJNI.STAT_XXX constants. Guarded by
+// g_stats_lock.
+static pthread_mutex_t g_stats_lock = PTHREAD_MUTEX_INITIALIZER;
+#define STAT_SEARCHES 0         // Searches that visited at least one node
+#define STAT_SEARCH_MS 1        // Time of these searches
+#define STAT_NODES 2
+#define STAT_QUIES_NODES 3
+#define STAT_NPS 4              // Computed by GetStats()
+#define STAT_HASH_PROBES 5      // Lookups
+#define STAT_HASH_HITS 6        // Lookups that found the position
+#define STAT_HASH_CUTOFFS 7     // Hits whose value ended the search of the node
+#define STAT_HASH_OVERWRITES 8  // Stores that evicted another position of the same search
+#define STAT_MATE1PLY_CALLS 9
+#define STAT_MATE3_CALLS 10
+#define STAT_BOOK_PROBES 11     // Copied from book.c by AddStats()
+#define STAT_BOOK_HITS 12       // Copied from book.c by AddStats()
+#define STAT_THREADS 13         // Computed by GetStats()
+#define STAT_THREAD_SPLITS 14   // One entry per thread from here on
+#define STAT_THREAD_IDLE_MS (STAT_THREAD_SPLITS + TLP_MAX_THREADS)
+#define NUM_STATS (STAT_THREAD_IDLE_MS + TLP_MAX_THREADS)
+static jlong g_stats[NUM_STATS];
+
+// The book.c counters for BonanzaJNI.getBookStats(), indexed like the
+// BonanzaJNI.BOOK_XXX constants but for BOOK_LOADED. Guarded by
+// g_stats_lock.
+static jlong g_book_stats[4];
+
+// Move the counters of the search that just ended on "ptree", which took
+// "search_ms", into g_stats. They are zeroed, so a book move, or a ponder()
+// that returns without searching, adds nothing. Also copies the book.c
+// counters, which the engine updates under g_lock, so that reading them
+// doesn't wait for pondering. REQUIRES: g_lock is held.
+static void AddStats(tree_t *ptree, unsigned int search_ms) {
+    pthread_mutex_lock(&g_stats_lock);
+    g_stats[STAT_BOOK_PROBES] = book_nprobe;
+    g_stats[STAT_BOOK_HITS] = book_nhit;
+    g_book_stats[0] = book_nprobe;
+    g_book_stats[1] = book_nhit;
+    g_book_stats[2] = book_usec_total;
+    g_book_stats[3] = book_usec_max;
+    if (ptree->node_searched > 0) {
+        ++g_stats[STAT_SEARCHES];
+        g_stats[STAT_SEARCH_MS] += search_ms;
+    }
+    g_stats[STAT_NODES] += ptree->node_searched;
+    g_stats[STAT_QUIES_NODES] += ptree->nquies_called;
+    g_stats[STAT_HASH_PROBES] += ptree->ntrans_probe;
+    g_stats[STAT_HASH_HITS] += ptree->ntrans_prefer_hit + ptree->ntrans_always_hit;
+    g_stats[STAT_HASH_CUTOFFS] += ptree->ntrans_exact + ptree->ntrans_lower +
+        ptree->ntrans_upper + ptree->ntrans_superior_hit + ptree->ntrans_inferior_hit;
+    g_stats[STAT_HASH_OVERWRITES] += ptree->ntrans_overwrite;
+    g_stats[STAT_MATE1PLY_CALLS] += ptree->nmate1ply_called;
+    g_stats[STAT_MATE3_CALLS] += ptree->nmate3_called;
+#ifdef TLP
+    // The main thread is idle while it waits for the helpers of its splits.
+    // A helper is idle whenever it does not search a split of another
+    // thread, less the waits for its own splits in the meantime.
+    for (int i = 0; ptree->node_searched > 0 && i < tlp_max; ++i) {
+        jlong busy_ms = i == 0 ? search_ms : tlp_usec_busy[i] / 1000;
+        jlong idle_ms = search_ms - busy_ms + tlp_usec_wait[i] / 1000;
+        g_stats[STAT_THREAD_SPLITS + i] += tlp_nsplit_thread[i];
+        g_stats[STAT_THREAD_IDLE_MS + i] += idle_ms > 0 ? idle_ms : 0;
+    }
+    memset(tlp_nsplit_thread, 0, sizeof(tlp_nsplit_thread));
+    memset(tlp_usec_busy, 0, sizeof(tlp_usec_busy));
+    memset(tlp_usec_wait, 0, sizeof(tlp_usec_wait));
+#endif
+    pthread_mutex_unlock(&g_stats_lock);
+    ptree->node_searched = 0;
+    ptree->nquies_called = 0;
+    ptree->ntrans_probe = 0;
+    ptree->ntrans_prefer_hit = 0;
+    ptree->ntrans_always_hit = 0;
+    ptree->ntrans_exact = 0;
+    ptree->ntrans_lower = 0;
+    ptree->ntrans_upper = 0;
+    ptree->ntrans_superior_hit = 0;
+    ptree->ntrans_inferior_hit = 0;
+    ptree->ntrans_overwrite = 0;
+    ptree->nmate1ply_called = 0;
+    ptree->nmate3_called = 0;
+}
+
+// Counters for BonanzaJNI.getPonderStats(). Guarded by g_ponder.lock.
+static jlong g_ponder_stats[4];
+#define PONDER_STAT_SEARCHES 0  // Searches of a predicted move
+#define PONDER_STAT_HITS 1      // The human played the predicted move
+#define PONDER_STAT_MISSES 2    // The human played another move
+#define PONDER_STAT_SAVED_MS 3  // Time spent on searches that were hits
+
+void CONV jni_ponder_start(const tree_t *restrict ptree) {
+    pthread_mutex_lock(&g_ponder.lock);
+    g_ponder.move = ponder_move;
+    strcpy(g_ponder.move_str, str_CSA_move(ponder_move));
+    g_ponder.root = ptree->posi;
+    g_ponder.root_turn = root_turn;
+    g_ponder.start_ms = time_start;
+    ++g_ponder_stats[PONDER_STAT_SEARCHES];
+    pthread_mutex_unlock(&g_ponder.lock);
+}
+
+int CONV jni_ponder_signal(tree_t *restrict ptree) {
+    // Requests concern only the searches of ponder(). A search started by
+    // the hit is stopped by StopPondering() through root_abort.
+    if (g_ponder.request == PONDER_NONE ||
+        !(game_status & (flag_puzzling | flag_pondering))) {
+        return 0;
+    }
+
+    int abort = 1;
+    pthread_mutex_lock(&g_ponder.lock);
+    if (g_ponder.request == PONDER_REPLY && g_ponder.outcome == PONDER_PENDING) {
+        if ((game_status & flag_pondering) &&
+            strcmp(g_ponder.reply, g_ponder.move_str) == 0) {
+            // Same as cmd_move() in proce.c on a hit.
+            update_time(Flip(root_turn));
+            out_CSA(ptree, &record_game, ponder_move);
+            game_status &= ~flag_pondering;
+            game_status |= flag_thinking;
+            set_search_limit_time(root_turn);
+
+            g_ponder.outcome = PONDER_HIT;
+            g_ponder.request = PONDER_NONE;
+            ++g_ponder_stats[PONDER_STAT_HITS];
+            g_ponder_stats[PONDER_STAT_SAVED_MS] += time_turn_start - g_ponder.start_ms;
+            g_progress_env = g_ponder.env;
+            g_progress_last_ms = time_turn_start;
+            abort = 0;
+        } else {
+            g_ponder.outcome = PONDER_MISS;
+            ++g_ponder_stats[PONDER_STAT_MISSES];
+            ponder_move = MOVE_PONDER_FAILED;
+        }
+        pthread_cond_broadcast(&g_ponder.cond);
+    }
+    pthread_mutex_unlock(&g_ponder.lock);
+    if (abort) game_status |= flag_quit_ponder;
+    return abort;
+}
+
+static void *PonderMain(void *unused) {
+    JNIEnv *env = NULL;
+    // The NDK declares the argument as JNIEnv **, the JDK as void **; a
+    // void * converts to either.
+    (*g_vm)->AttachCurrentThread(g_vm, (void *) &env, NULL);
+    pthread_mutex_lock(&g_lock);
+    pthread_mutex_lock(&g_ponder.lock);
+    g_ponder.env = env;
+    int stopped = g_ponder.request != PONDER_NONE;
+    pthread_mutex_unlock(&g_ponder.lock);
+
+    unsigned int start_ms = 0, end_ms = 0;
+    get_elapsed(&start_ms);
+    int iret = stopped ? 1 : ponder(g_tree);
+    get_elapsed(&end_ms);
+    uint64_t nodes = g_tree->node_searched;
+    if (!stopped) AddStats(g_tree, end_ms - start_ms);
+    g_progress_env = NULL;
+
+    pthread_mutex_lock(&g_ponder.lock);
+    g_ponder.iret = iret;
+    g_ponder.nodes = nodes;
+    if (g_ponder.outcome == PONDER_PENDING) g_ponder.outcome = PONDER_FINISHED;
+    pthread_cond_broadcast(&g_ponder.cond);
+    pthread_mutex_unlock(&g_ponder.lock);
+    pthread_mutex_unlock(&g_lock);
+    (*g_vm)->DetachCurrentThread(g_vm);
+    return NULL;
+}
+
+// Start pondering after the computer's move. REQUIRES: g_lock is held.
+static void StartPondering(void) {
+    if (game_status & (mask_game_end | flag_noponder)) return;
+    if (depth_limit < PLY_MAX) return;  // The weak levels answer at once anyway.
+    pthread_mutex_lock(&g_ponder.lock);
+    if (g_ponder.enabled && !g_ponder.running) {
+        g_ponder.request = PONDER_NONE;
+        g_ponder.outcome = PONDER_PENDING;
+        g_ponder.move = 0;
+        g_ponder.move_str[0] = '\0';
+        g_ponder.iret = 0;
+        g_ponder.running = (pthread_create(&g_ponder.thread, NULL, PonderMain, NULL) == 0);
+    }
+    pthread_mutex_unlock(&g_ponder.lock);
+}
+
+// Take over the ponder thread, so that no other caller joins it. Returns 0
+// if there is none.
+static int ClaimPonderThread(pthread_t *thread) {
+    pthread_mutex_lock(&g_ponder.lock);
+    int running = g_ponder.running;
+    g_ponder.running = 0;
+    *thread = g_ponder.thread;
+    pthread_mutex_unlock(&g_ponder.lock);
+    return running;
+}
+
+// Abort pondering, and wait for the ponder thread to exit. If the search of
+// a hit has already made the computer's move, take it back since nobody
+// asked for it. REQUIRES: g_lock is not held.
+static void StopPondering(void) {
+    pthread_t thread;
+    pthread_mutex_lock(&g_ponder.lock);
+    g_ponder.request = PONDER_STOP;
+    pthread_mutex_unlock(&g_ponder.lock);
+    if (!ClaimPonderThread(&thread)) return;
+    root_abort = 1;
+    pthread_join(thread, NULL);
+    if (g_ponder.outcome == PONDER_HIT && g_ponder.iret == 2) {
+        pthread_mutex_lock(&g_lock);
+        unmake_move_root(g_tree);
+        pthread_mutex_unlock(&g_lock);
+    }
+}
+
+// Tell the ponder thread that the human played "move_str", and wait for the
+// verdict. Returns 1 on a hit. Else the thread has exited when this
+// function returns. REQUIRES: g_lock is not held.
+static int SendPonderReply(const char *move_str) {
+    pthread_mutex_lock(&g_ponder.lock);
+    if (!g_ponder.running) {
+        pthread_mutex_unlock(&g_ponder.lock);
+        return 0;
+    }
+    strcpy(g_ponder.reply, move_str);
+    g_ponder.request = PONDER_REPLY;
+    while (g_ponder.outcome == PONDER_PENDING) {
+        pthread_cond_wait(&g_ponder.cond, &g_ponder.lock);
+    }
+    int hit = g_ponder.outcome == PONDER_HIT;
+    pthread_mutex_unlock(&g_ponder.lock);
+    if (!hit) StopPondering();
+    return hit;
+}
+
+// Wait for the search started by a hit to finish. Returns 1 if there was
+// one, in which case ponder() has made the computer's move and
+// g_ponder.iret has its status. Else stops pondering, if any.
+// REQUIRES: g_lock is not held.
+static int JoinPonderHit(void) {
+    pthread_mutex_lock(&g_ponder.lock);
+    int hit = g_ponder.running && g_ponder.outcome == PONDER_HIT;
+    pthread_mutex_unlock(&g_ponder.lock);
+    pthread_t thread;
+    if (!hit || !ClaimPonderThread(&thread)) {
+        StopPondering();
+        return 0;
+    }
+    pthread_join(thread, NULL);
+    return 1;
+}
+
+// The token of the last MoveNow(). The ComputerMove() or Analyze() call
+// that brought the same token stops, whether it was running or yet to
+// start. Unlike Abort(), a stale MoveNow() can't stop a later call, since
+// each call brings its own token.
+static volatile int g_stop_token;
+
+// Analysis. Analyze() runs a multi-PV search of a position, which
+// jni_analysis_signal() stops from detect_signals() when the time budget is
+// used up, or Abort() or MoveNow() is called.
+#define ANALYSIS_PV_MAX 16  // Max number of moves reported in each PV
+
+static struct {
+    volatile int active;     // Analyze() is searching
+    volatile int cancelled;  // Abort() was called
+    volatile int token;      // of the running call, or 0 for none
+    unsigned int start_ms;
+    unsigned int time_ms;    // the time budget, or 0 for none
+} g_analysis;
+
+int CONV jni_analysis_signal(const tree_t *restrict ptree) {
+    unsigned int now;
+    if (!g_analysis.active) return 0;
+    if (g_analysis.cancelled) return 1;
+    if (g_analysis.token != 0 && g_analysis.token == g_stop_token) return 1;
+    if (get_elapsed(&now) < 0) return 0;
+    return g_analysis.time_ms > 0 &&
+        now - g_analysis.start_ms >= g_analysis.time_ms;
+}
+
+// Limits of one ComputerMove() call. jni_move_signal() stops its search,
+// like the end of its regular time, when the deadline passes or MoveNow()
+// names the call's token; the best move found so far is then played.
+static struct {
+    volatile int active;      // ComputerMove() is searching
+    volatile int token;       // of the running call, or 0 for none
+    unsigned int start_ms;
+    unsigned int time_ms;     // the deadline after start_ms, or 0 for none
+} g_move;
+
+int CONV jni_move_signal(const tree_t *restrict ptree) {
+    unsigned int now;
+    if (!g_move.active) return 0;
+    if (g_move.token != 0 && g_move.token == g_stop_token) return 1;
+    if (get_elapsed(&now) < 0) return 0;
+    return g_move.time_ms > 0 && now - g_move.start_ms >= g_move.time_ms;
+}
+
+// Search with "n" threads. tlp_start() only starts helper threads if none
+// is running, so the running ones must end before tlp_max changes.
+static void SetNumThreads(int n) {
+#ifdef TLP
+    if (n < 1) n = 1;
+    if (n > TLP_MAX_THREADS) n = TLP_MAX_THREADS;
+    if (n != tlp_max) {
+        TlpEnd();
+        tlp_max = n;
+    }
+    LOG_DEBUG("cores %d", tlp_max);
+#endif
+}
+
+// Transposition table sizes, in log2 of the number of entries. Each entry
+// takes sizeof(trans_table_t), i.e., 48 bytes.
+#define LOG2_HASH_MIN 16  // 3MB
+#define LOG2_HASH_MAX 24  // 768MB
+
+// Resize the transposition table to 2^"log2" entries, or to the largest
+// smaller size that can be had. Returns -1 if no table could be allocated.
+// REQUIRES: g_lock is held.
+static int ResizeHashTable(int log2) {
+    if (log2 == log2_ntrans_table && ptrans_table_orig != NULL) return 0;
+
+    // Same as cmd_hash() in proce.c.
+    memory_free((void *) ptrans_table_orig);
+    ptrans_table_orig = NULL;
+    for (; log2 >= LOG2_HASH_MIN; --log2) {
+        log2_ntrans_table = log2;
+        if (ini_trans_table() >= 0) {
+            LOG_DEBUG("hash: %d entries, %dMB", 1 << log2,
+                      (int) ((sizeof(trans_table_t) << log2) >> 20));
+            return 0;
+        }
+        ptrans_table_orig = NULL;
+    }
+    return -1;
+}
+
+// Resize the transposition table to the largest power of two entries that
+// fits in "mb" megabytes. If that much memory can't be had, settle for
+// less. 0 keeps the current size. Returns -1 if no table could be
+// allocated. REQUIRES: g_lock is held.
+static int SetHashSize(int mb) {
+    if (mb <= 0) return 0;
+    int log2 = LOG2_HASH_MIN;
+    while (log2 < LOG2_HASH_MAX &&
+           (sizeof(trans_table_t) << (log2 + 1)) <= ((size_t) mb << 20)) {
+        ++log2;
+    }
+    return ResizeHashTable(log2);
+}
+
 static void SetDifficulty(int difficulty,
                           int total_think_time_secs,
                           int per_turn_think_time_secs) {
-    // Disable background thinking. I don't know how to stop it in timely
-    // fashion.
-    RunCommand("ponder off");
+    // Background thinking is run by StartPondering(), if enabled.
+    RunCommand(g_ponder.enabled ? "ponder on" : "ponder off");
 
     // Don't let the computer resign until it's really desperate.
     RunCommand("resign 999999");
@@ -282,14 +790,6 @@ static void SetDifficulty(int difficulty,
               (unsigned long long) node_limit, depth_limit, sec_limit, sec_limit_up);
 }
 
-static void ClearBoard(int x, int y, min_posi_t *pos) {
-    pos->asquare[x + y * nfile] = 0;
-}
-
-static void GenerateInitialBoardConfiguration(jintArray jarray,
-                                              min_posi_t *pos) {
-}
-
 static int GameStatusToReturnCode() {
     CHECK2((game_status & flag_quit) == 0, "status: %x", game_status);
     if (game_status & flag_mated) {
@@ -304,9 +804,8 @@ static int GameStatusToReturnCode() {
     return R_OK;
 }
 
-void Java_mobi_omegacentauri_shogi_BonanzaJNI_initialize(
+static void Initialize(
         JNIEnv *env,
-        jclass unused_bonanza_class,
         jstring storage_dir) {
     if (!g_initialized) {
         root_abort = 1; // just in case
@@ -331,9 +830,26 @@ void Java_mobi_omegacentauri_shogi_BonanzaJNI_initialize(
     }
 }
 
-jint Java_mobi_omegacentauri_shogi_BonanzaJNI_startGame(
+// Copy "board" (a Board) into "pos", with "turn" to move.
+static void ReadBoard(JNIEnv *env, jobject board, int turn, min_posi_t *pos) {
+    jintArray jarray = (jintArray) ((*env)->GetObjectField(
+            env, board, g_ids.board_squares));
+
+    *pos = min_posi_no_handicap;
+    pos->turn_to_move = turn;
+    jint tmp_array[nsquare];
+    (*env)->GetIntArrayRegion(env, jarray, 0, nsquare, tmp_array);
+    (*env)->DeleteLocalRef(env, jarray);
+    for (int i = 0; i < nsquare; ++i) {
+        pos->asquare[i] = tmp_array[i];
+    }
+
+    pos->hand_black = (*env)->GetIntField(env, board, g_ids.board_captured_black);
+    pos->hand_white = (*env)->GetIntField(env, board, g_ids.board_captured_white);
+}
+
+static jint StartGame(
         JNIEnv *env,
-        jclass unused_bonanza_class,
         jint resume_instance_id,
         jobject initial_board,
         jint next_turn,  // 0: black 1: white
@@ -341,9 +857,11 @@ jint Java_mobi_omegacentauri_shogi_BonanzaJNI_startGame(
         jint numCores,
         jint total_think_time_secs,
         jint per_turn_think_time_secs,
+        jint hash_mb,
         jobject result) {
     int instance_id = -1;
 
+    StopPondering();
     pthread_mutex_lock(&g_lock);
     if (!g_initialized) {
         FillResult("Init", env,
@@ -358,45 +876,36 @@ jint Java_mobi_omegacentauri_shogi_BonanzaJNI_startGame(
         instance_id = resume_instance_id;
     } else {
         instance_id = ++g_instance_id;
-        LOG_DEBUG("Starting game: d=%d t=%d p=%d",
+        LOG_DEBUG("Starting game: d=%d t=%d p=%d h=%dMB",
                   difficulty,
-                  total_think_time_secs, per_turn_think_time_secs);
-
-        jclass board_class = (*env)->GetObjectClass(env, initial_board);
-        jfieldID fid = (*env)->GetFieldID(env, board_class, "mSquares", "[I");
-        jintArray jarray = (jintArray) ((*env)->GetObjectField(
-                env, initial_board, fid));
-
-        min_posi_t initial_pos = min_posi_no_handicap;
-        initial_pos.turn_to_move = next_turn;
-        jint tmp_array[nsquare];
-        (*env)->GetIntArrayRegion(env, jarray, 0, nsquare, tmp_array);
-        for (int i = 0; i < nsquare; ++i) {
-            initial_pos.asquare[i] = tmp_array[i];
-        }
+                  total_think_time_secs, per_turn_think_time_secs, hash_mb);
 
-        fid = (*env)->GetFieldID(env, board_class, "mCapturedBlack", "I");
-        initial_pos.hand_black = (*env)->GetIntField(env, initial_board, fid);
-        fid = (*env)->GetFieldID(env, board_class, "mCapturedWhite", "I");
-        initial_pos.hand_white = (*env)->GetIntField(env, initial_board, fid);
+        if (SetHashSize(hash_mb) < 0) {
+            FillResult("Init", env, R_INITIALIZATION_ERROR, str_error,
+                       NULL, 0, NULL, result);
+            pthread_mutex_unlock(&g_lock);
+            return -1;
+        }
+        pthread_mutex_lock(&g_stats_lock);
+        memset(g_stats, 0, sizeof(g_stats));
+        memset(g_book_stats, 0, sizeof(g_book_stats));
+        pthread_mutex_unlock(&g_stats_lock);
+        book_nprobe = 0;
+        book_nhit = 0;
+        book_usec_total = 0;
+        book_usec_max = 0;
 
+        min_posi_t initial_pos;
+        ReadBoard(env, initial_board, next_turn, &initial_pos);
         if (ini_game(g_tree, &initial_pos, flag_history, NULL, NULL) < 0) {
             LOG_FATAL("Failed to initialize game: %s", str_error);
         }
         LOG_DEBUG("Initialized Bonanza successfully");
 
-        // Disable background thinking; we can't send a interrupt Bonanza
-        // in the middle of thinking otherwise.
-        //
-        // TODO(saito) I must be missing something. Enable background
-        // thinking.
         SetDifficulty(difficulty,
                       total_think_time_secs,
                       per_turn_think_time_secs);
-#ifdef TLP
-        tlp_max = numCores < TLP_MAX_THREADS ? numCores : TLP_MAX_THREADS;
-        LOG_DEBUG("cores %d", tlp_max);
-#endif
+        SetNumThreads(numCores);
     }
     FillResult("Init", env, R_OK, NULL, NULL, 0, g_tree, result);
     pthread_mutex_unlock(&g_lock);
@@ -417,12 +926,27 @@ static int AnotherInstanceStarted(JNIEnv *env,
     return 0;
 }
 
-void Java_mobi_omegacentauri_shogi_BonanzaJNI_humanMove(
+static void HumanMove(
         JNIEnv *env,
-        jclass unused_bonanza_class,
         jint instance_id,
         jstring jmove_str,
         jobject result) {
+    if (instance_id == g_instance_id) {
+        const char *tmp = (*env)->GetStringUTFChars(env, jmove_str, NULL);
+        CHECK(tmp != NULL);
+        MoveBuf reply;
+        snprintf(reply, sizeof(reply), "%s", tmp);
+        (*env)->ReleaseStringUTFChars(env, jmove_str, tmp);
+        if (SendPonderReply(reply)) {
+            // The ponder thread now searches for the computer's reply; its
+            // root is the position after the human's move.
+            LOG_DEBUG("Human: %s (ponder hit)", reply);
+            FillPosiResult("Human", env, R_OK, NULL, reply, g_ponder.move,
+                           &g_ponder.root, g_ponder.root_turn, result);
+            return;
+        }
+    }
+
     pthread_mutex_lock(&g_lock);
     if (AnotherInstanceStarted(env, instance_id, result)) {
         pthread_mutex_unlock(&g_lock);
@@ -462,22 +986,20 @@ void Java_mobi_omegacentauri_shogi_BonanzaJNI_humanMove(
     pthread_mutex_unlock(&g_lock);
 }
 
-void Java_mobi_omegacentauri_shogi_BonanzaJNI_undo(
+static void Undo(
         JNIEnv *env,
-        jclass unused_bonanza_class,
         jint instance_id,
         jint undo_cookie1,
         jint undo_cookie2,
         jobject result) {
     LOG_DEBUG("Undo request: %x %x", undo_cookie1, undo_cookie2);
+    StopPondering();
     pthread_mutex_lock(&g_lock);
     if (AnotherInstanceStarted(env, instance_id, result)) {
         pthread_mutex_unlock(&g_lock);
         return;
     }
 
-    MoveBuf move_str;
-    unsigned int move;
     //CHECK2_GE(undo_cookie1, 1, "Cookie: %x", undo_cookie1);
     unmake_move_root(g_tree);
     if (undo_cookie2 >= 0) {
@@ -488,38 +1010,83 @@ void Java_mobi_omegacentauri_shogi_BonanzaJNI_undo(
     pthread_mutex_unlock(&g_lock);
 }
 
-void Java_mobi_omegacentauri_shogi_BonanzaJNI_resetTime(
+static void ResetTime(
         JNIEnv *env,
-        jclass unused_bonanza_class,
         jint btime,
         jint wtime) {
+    StopPondering();
     pthread_mutex_lock(&g_lock);
     reset_time((int)btime, (int)wtime);
     pthread_mutex_unlock(&g_lock);
     LOG_DEBUG("Reset time: %d %d", (int)btime, (int)wtime);
 }
 
-void Java_mobi_omegacentauri_shogi_BonanzaJNI_computerMove(
+// "time_ms" and "max_nodes" cap the search on top of the limits set by
+// SetDifficulty(); 0 means no cap. MoveNow("token") makes the move at once.
+// A ponder hit keeps searching under the deadline and the token, but not
+// the node budget, since its nodes include those of pondering.
+static void ComputerMove(
         JNIEnv *env,
-        jclass unused_bonanza_class,
         jint instance_id,
+        jint time_ms,
+        jlong max_nodes,
+        jint token,
         jobject result) {
     int status = R_OK;
+    unsigned int start_ms = 0;
+    get_elapsed(&start_ms);
+    g_move.start_ms = start_ms;
+    g_move.time_ms = time_ms > 0 ? (unsigned int) time_ms : 0;
+    g_move.token = token;
+    g_move.active = 1;
+    int pondered = JoinPonderHit();
     pthread_mutex_lock(&g_lock);
     if (AnotherInstanceStarted(env, instance_id, result)) {
+        g_move.active = 0;
         pthread_mutex_unlock(&g_lock);
         return;
     }
 
-    if (com_turn_start(g_tree, 0)<0) {
+    int iret;
+    uint64_t nodes;
+    unsigned int end_ms = start_ms;
+    if (pondered) {
+        iret = g_ponder.iret;
+        nodes = g_ponder.nodes;
+        get_elapsed(&end_ms);
+    } else {
+        // A book move leaves these alone.
+        g_tree->node_searched = 0;
+        iteration_depth = 0;
+        g_progress_env = env;
+        g_progress_last_ms = start_ms;
+        node_limit = max_nodes > 0 ? (uint64_t) max_nodes : UINT64_MAX;
+        iret = com_turn_start(g_tree, 0);
+        node_limit = UINT64_MAX;
+        g_progress_env = NULL;
+        get_elapsed(&end_ms);
+        nodes = g_tree->node_searched;
+        AddStats(g_tree, end_ms - start_ms);
+    }
+    g_move.active = 0;
+    if (token != 0 && g_stop_token == token) {
+        LOG_DEBUG("Comp: moved now after %ums", end_ms - start_ms);
+    }
+    // The allocation is logged by set_search_limit_time().
+    LOG_DEBUG("Comp time: used %ums, depth %d%s", end_ms - start_ms, iteration_depth,
+              (iteration_depth == 0 && nodes == 0) ? " (book)" : "");
+    (*env)->SetIntField(env, result, g_ids.result_search_depth, iteration_depth);
+    (*env)->SetLongField(env, result, g_ids.result_search_nodes, (jlong) nodes);
+    (*env)->SetIntField(env, result, g_ids.result_search_time_ms, end_ms - start_ms);
+    if (iret < 0) {
         if (str_error == str_king_hang) {
             status = R_NO_VALID_MOVE;
-            FillResult("Computer", env, status, NULL, NULL, NULL, g_tree, result);
+            FillResult("Computer", env, status, NULL, NULL, 0, g_tree, result);
             pthread_mutex_unlock(&g_lock);
             return;
         }
         status = R_FATAL_ERROR;
-        FillResult("Computer", env, status, str_error, NULL, NULL, g_tree, result);
+        FillResult("Computer", env, status, str_error, NULL, 0, g_tree, result);
         pthread_mutex_unlock(&g_lock);
         return;
     }
@@ -534,12 +1101,463 @@ void Java_mobi_omegacentauri_shogi_BonanzaJNI_computerMove(
     }
     status = GameStatusToReturnCode();
     FillResult("Computer", env, status, NULL, move_str, move, g_tree, result);
+    if (status == R_OK) StartPondering();
     pthread_mutex_unlock(&g_lock);
 }
 
-void Java_mobi_omegacentauri_shogi_BonanzaJNI_abort(
-        JNIEnv *env,
-        jclass unused_bonanza_class) {
+static void Abort(
+        JNIEnv *env) {
     LOG_DEBUG("Aborting the game");
+    pthread_mutex_lock(&g_ponder.lock);
+    g_ponder.request = PONDER_STOP;
+    pthread_mutex_unlock(&g_ponder.lock);
+    g_analysis.cancelled = 1;
     root_abort = 1;
 }
+
+// Make the ComputerMove() or Analyze() call with "token" return what it
+// found so far, whether it is running or yet to start. Any thread.
+static void MoveNow(
+        JNIEnv *env,
+        jint token) {
+    LOG_DEBUG("Move now: %d", token);
+    g_stop_token = token;
+}
+
+static void SetPondering(
+        JNIEnv *env,
+        jboolean enable) {
+    if (!enable) StopPondering();
+    pthread_mutex_lock(&g_lock);
+    pthread_mutex_lock(&g_ponder.lock);
+    g_ponder.enabled = enable;
+    pthread_mutex_unlock(&g_ponder.lock);
+    if (g_initialized && g_initialization_error == NULL) {
+        RunCommand(enable ? "ponder on" : "ponder off");
+    }
+    pthread_mutex_unlock(&g_lock);
+}
+
+static void StopPonderingFromJava(
+        JNIEnv *env) {
+    StopPondering();
+}
+
+static void GetPonderStats(
+        JNIEnv *env,
+        jlongArray stats) {
+    jlong tmp[4];
+    pthread_mutex_lock(&g_ponder.lock);
+    memcpy(tmp, g_ponder_stats, sizeof(tmp));
+    pthread_mutex_unlock(&g_ponder.lock);
+    jsize n = (*env)->GetArrayLength(env, stats);
+    (*env)->SetLongArrayRegion(env, stats, 0, n < 4 ? n : 4, tmp);
+}
+
+static void GetStats(
+        JNIEnv *env,
+        jlongArray stats) {
+    jlong tmp[NUM_STATS];
+    pthread_mutex_lock(&g_stats_lock);
+    memcpy(tmp, g_stats, sizeof(g_stats));
+    pthread_mutex_unlock(&g_stats_lock);
+    tmp[STAT_NPS] = tmp[STAT_SEARCH_MS] > 0 ?
+        tmp[STAT_NODES] * 1000 / tmp[STAT_SEARCH_MS] : 0;
+#ifdef TLP
+    tmp[STAT_THREADS] = tlp_max;
+#else
+    tmp[STAT_THREADS] = 1;
+#endif
+    jsize n = (*env)->GetArrayLength(env, stats);
+    (*env)->SetLongArrayRegion(env, stats, 0, n < NUM_STATS ? n : NUM_STATS, tmp);
+}
+
+static void GetHashStats(
+        JNIEnv *env,
+        jlongArray stats) {
+    jlong tmp[5];
+    pthread_mutex_lock(&g_stats_lock);
+    tmp[0] = g_stats[STAT_HASH_PROBES];
+    tmp[1] = g_stats[STAT_HASH_HITS];
+    tmp[2] = g_stats[STAT_HASH_CUTOFFS];
+    tmp[3] = g_stats[STAT_HASH_OVERWRITES];
+    pthread_mutex_unlock(&g_stats_lock);
+    tmp[4] = (jlong) sizeof(trans_table_t) << log2_ntrans_table;
+    jsize n = (*env)->GetArrayLength(env, stats);
+    (*env)->SetLongArrayRegion(env, stats, 0, n < 5 ? n : 5, tmp);
+}
+
+static void GetBookStats(
+        JNIEnv *env,
+        jlongArray stats) {
+    // Pondering holds g_lock between moves, so read the copy made by
+    // AddStats() rather than wait for it.
+    jlong tmp[5];
+    pthread_mutex_lock(&g_stats_lock);
+    memcpy(tmp, g_book_stats, sizeof(g_book_stats));
+    pthread_mutex_unlock(&g_stats_lock);
+    tmp[4] = pf_book != NULL;
+    jsize n = (*env)->GetArrayLength(env, stats);
+    (*env)->SetLongArrayRegion(env, stats, 0, n < 5 ? n : 5, tmp);
+}
+
+static void FillAnalysis(JNIEnv *env,
+                         int status,
+                         const char *error,
+                         int complete,
+                         jobject result) {
+    (*env)->SetIntField(env, result, g_ids.analysis_status, status);
+    if (error != NULL) {
+        (*env)->SetObjectField(env, result, g_ids.analysis_error,
+                               (*env)->NewStringUTF(env, error));
+    }
+    (*env)->SetBooleanField(env, result, g_ids.analysis_complete, complete);
+}
+
+// Append a line to the Analysis "result" unless it is full. "score" is from
+// the point of view of the player to move.
+static void AddAnalysisLine(JNIEnv *env, jint score, jint depth,
+                            const pv_t *pv, jobject result) {
+    jint n = (*env)->GetIntField(env, result, g_ids.analysis_num_lines);
+    jintArray scores = (jintArray) (*env)->GetObjectField(env, result, g_ids.analysis_scores);
+    jintArray depths = (jintArray) (*env)->GetObjectField(env, result, g_ids.analysis_depths);
+    jobjectArray pvs = (jobjectArray) (*env)->GetObjectField(env, result, g_ids.analysis_pvs);
+    if (n < (*env)->GetArrayLength(env, scores)) {
+        char buf[ANALYSIS_PV_MAX * 8 + 1];
+        FormatPv(pv, ANALYSIS_PV_MAX, buf, sizeof(buf));
+        jstring jpv = (*env)->NewStringUTF(env, buf);
+        (*env)->SetIntArrayRegion(env, scores, n, 1, &score);
+        (*env)->SetIntArrayRegion(env, depths, n, 1, &depth);
+        (*env)->SetObjectArrayElement(env, pvs, n, jpv);
+        (*env)->DeleteLocalRef(env, jpv);
+        (*env)->SetIntField(env, result, g_ids.analysis_num_lines, n + 1);
+    }
+    (*env)->DeleteLocalRef(env, scores);
+    (*env)->DeleteLocalRef(env, depths);
+    (*env)->DeleteLocalRef(env, pvs);
+}
+
+// Search "board" with "turn" to move until "time_ms" or "max_nodes" is used
+// up, and fill "result" with the best moves. This replaces the game on this
+// engine, if any.
+static void Analyze(
+        JNIEnv *env,
+        jobject board,
+        jint turn,
+        jint num_threads,
+        jint time_ms,
+        jlong max_nodes,
+        jint token,
+        jobject result) {
+    StopPondering();
+    pthread_mutex_lock(&g_lock);
+    (*env)->SetIntField(env, result, g_ids.analysis_num_lines, 0);
+    if (!g_initialized) {
+        FillAnalysis(env, R_INITIALIZATION_ERROR, "Bonanza not yet initialized", 0, result);
+        pthread_mutex_unlock(&g_lock);
+        return;
+    }
+    if (g_initialization_error != NULL) {
+        FillAnalysis(env, R_INITIALIZATION_ERROR, g_initialization_error, 0, result);
+        pthread_mutex_unlock(&g_lock);
+        return;
+    }
+    ++g_instance_id;  // The game on this engine is gone.
+
+    min_posi_t pos;
+    ReadBoard(env, board, turn, &pos);
+    if (ini_game(g_tree, &pos, flag_history, NULL, NULL) < 0) {
+        FillAnalysis(env, R_FATAL_ERROR, str_error, 0, result);
+        pthread_mutex_unlock(&g_lock);
+        return;
+    }
+    jintArray scores = (jintArray) (*env)->GetObjectField(env, result, g_ids.analysis_scores);
+    int num_pv = (*env)->GetArrayLength(env, scores);
+    (*env)->DeleteLocalRef(env, scores);
+    if (num_pv < 1) num_pv = 1;
+    if (num_pv > MPV_MAX_PV) num_pv = MPV_MAX_PV;
+    LOG_DEBUG("Analyze: %d lines, %d threads, %dms, %lld nodes",
+              num_pv, num_threads, time_ms, (long long) max_nodes);
+
+    // Search to the budget alone: no book, no depth limit, no time
+    // control. StartGame() sets all of these again.
+    FILE *book = pf_book;
+    pf_book = NULL;
+    depth_limit = PLY_MAX;
+    sec_limit_up = UINT_MAX;
+    set_search_limit_time(root_turn);  // drops the limits of the last move
+    node_limit = max_nodes > 0 ? (uint64_t) max_nodes : UINT64_MAX;
+    mpv_num = num_pv;
+    SetNumThreads(num_threads);
+
+    get_elapsed(&time_turn_start);
+    time_start = time_turn_start;
+    g_analysis.start_ms = time_start;
+    g_analysis.time_ms = time_ms;
+    g_analysis.cancelled = 0;
+    g_analysis.token = token;
+    g_analysis.active = 1;
+    g_progress_env = env;
+    g_progress_last_ms = time_start;
+    game_status |= flag_thinking;
+    int iret = iterate(g_tree);
+    game_status &= ~flag_thinking;
+    unsigned int end_ms = time_start;
+    get_elapsed(&end_ms);
+    AddStats(g_tree, end_ms - time_start);
+    g_progress_env = NULL;
+    g_analysis.active = 0;
+
+    pf_book = book;
+    node_limit = UINT64_MAX;
+    mpv_num = 1;
+
+    if (iret < 0) {
+        if (str_error == str_no_legal_move) {
+            FillAnalysis(env, R_NO_VALID_MOVE, NULL, 1, result);
+        } else {
+            FillAnalysis(env, R_FATAL_ERROR, str_error, 0, result);
+        }
+        pthread_mutex_unlock(&g_lock);
+        return;
+    }
+
+    // mpv_pv is sorted by score, but it may mix lines of the last two
+    // iterations. List the lines of the deepest one first.
+    int max_depth = 0;
+    if (num_pv > 1) {
+        for (int i = 0; mpv_pv[i].length; ++i) {
+            if (mpv_pv[i].depth > max_depth) max_depth = mpv_pv[i].depth;
+        }
+        for (int i = 0; mpv_pv[i].length; ++i) {
+            if (mpv_pv[i].depth == max_depth) {
+                AddAnalysisLine(env, (int) mpv_pv[i].a[0] - 32768,
+                                mpv_pv[i].depth, &mpv_pv[i], result);
+            }
+        }
+        for (int i = 0; mpv_pv[i].length; ++i) {
+            if (mpv_pv[i].depth != max_depth) {
+                AddAnalysisLine(env, (int) mpv_pv[i].a[0] - 32768,
+                                mpv_pv[i].depth, &mpv_pv[i], result);
+            }
+        }
+    }
+    // A single line, or a search that ended before the multi-PV one, e.g.,
+    // with a single legal move.
+    if ((*env)->GetIntField(env, result, g_ids.analysis_num_lines) == 0 &&
+        g_tree->pv[0].length > 0) {
+        AddAnalysisLine(env, root_value, g_tree->pv[0].depth, &g_tree->pv[0], result);
+    }
+    int stopped = g_analysis.cancelled || (token != 0 && g_stop_token == token);
+    FillAnalysis(env, R_OK, NULL, !stopped, result);
+    pthread_mutex_unlock(&g_lock);
+}
+
+// Positions of Bench(), in SFEN: the start, openings and middle games of
+// a self-play game, its endgame, and a tsume-like attack. Don't change
+// them; the node counts at one thread are a signature of the search.
+static const char *const kBenchPositions[] = {
+    "lnsgkgsnl/1r5b1/ppppppppp/9/9/9/PPPPPPPPP/1B5R1/LNSGKGSNL b - 1",
+    "ln1g1k1nl/1r1s1sgb1/p2p1p1pp/1pp1p1p2/9/2PPP4/PP3PPPP/1BGSGS1R1/LN1K3NL b - 17",
+    "ln3k1nl/3sg1gs1/2ppppbpp/pr4p2/9/P1P3S2/1P1PPPP1P/1BG1G2R1/LNSK3NL b Pp 31",
+    "ln1s1k1nl/4g1gs1/3p1pbpp/prp6/4pSp2/P1PP5/1P2PPP1P/1BG4RL/LNSK2GN1 b Pp 61",
+    "l1s3bnl/4k1g2/2n4pp/prp2p3/3Pp1p2/P1P2S3/1P2PPP1P/2G4RL/LNSK2GN1 b G2Pbsp 121",
+    "l1s1n1bnl/4k1bg1/8p/p1p1pSGp1/3S2p2/P3R4/3GPPP1P/3PK1G1L/+r6N1 b SN3Pl3p 151",
+    "l1s1+N1bnl/3g5/2k2Sg1p/p1p3np1/6p2/P3+R2sP/3GPPP2/3PKG2L/4SNb+r1 b L4P3p 181",
+    "l1s1+N1b+Ll/1k1g5/3p1+R2p/p1p3gp1/3N2ps1/P6sP/2G1PPP2/3PKs2L/5+r3 b GN4Pbn2p 201",
+    "l1k4+Ll/2+SP5/5g2p/p1+NK2gp1/1bn3ps1/PNP1+s2sP/+b1+r2PP2/8L/9 w 3Pr2gn5p 236",
+    "7nl/7k1/6ppp/9/9/9/9/9/K8 b GS2N 1",
+};
+#define NUM_BENCH_POSITIONS ((int) (sizeof(kBenchPositions) / sizeof(kBenchPositions[0])))
+
+// The size of the transposition table of Bench(), so that the node counts
+// don't depend on the device.
+#define BENCH_HASH_MB 16
+
+// Indices into the array filled by Bench(); see BonanzaJNI.BENCH_XXX.
+#define BENCH_NODES 0
+#define BENCH_TIME_MS 1
+#define BENCH_NPS 2
+#define BENCH_POSITIONS 3
+#define BENCH_POSITION_NODES 4  // One entry per position from here on
+
+// Read the SFEN "sfen" into "pos". Returns -1 if it is malformed.
+static int ReadSfen(const char *sfen, min_posi_t *pos) {
+    static const char kPieces[] = " PLNSGBRK";
+    static const unsigned int kHandFlags[] = {
+        0, flag_hand_pawn, flag_hand_lance, flag_hand_knight, flag_hand_silver,
+        flag_hand_gold, flag_hand_bishop, flag_hand_rook,
+    };
+    const char *p = sfen;
+    int sq = 0;
+
+    memset(pos, 0, sizeof(*pos));
+    for (; *p != ' '; ++p) {
+        if (*p == '/') continue;
+        if ('1' <= *p && *p <= '9') {
+            sq += *p - '0';
+            continue;
+        }
+        int promoted = *p == '+';
+        if (promoted) ++p;
+        const char *c = *p ? strchr(kPieces, toupper(*p)) : NULL;
+        if (c == NULL || c == kPieces || sq >= nsquare) return -1;
+        int piece = (int) (c - kPieces) + (promoted ? promote : 0);
+        pos->asquare[sq++] = (signed char) (isupper(*p) ? piece : -piece);
+    }
+    if (sq != nsquare) return -1;
+    ++p;
+    pos->turn_to_move = *p++ == 'w' ? white : black;
+    if (*p++ != ' ') return -1;
+    for (int n = 0; *p != ' ' && *p != '\0'; ++p) {
+        if (*p == '-') continue;
+        if (isdigit(*p)) {
+            n = n * 10 + (*p - '0');
+            continue;
+        }
+        const char *c = strchr(kPieces, toupper(*p));
+        if (c == NULL || c == kPieces || *c == 'K') return -1;
+        unsigned int hand = kHandFlags[c - kPieces] * (n > 0 ? n : 1);
+        if (isupper(*p)) pos->hand_black += hand;
+        else pos->hand_white += hand;
+        n = 0;
+    }
+    return 1;
+}
+
+// Search each of kBenchPositions to "depth" with "num_threads" threads,
+// from an empty transposition table of BENCH_HASH_MB, and fill "stats".
+// Like Analyze(), this ends the game on the engine. The table gets its
+// previous size back afterwards.
+static jint Bench(
+        JNIEnv *env,
+        jint depth,
+        jint num_threads,
+        jlongArray stats) {
+    StopPondering();
+    pthread_mutex_lock(&g_lock);
+    if (!g_initialized || g_initialization_error != NULL) {
+        pthread_mutex_unlock(&g_lock);
+        return R_INITIALIZATION_ERROR;
+    }
+    ++g_instance_id;
+    // Else a later StartGame() with hash_mb 0 would keep BENCH_HASH_MB.
+    const int log2_hash = log2_ntrans_table;
+    if (SetHashSize(BENCH_HASH_MB) < 0) {
+        ResizeHashTable(log2_hash);
+        pthread_mutex_unlock(&g_lock);
+        return R_INITIALIZATION_ERROR;
+    }
+    LOG_DEBUG("Bench: depth %d, %d threads", depth, num_threads);
+
+    // StartGame() sets all of these again.
+    FILE *book = pf_book;
+    pf_book = NULL;
+    depth_limit = depth;
+    sec_limit_up = UINT_MAX;
+    node_limit = UINT64_MAX;
+    mpv_num = 1;
+    SetNumThreads(num_threads);
+
+    jlong tmp[BENCH_POSITION_NODES + NUM_BENCH_POSITIONS];
+    memset(tmp, 0, sizeof(tmp));
+    int status = R_OK;
+    for (int i = 0; i < NUM_BENCH_POSITIONS && status == R_OK; ++i) {
+        min_posi_t pos;
+        if (ReadSfen(kBenchPositions[i], &pos) < 0) {
+            LOG_DEBUG("Bad bench position %d", i);
+            status = R_FATAL_ERROR;
+            break;
+        }
+        if (clear_trans_table() < 0 || ini_game(g_tree, &pos, 0, NULL, NULL) < 0) {
+            status = R_FATAL_ERROR;
+            break;
+        }
+        set_search_limit_time(root_turn);
+        get_elapsed(&time_turn_start);
+        time_start = time_turn_start;
+        game_status |= flag_thinking;
+        if (iterate(g_tree) < 0) status = R_FATAL_ERROR;
+        game_status &= ~flag_thinking;
+        unsigned int end_ms = time_start;
+        get_elapsed(&end_ms);
+        tmp[BENCH_POSITION_NODES + i] = (jlong) g_tree->node_searched;
+        tmp[BENCH_NODES] += (jlong) g_tree->node_searched;
+        tmp[BENCH_TIME_MS] += end_ms - time_start;
+        tmp[BENCH_POSITIONS] = i + 1;
+        AddStats(g_tree, end_ms - time_start);
+    }
+    if (status != R_OK) LOG_DEBUG("Bench failed: %s", str_error);
+
+    pf_book = book;
+    depth_limit = PLY_MAX;
+    if (ResizeHashTable(log2_hash) < 0) status = R_FATAL_ERROR;
+    tmp[BENCH_NPS] = tmp[BENCH_TIME_MS] > 0 ?
+        tmp[BENCH_NODES] * 1000 / tmp[BENCH_TIME_MS] : 0;
+    jsize n = (*env)->GetArrayLength(env, stats);
+    jsize num_stats = BENCH_POSITION_NODES + NUM_BENCH_POSITIONS;
+    (*env)->SetLongArrayRegion(env, stats, 0, n < num_stats ? n : num_stats, tmp);
+    LOG_DEBUG("Bench: %lld nodes, %lldms, %lld nps",
+              (long long) tmp[BENCH_NODES], (long long) tmp[BENCH_TIME_MS],
+              (long long) tmp[BENCH_NPS]);
+    pthread_mutex_unlock(&g_lock);
+    return status;
+}
+
+// The board transfer of the pre-JNI_OnLoad code: reflective lookups on
+// every call and a copy through a temporary array. Kept only as the
+// baseline of benchmarkFill().
+static void FillBoardUncached(JNIEnv *env, tree_t *ptree, jobject result) {
+    jclass result_class = (*env)->GetObjectClass(env, result);
+    jfieldID fid = (*env)->GetFieldID(env, result_class,
+                                      "board", "Lmobi/omegacentauri/shogi/Board;");
+    jobject board = (*env)->GetObjectField(env, result, fid);
+    jclass board_class = (*env)->GetObjectClass(env, board);
+    fid = (*env)->GetFieldID(env, board_class, "mSquares", "[I");
+    jintArray jarray = (jintArray) ((*env)->GetObjectField(env, board, fid));
+    jint tmp[nsquare];
+    for (int i = 0; i < nsquare; ++i) {
+        tmp[i] = BOARD[i];
+    }
+    (*env)->SetIntArrayRegion(env, jarray, 0, nsquare, tmp);
+    fid = (*env)->GetFieldID(env, board_class, "mCapturedBlack", "I");
+    (*env)->SetIntField(env, board, fid, HAND_B);
+    fid = (*env)->GetFieldID(env, board_class, "mCapturedWhite", "I");
+    (*env)->SetIntField(env, board, fid, HAND_W);
+}
+
+static void BenchmarkFill(
+        JNIEnv *env,
+        jint mode,
+        jobject result) {
+    pthread_mutex_lock(&g_lock);
+    if (g_initialized && g_initialization_error == NULL) {
+        tree_t *restrict ptree = g_tree;
+        if (mode == 0) {
+            FillBoardUncached(env, ptree, result);
+        } else {
+            FillResult("Bench", env, R_OK, NULL, NULL, 0, ptree, result);
+        }
+    }
+    pthread_mutex_unlock(&g_lock);
+}
+
+static const struct bonanza_engine kEngine = {
+    .initialize = Initialize,
+    .start_game = StartGame,
+    .reset_time = ResetTime,
+    .human_move = HumanMove,
+    .computer_move = ComputerMove,
+    .undo = Undo,
+    .abort = Abort,
+    .move_now = MoveNow,
+    .set_pondering = SetPondering,
+    .stop_pondering = StopPonderingFromJava,
+    .get_ponder_stats = GetPonderStats,
+    .get_hash_stats = GetHashStats,
+    .get_book_stats = GetBookStats,
+    .get_stats = GetStats,
+    .benchmark_fill = BenchmarkFill,
+    .analyze = Analyze,
+    .bench = Bench,
+};
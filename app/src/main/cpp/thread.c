@@ -471,6 +471,7 @@ tlp_split( tree_t * restrict ptree )
   
   tlp_nsplit += 1;
   tlp_idle   += 1;
+  tlp_nsplit_thread[ ptree->tlp_id ] += 1U;
 
   unlock( &tlp_lock );
   
@@ -553,14 +554,22 @@ static void *start_address( void *arg )
 }
 
 
+/*
+  tlp_usec_wait[] is the time a thread waited for the helpers of its own
+  split, and tlp_usec_busy[] the time a helper searched a split of
+  another thread. Together with the length of the search they give the
+  idle time of each thread.
+*/
 static void
 wait_work( int tid, tree_t *parent )
 {
   tree_t *slot;
+  unsigned int usec;
   int value;
 
   for ( ;; ) {
 
+    usec = get_elapsed_usec();
     for ( ;; ) {
       if ( tlp_ptrees[tid] )                  { break; }
       if ( parent && ! parent->tlp_nsibling ) { break; }
@@ -568,6 +577,7 @@ wait_work( int tid, tree_t *parent )
 
       tlp_yield();
     }
+    if ( parent ) { tlp_usec_wait[tid] += get_elapsed_usec() - usec; }
 
     lock( &tlp_lock );
     if ( ! tlp_ptrees[tid] ) { tlp_ptrees[tid] = parent; }
@@ -577,6 +587,7 @@ wait_work( int tid, tree_t *parent )
     slot = tlp_ptrees[tid];
     if ( slot == parent ) { return; }
 
+    usec  = get_elapsed_usec();
     value = tlp_search( slot,
 			slot->tlp_ptree_parent->tlp_best,
 			slot->tlp_ptree_parent->tlp_beta,
@@ -584,6 +595,7 @@ wait_work( int tid, tree_t *parent )
 			slot->tlp_ptree_parent->tlp_depth,
 			slot->tlp_ptree_parent->tlp_ply,
 			slot->tlp_ptree_parent->tlp_state_node );
+    if ( ! parent ) { tlp_usec_busy[tid] += get_elapsed_usec() - usec; }
     
     lock( &tlp_lock );
     copy_state( slot->tlp_ptree_parent, slot, value );
@@ -636,6 +648,9 @@ init_state( const tree_t * restrict parent, tree_t * restrict child )
   child->ntrans_upper          = 0;
   child->ntrans_superior_hit   = 0;
   child->ntrans_inferior_hit   = 0;
+  child->ntrans_overwrite      = 0;
+  child->nmate1ply_called      = 0;
+  child->nmate3_called         = 0;
   child->fail_high             = 0;
   child->fail_high_first       = 0;
   ply = parent->tlp_ply;
@@ -698,6 +713,9 @@ copy_state( tree_t * restrict parent, const tree_t * restrict child,
   parent->ntrans_upper         += child->ntrans_upper;
   parent->ntrans_superior_hit  += child->ntrans_superior_hit;
   parent->ntrans_inferior_hit  += child->ntrans_inferior_hit;
+  parent->ntrans_overwrite     += child->ntrans_overwrite;
+  parent->nmate1ply_called     += child->nmate1ply_called;
+  parent->nmate3_called        += child->nmate3_called;
   parent->fail_high_first      += child->fail_high_first;
   parent->fail_high            += child->fail_high;
 
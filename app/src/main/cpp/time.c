@@ -1,5 +1,6 @@
 #include <limits.h>
 #include <assert.h>
+#include <string.h>
 #if ! defined(_WIN32)
 #  include <sys/time.h>
 #  include <time.h>
@@ -8,6 +9,8 @@
 #include "shogi_jni.h"
 #include <errno.h>
 
+static unsigned int CONV scale_by_phase( unsigned int u0,
+					 const char **pphase );
 
 void CONV
 set_search_limit_time( int turn )
@@ -38,9 +41,11 @@ set_search_limit_time( int turn )
     sec_left        time left for the side in seconds
     u0              tentative deadline for searching in second
     u1              maximum allowed time to search in second
+    phase           how the game phase and book status scaled u0
 */
 {
-  unsigned int u0, u1;
+  unsigned int u0, u1, sec_left;
+  const char *phase;
 
   /* no time-control */
   if ( sec_limit_up == UINT_MAX || ( game_status & flag_pondering ) )
@@ -58,6 +63,9 @@ set_search_limit_time( int turn )
     }
 #endif
 
+  phase    = "fixed";
+  sec_left = 0;
+
   /* not punctual to the time */
   if ( ! sec_limit && ( game_status & flag_time_extendable ) )
     {
@@ -67,7 +75,7 @@ set_search_limit_time( int turn )
   /* have byo-yomi */
   else if ( sec_limit_up )
     {
-      unsigned int umax, umin, sec_elapsed, sec_left;
+      unsigned int umax, umin, sec_elapsed;
 
       sec_elapsed = turn ? sec_w_total : sec_b_total;
       sec_left    = ( sec_elapsed <= sec_limit ) ? sec_limit - sec_elapsed : 0;
@@ -81,7 +89,8 @@ set_search_limit_time( int turn )
 
       /* 'byo-yomi' is so long that the ordinary time-limit is negligible. */
       if ( u0 < sec_limit_up * 5U ) { u0 = sec_limit_up * 5U; }
-    
+
+      u0 = scale_by_phase( u0, &phase );
       u1 = u0 * 5U;
 
       umax = sec_left + sec_limit_up;
@@ -94,7 +103,7 @@ set_search_limit_time( int turn )
     }
   /* no byo-yomi */
   else {
-    unsigned int sec_elapsed, sec_left;
+    unsigned int sec_elapsed;
     
     sec_elapsed = turn ? sec_w_total : sec_b_total;
 
@@ -103,6 +112,7 @@ set_search_limit_time( int turn )
       {
 	sec_left = sec_limit - sec_elapsed;
 	u0       = ( sec_left + ( TC_NMOVE / 2U ) ) / TC_NMOVE;
+	u0       = scale_by_phase( u0, &phase );
 	
 	/* t = 2s is not beneficial since 2.8s is almost the same as 1.8s. */
 	/* So that, we rather want to save the time.                       */
@@ -123,6 +133,119 @@ set_search_limit_time( int turn )
     }
 
   Out( "- time ctrl: %u -- %u\n", time_limit, time_max_limit );
+  if ( ! ( game_status & flag_puzzling ) )
+    {
+      LOG_DEBUG( "time: ply %u %c, %us left, %s, limit %ums, max %ums",
+		 record_game.moves, ach_turn[turn], sec_left, phase,
+		 time_limit, time_max_limit );
+    }
+}
+
+
+/*
+  Scale the share u0 of the remaining time by the game phase: the opening
+  is mostly known ground, the middle game decides most games, and the
+  first move out of the opening book meets a new position. The book
+  status is consumed here, so that only one search gets the bonus.
+*/
+static unsigned int CONV
+scale_by_phase( unsigned int u0, const char **pphase )
+{
+  unsigned int percent;
+
+  if ( game_status & flag_puzzling ) { return u0; }
+
+  if ( time_book_hit )
+    {
+      *pphase  = "out of book";
+      percent  = 150U;
+      time_book_hit = 0;
+    }
+  else if ( record_game.moves < TC_OPENING_PLY )
+    {
+      *pphase = "opening";
+      percent = 70U;
+    }
+  else if ( record_game.moves < TC_ENDGAME_PLY )
+    {
+      *pphase = "middle game";
+      percent = 120U;
+    }
+  else {
+    *pphase = "endgame";
+    percent = 100U;
+  }
+
+  return ( u0 * percent + 50U ) / 100U;
+}
+
+
+/*
+  Called by iterate() after each completed iteration with the best move
+  and its value, from the side to move, to follow how stable the search
+  result is. A new best move counts twice as much as a drop of the value.
+*/
+void CONV
+time_iteration_done( unsigned int move, int value )
+{
+  if ( ! time_iter_move || iteration_depth < 5 ) { ; }
+  else if ( move != time_iter_move )
+    {
+      time_nunstable += 2;
+      time_nstable    = 0;
+    }
+  else if ( value + MT_CAP_DRAGON / 8 < time_iter_value )
+    {
+      time_nunstable += 1;
+      time_nstable    = 0;
+    }
+  else {
+    if ( time_nunstable ) { time_nunstable -= 1; }
+    time_nstable += 1;
+  }
+
+  if ( time_nunstable > TC_NUNSTABLE_MAX ) { time_nunstable = TC_NUNSTABLE_MAX; }
+  time_iter_move  = move;
+  time_iter_value = value;
+}
+
+
+/*
+  Return the deadline that a stable search stops at, in place of tlimit:
+  later while the best move or its value keeps changing, up to half way
+  to tmax, and earlier once it has held for TC_NSTABLE iterations.
+*/
+unsigned int CONV
+time_soft_limit( unsigned int tlimit, unsigned int tmax )
+{
+  if ( tlimit == UINT_MAX || tmax <= tlimit
+       || ( game_status & flag_puzzling ) ) { return tlimit; }
+
+  if ( time_nunstable )
+    {
+      return tlimit + ( ( tmax - tlimit ) / ( 2U * TC_NUNSTABLE_MAX ) )
+	* (unsigned int)time_nunstable;
+    }
+
+  if ( time_nstable >= TC_NSTABLE ) { return tlimit - tlimit / 4U; }
+
+  return tlimit;
+}
+
+
+/*
+  Return non-zero if move takes back the piece that the last move of the
+  opponent captured with.
+*/
+int CONV
+time_is_recapture( unsigned int move )
+{
+  unsigned int last = amove_save[NUM_UNMAKE-1];
+
+  return ( last != MOVE_NA
+	   && UToCap(last)
+	   && UToCap(move)
+	   && I2To(move) == I2To(last) );
 }
 
 
@@ -310,3 +433,25 @@ get_elapsed( unsigned int *ptime )
 
   return 1;
 }
+
+
+/* Microseconds that wrap every 71 minutes, for short intervals only. */
+unsigned int CONV
+get_elapsed_usec( void )
+{
+#if defined(_WIN32)
+  FILETIME       FileTime;
+  ULARGE_INTEGER uli_temp;
+
+  GetSystemTimeAsFileTime( &FileTime );
+  uli_temp.LowPart  = FileTime.dwLowDateTime;
+  uli_temp.HighPart = FileTime.dwHighDateTime;
+  return (unsigned int)( uli_temp.QuadPart / 10U );
+#else
+  struct timeval timeval;
+
+  if ( gettimeofday( &timeval, NULL ) == -1 ) { return 0; }
+  return (unsigned int)timeval.tv_sec * 1000000U
+    + (unsigned int)timeval.tv_usec;
+#endif
+}
@@ -180,6 +180,7 @@ ini_game( tree_t * restrict ptree, const min_posi_t *pmin_posi, int flag,
   sec_b_total     = 0;
   sec_w_total     = 0;
   sec_elapsed     = 0;
+  time_book_hit   = 0;
   last_root_value = 0;
   last_pv.depth   = 0;
   last_pv.length  = 0;
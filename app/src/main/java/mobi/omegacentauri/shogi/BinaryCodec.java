@@ -0,0 +1,115 @@
+package mobi.omegacentauri.shogi;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+
+/**
+ * Helpers for the compact binary encodings of Board, Play and GameLog
+ * (see their writeTo() and readFrom() methods).
+ * <p>
+ * Java serialization of these classes goes through Proxy, so Bundles,
+ * Intents and ExternalCacheManager entries also use the compact encoding.
+ */
+final class BinaryCodec {
+  private BinaryCodec() {}
+
+  // Version of the encodings. Written by Proxy and by the log summary in
+  // GameLogListManager. Bump it when any writeTo() changes, and keep the
+  // readFrom() methods able to read older versions.
+  static final int VERSION = 1;
+
+  // Write "v" using 7 bits per byte, low bits first. Small non-negative
+  // values take fewer bytes.
+  static void writeVarint(DataOutput out, long v) throws IOException {
+    while ((v & ~0x7fL) != 0) {
+      out.writeByte((int)((v & 0x7f) | 0x80));
+      v >>>= 7;
+    }
+    out.writeByte((int)v);
+  }
+
+  static long readVarint(DataInput in) throws IOException {
+    long v = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      final int b = in.readUnsignedByte();
+      v |= (long)(b & 0x7f) << shift;
+      if ((b & 0x80) == 0) return v;
+    }
+    throw new InvalidObjectException("Malformed varint");
+  }
+
+  // Like writeVarint(), but small negative values are short too.
+  static void writeSignedVarint(DataOutput out, long v) throws IOException {
+    writeVarint(out, (v << 1) ^ (v >> 63));
+  }
+
+  static long readSignedVarint(DataInput in) throws IOException {
+    final long v = readVarint(in);
+    return (v >>> 1) ^ -(v & 1);
+  }
+
+  static void checkVersion(int version) throws IOException {
+    if (version < 1 || version > VERSION) {
+      throw new InvalidObjectException("Unsupported encoding version: " + version);
+    }
+  }
+
+  /**
+   * The serialized form of Board, Play and GameLog, returned by their
+   * writeReplace() methods.
+   */
+  public static final class Proxy implements Externalizable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int BOARD = 0;
+    private static final int PLAY = 1;
+    private static final int GAME_LOG = 2;
+
+    private Object mObj;
+
+    // For Externalizable.
+    public Proxy() { }
+
+    Proxy(Object obj) { mObj = obj; }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+      out.writeByte(VERSION);
+      if (mObj instanceof Board) {
+        out.writeByte(BOARD);
+        ((Board)mObj).writeTo(out);
+      } else if (mObj instanceof Play) {
+        out.writeByte(PLAY);
+        ((Play)mObj).writeTo(out);
+      } else if (mObj instanceof GameLog) {
+        out.writeByte(GAME_LOG);
+        ((GameLog)mObj).writeTo(out);
+      } else {
+        throw new AssertionError("Unexpected object: " + mObj);
+      }
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+      final int version = in.readUnsignedByte();
+      checkVersion(version);
+      final int kind = in.readUnsignedByte();
+      if (kind == BOARD) {
+        mObj = Board.readFrom(in, version);
+      } else if (kind == PLAY) {
+        mObj = Play.readFrom(in, version);
+      } else if (kind == GAME_LOG) {
+        mObj = GameLog.readFrom(in, version);
+      } else {
+        throw new InvalidObjectException("Unknown object kind: " + kind);
+      }
+    }
+
+    private Object readResolve() { return mObj; }
+  }
+}
@@ -0,0 +1,118 @@
+package mobi.omegacentauri.shogi;
+
+/**
+ * Helpers for 81-square bit sets ("bitboards").
+ * <p>
+ * A set is stored as a pair of longs, usually at consecutive indices of a
+ * long[]: bit i of the first ("lo") word is square i for i in [0, 64), and
+ * bit i-64 of the second ("hi") word is square i for i in [64, 81). A square
+ * index is x + y * Board.DIM, the same as in Board.mSquares.
+ */
+final class Bitboard {
+  private Bitboard() {}
+
+  public static final int NUM_SQUARES = Board.DIM * Board.DIM;
+
+  public static final int square(int x, int y) { return x + y * Board.DIM; }
+  public static final int squareX(int sq) { return sq % Board.DIM; }
+  public static final int squareY(int sq) { return sq / Board.DIM; }
+
+  public static final long loBit(int sq) { return sq < 64 ? 1L << sq : 0; }
+  public static final long hiBit(int sq) { return sq < 64 ? 0 : 1L << (sq - 64); }
+
+  public static final boolean contains(long lo, long hi, int sq) {
+    return sq < 64 ? ((lo >>> sq) & 1) != 0 : ((hi >>> (sq - 64)) & 1) != 0;
+  }
+
+  public static final int count(long lo, long hi) {
+    return Long.bitCount(lo) + Long.bitCount(hi);
+  }
+
+  // Return the lowest (highest) square in the set, or -1 if the set is empty.
+  public static final int first(long lo, long hi) {
+    if (lo != 0) return Long.numberOfTrailingZeros(lo);
+    if (hi != 0) return 64 + Long.numberOfTrailingZeros(hi);
+    return -1;
+  }
+
+  public static final int last(long lo, long hi) {
+    if (hi != 0) return 127 - Long.numberOfLeadingZeros(hi);
+    if (lo != 0) return 63 - Long.numberOfLeadingZeros(lo);
+    return -1;
+  }
+
+  // Store the squares of <lo, hi> in "out", lowest first. Returns the number
+  // of squares stored. "out" must have room for count(lo, hi) entries.
+  public static final int toSquares(long lo, long hi, int[] out) {
+    int n = 0;
+    while (lo != 0) {
+      out[n++] = Long.numberOfTrailingZeros(lo);
+      lo &= lo - 1;
+    }
+    while (hi != 0) {
+      out[n++] = 64 + Long.numberOfTrailingZeros(hi);
+      hi &= hi - 1;
+    }
+    return n;
+  }
+
+  //
+  // Sliding directions. The deltas are from Player.BLACK's point of view,
+  // i.e., dy < 0 moves toward the top of the board.
+  //
+  public static final int NUM_DIRS = 8;
+  static final int[] DIR_DX = { 0, 0, -1, 1, -1, 1, -1, 1 };
+  static final int[] DIR_DY = { -1, 1, 0, 0, -1, -1, 1, 1 };
+
+  // Return the direction index for <dx, dy>, or -1 if it's not a unit step.
+  static final int direction(int dx, int dy) {
+    for (int d = 0; d < NUM_DIRS; ++d) {
+      if (DIR_DX[d] == dx && DIR_DY[d] == dy) return d;
+    }
+    return -1;
+  }
+
+  // True if walking in direction d increases the square index.
+  private static final boolean isIncreasing(int d) {
+    return DIR_DY[d] > 0 || (DIR_DY[d] == 0 && DIR_DX[d] > 0);
+  }
+
+  // RAYS[d][sq * 2], RAYS[d][sq * 2 + 1] is the set of squares strictly
+  // beyond sq in direction d, up to the edge of the board.
+  private static final long[][] RAYS = new long[NUM_DIRS][NUM_SQUARES * 2];
+  static {
+    for (int d = 0; d < NUM_DIRS; ++d) {
+      for (int sq = 0; sq < NUM_SQUARES; ++sq) {
+        int x = squareX(sq) + DIR_DX[d];
+        int y = squareY(sq) + DIR_DY[d];
+        while (x >= 0 && x < Board.DIM && y >= 0 && y < Board.DIM) {
+          final int t = square(x, y);
+          RAYS[d][sq * 2] |= loBit(t);
+          RAYS[d][sq * 2 + 1] |= hiBit(t);
+          x += DIR_DX[d];
+          y += DIR_DY[d];
+        }
+      }
+    }
+  }
+
+  /**
+   * OR into out[i], out[i + 1] the squares a slider at "sq" reaches in
+   * direction "d" given the occupancy <occLo, occHi>. The ray stops at, and
+   * includes, the first occupied square.
+   */
+  public static final void orSlide(int d, int sq, long occLo, long occHi,
+                                   long[] out, int i) {
+    final long[] ray = RAYS[d];
+    long lo = ray[sq * 2];
+    long hi = ray[sq * 2 + 1];
+    final int blocker = isIncreasing(d) ?
+        first(lo & occLo, hi & occHi) : last(lo & occLo, hi & occHi);
+    if (blocker >= 0) {
+      lo &= ~ray[blocker * 2];
+      hi &= ~ray[blocker * 2 + 1];
+    }
+    out[i] |= lo;
+    out[i + 1] |= hi;
+  }
+}
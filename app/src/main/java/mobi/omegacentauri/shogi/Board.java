@@ -1,7 +1,14 @@
 package mobi.omegacentauri.shogi;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
 
 /**
  * Store the state of a Shogi board.
@@ -19,26 +26,37 @@ public class Board implements Serializable {
   
   public Board() {
     mSquares = new int[DIM * DIM];  // initialized to zero
-    mCapturedBlackList = new ArrayList<CapturedPiece>();
-    mCapturedWhiteList = new ArrayList<CapturedPiece>();
+    mLastReadCapturedBlack = mLastReadCapturedWhite = NO_LIST;
+    allocateBitboards();
   }
 
   public Board(Board src) {
     mSquares = src.mSquares.clone();
     mCapturedBlack = src.mCapturedBlack;
     mCapturedWhite = src.mCapturedWhite;
+    // The lists are never modified, so they can be shared.
     mLastReadCapturedBlack = src.mLastReadCapturedBlack; 
     mLastReadCapturedWhite = src.mLastReadCapturedWhite; 
-    
-    mCapturedBlackList = new ArrayList<CapturedPiece>(src.mCapturedBlackList);
-    mCapturedWhiteList = new ArrayList<CapturedPiece>(src.mCapturedWhiteList);
+    mCapturedBlackList = src.mCapturedBlackList;
+    mCapturedWhiteList = src.mCapturedWhiteList;
+
+    mSideBits = src.mSideBits.clone();
+    mTypeBits = src.mTypeBits.clone();
+    mAttacks = src.mAttacks.clone();
+    mAttacksValidLo = src.mAttacksValidLo;
+    mAttacksValidHi = src.mAttacksValidHi;
+    mSideAttacks = src.mSideAttacks.clone();
+    mSideAttacksValid = src.mSideAttacksValid;
+
+    mKey = src.mKey;
+    mWhiteToMove = src.mWhiteToMove;
   }
 
   public final void initialize(Handicap h) {
-    mCapturedBlackList.clear();
-    mCapturedWhiteList.clear();
-    mCapturedBlack = mLastReadCapturedBlack = 0;
-    mCapturedWhite = mLastReadCapturedWhite = 0;
+    mKey ^= handKey(0, mCapturedBlack) ^ handKey(1, mCapturedWhite);
+    setWhiteToMove(false);
+    mCapturedBlack = 0;
+    mCapturedWhite = 0;
     
     for (int y = 0; y < Board.DIM; ++y) {
       for (int x = 0; x < Board.DIM; ++x) {
@@ -115,7 +133,13 @@ public class Board implements Serializable {
     Assert.lt(x, Board.DIM);
     Assert.ge(y, 0);
     Assert.lt(y, Board.DIM);
-    mSquares[x + y * DIM] = piece;
+    final int sq = x + y * DIM;
+    final int old = mSquares[sq];
+    if (old == piece) return;
+    mSquares[sq] = piece;
+    if (old != Piece.EMPTY) toggleBits(old, sq);
+    if (piece != Piece.EMPTY) toggleBits(piece, sq);
+    invalidateAttacks(sq, old == Piece.EMPTY || piece == Piece.EMPTY);
   }
 
   public final int getPiece(int x, int y) {
@@ -164,6 +188,9 @@ public class Board implements Serializable {
   // Get the list of piece type and its count captured by player p.
   // For Player.WHITE, the values of CapturedPiece.piece will be still
   // positive.
+  //
+  // The list is a view of mCapturedBlack or mCapturedWhite, built on demand
+  // and cached until they change. It must not be modified.
   public final ArrayList<CapturedPiece> getCapturedPieces(Player p) {
     // Note: The JNI code will update mCapturedBlack and mCapturedWhite.
     // Translate them to a list.
@@ -188,39 +215,29 @@ public class Board implements Serializable {
     int bits = 0;
     for (Board.CapturedPiece p: pieces) {
       final int piece = Board.type(p.piece);
-      if (piece == Piece.FU) {
-        bits |= p.n;
-      } else if (piece == Piece.KYO) {
-        bits |= (p.n << 5);
-      } else if (piece == Piece.KEI) {
-        bits |= (p.n << 8);
-      } else if (piece == Piece.GIN) {
-        bits |= (p.n << 11);
-      } else if (piece == Piece.KIN) {
-        bits |= (p.n << 14);
-      } else if (piece == Piece.KAKU) {
-        bits |= (p.n << 17);
-      } else if (piece == Piece.HI) {
-        bits |= (p.n << 19);
-      } else {
+      if (piece < Piece.FU || piece > Piece.HI) {
         throw new AssertionError("Invalid piece: " + piece);
       }
+      bits |= p.n << HAND_SHIFT[piece];
     }
     if (player == Player.BLACK) {
-      mCapturedBlackList = new ArrayList<Board.CapturedPiece>(pieces);
-      mCapturedBlack = mLastReadCapturedBlack = bits;
+      mKey ^= handKey(0, mCapturedBlack) ^ handKey(0, bits);
+      mCapturedBlack = bits;
     } else {
-      mCapturedWhiteList = new ArrayList<Board.CapturedPiece>(pieces);
-      mCapturedWhite = mLastReadCapturedWhite = bits;
+      mKey ^= handKey(1, mCapturedWhite) ^ handKey(1, bits);
+      mCapturedWhite = bits;
     }
   }
-  
-  // Absolute position on a Board.
-  public static class Position {
-    public Position(int tx, int ty) { x = tx; y = ty; }
-    public final int x, y;
+
+  /**
+   * Return the number of pieces of type "type" (one of Piece.FU to
+   * Piece.HI) in the hand of player "p".
+   */
+  public final int numCapturedPieces(Player p, int type) {
+    final int bits = (p == Player.BLACK) ? mCapturedBlack : mCapturedWhite;
+    return (bits >> HAND_SHIFT[type]) & HAND_MASK[type];
   }
-  
+
   // A relative move by one player.
   private static class MoveDelta {
     public MoveDelta(int x, int y, boolean m) { deltaX = x; deltaY = y; multi = m; }
@@ -269,132 +286,375 @@ public class Board implements Serializable {
     return pieces;
   }
 
+  // Undo records returned by applyPly(). Bits 0-4 hold the piece captured
+  // by the move plus 16 (16 for no capture), followed by three flags.
+  private static final int UNDO_CAPTURED_MASK = 0x1f;
+  private static final int UNDO_PROMOTED = 1 << 5;       // the move promoted the piece
+  private static final int UNDO_WHITE_TO_MOVE = 1 << 6;  // nextPlayer() before the move
+  private static final int UNDO_NOT_IN_HAND = 1 << 7;    // a drop of a piece not in hand
+
   /**
    *  Apply the move "m" by player "p" to the board. Does not check if the move is legal. 
+   *
+   *  @return An undo record to pass to unapplyPly().
    */
-  public final void applyPly(Player p, Play m) {
+  public final int applyPly(Player p, Play m) {
+    int undo = (mWhiteToMove ? UNDO_WHITE_TO_MOVE : 0);
     int oldPiece = Piece.EMPTY;
-    boolean capturedChanged = false;
-    ArrayList<CapturedPiece> captured = getCapturedPieces(p);
 
     if (m.isDroppingPiece()) {
       setPiece(m.toX(), m.toY(), m.piece());
-      capturedChanged = true;
-      for (int i = 0; i < captured.size(); ++i) {
-        Board.CapturedPiece c = captured.get(i);
-        if (c.piece == m.piece()) {
-          if (c.n == 1) {
-            captured.remove(i);
-          } else {
-            captured.set(i, new Board.CapturedPiece(c.piece, c.n - 1));
-          }
-          break;
-        }
-      }
+      // Like the original list-based hands, leave the hand alone if the
+      // piece isn't there, e.g., for a malformed game log.
+      if (!addCapturedPiece(p, m.piece(), -1)) undo |= UNDO_NOT_IN_HAND;
     } else {
+      if (isPromoted(m.piece()) && !isPromoted(getPiece(m.fromX(), m.fromY()))) {
+        undo |= UNDO_PROMOTED;
+      }
       setPiece(m.fromX(), m.fromY(), Piece.EMPTY);
       oldPiece = getPiece(m.toX(), m.toY());
       setPiece(m.toX(), m.toY(), m.piece());
     }
+    undo |= oldPiece + 16;
     if (oldPiece != Piece.EMPTY) {
-      capturedChanged = true;
-      oldPiece = -oldPiece; // now the piece is owned by the opponent
-      if (Board.isPromoted(oldPiece)) {
-        oldPiece = Board.unpromote(oldPiece);
-      }
-      boolean found = false; 
-      for (int i = 0; i < captured.size(); ++i) {
-        Board.CapturedPiece c = captured.get(i);
-        if (c.piece == oldPiece) {
-          Board.CapturedPiece nc = new Board.CapturedPiece(oldPiece, c.n + 1);
-          captured.set(i, nc);
-          found = true;
-          break;
-        }
-      }
-      if (!found) {
-        captured.add(new Board.CapturedPiece(oldPiece, 1));
+      addCapturedPiece(p, handPiece(oldPiece), 1);
+    }
+    setWhiteToMove(p == Player.BLACK);
+    return undo;
+  }
+
+  /**
+   * Take back the move "m" by player "p". "m" must be the last move applied
+   * to the board, and "undo" the value applyPly() returned for it.
+   */
+  public final void unapplyPly(Player p, Play m, int undo) {
+    if (m.isDroppingPiece()) {
+      setPiece(m.toX(), m.toY(), Piece.EMPTY);
+      if ((undo & UNDO_NOT_IN_HAND) == 0) addCapturedPiece(p, m.piece(), 1);
+    } else {
+      final int captured = (undo & UNDO_CAPTURED_MASK) - 16;
+      final int piece = ((undo & UNDO_PROMOTED) != 0) ? unpromote(m.piece()) : m.piece();
+      setPiece(m.toX(), m.toY(), captured);
+      setPiece(m.fromX(), m.fromY(), piece);
+      if (captured != Piece.EMPTY) {
+        addCapturedPiece(p, handPiece(captured), -1);
       }
     }
-    if (capturedChanged) setCapturedPieces(p, captured);
+    setWhiteToMove((undo & UNDO_WHITE_TO_MOVE) != 0);
+  }
+
+  // Given a piece captured from the board, return it as it's held in the
+  // opponent's hand: unpromoted and owned by the opponent.
+  private static final int handPiece(int captured) {
+    final int piece = -captured;
+    return isPromoted(piece) ? unpromote(piece) : piece;
+  }
+
+  // Add "delta" (1 or -1) pieces of "piece" to the hand of player "p".
+  // Returns false, changing nothing, if there's no such piece to take away.
+  private final boolean addCapturedPiece(Player p, int piece, int delta) {
+    final int type = type(piece);
+    final int shift = HAND_SHIFT[type];
+    if (p == Player.BLACK) {
+      final int n = (mCapturedBlack >> shift) & HAND_MASK[type];
+      if (n + delta < 0) return false;
+      mKey ^= ZOBRIST_HAND[type * 32 + n] ^ ZOBRIST_HAND[type * 32 + n + delta];
+      mCapturedBlack += delta << shift;
+    } else {
+      final int n = (mCapturedWhite >> shift) & HAND_MASK[type];
+      if (n + delta < 0) return false;
+      mKey ^= ZOBRIST_HAND[(Piece.NUM_TYPES + type) * 32 + n] ^
+          ZOBRIST_HAND[(Piece.NUM_TYPES + type) * 32 + n + delta];
+      mCapturedWhite += delta << shift;
+    }
+    return true;
   }
   
+  // Upper bound on the number of squares returned by possibleMoveDestinations().
+  // A RYU or UMA in the middle of an empty board reaches 20 squares.
+  public static final int MAX_DESTINATIONS = 20;
+
   /**
-   * Generate the list of board positions that a piece at <fromX, fromY> can
-   * move to. It takes other pieces on the board into account, but it may
+   * Store in "squares" the board positions that a piece at <fromX, fromY> can
+   * move to, each encoded as x + y * DIM. Returns the number of positions
+   * stored. "squares" must have room for MAX_DESTINATIONS entries.
+   * It takes other pieces on the board into account, but it may
    * still generate illegal moves -- e.g., this method doesn't check for
    * sennichite, uchi-fu zume aren't by this method.
    */
-  ArrayList<Position> possibleMoveDestinations(int fromX, int fromY) {
-    int piece = getPiece(fromX, fromY);
-    MoveTargetsLister lister = new MoveTargetsLister(
-        this, player(piece), fromX, fromY);
-    for (MoveDelta m: possibleMoves(type(piece))) {
-      lister.tryMove(m);
-    }
-    return lister.getTargets();
+  final int possibleMoveDestinations(int fromX, int fromY, int[] squares) {
+    final int sq = fromX + fromY * DIM;
+    final int piece = getPiece(fromX, fromY);
+    if (piece == Piece.EMPTY) return 0;
+    ensureAttacks(sq);
+    final int own = sideIndex(piece) * 2;
+    return Bitboard.toSquares(
+        mAttacks[sq * 2] & ~mSideBits[own],
+        mAttacks[sq * 2 + 1] & ~mSideBits[own + 1],
+        squares);
   }
-  
-  // Helper class for listing possible positions a piece can move to
-  private static final class MoveTargetsLister {
-    // <cur_x, cur_y> is the current board position of the piece.
-    // Both are in range [0, Board.DIM).
-    public MoveTargetsLister(Board board, Player player, int cur_x, int cur_y) {
-      mBoard = board;
-      mPlayer = player;
-      mCurX = cur_x;
-      mCurY = cur_y;
-    }
-
-    // If the piece can be moved to <curX+m.deltaX, curY+m.deltaY>, add it to
-    // mTargets.
-    public final void tryMove(MoveDelta m) {
-      mSeenOpponentPiece = false;
-      int dy = m.deltaY;
-      if (mPlayer == Player.WHITE) dy = -dy;
-      if (!m.multi) {
-        tryMoveTo(mCurX + m.deltaX, mCurY + dy);
-      } else {
-        int x = mCurX;
-        int y = mCurY;
-        for (;;) {
-          x += m.deltaX;
-          y += dy;
-          if (!tryMoveTo(x, y)) break;
-        }
+
+  /**
+   * See if the piece at <fromX, fromY> can move to <toX, toY>, with the
+   * same caveats as possibleMoveDestinations().
+   */
+  final boolean canMoveTo(int fromX, int fromY, int toX, int toY) {
+    final int sq = fromX + fromY * DIM;
+    final int piece = getPiece(fromX, fromY);
+    if (piece == Piece.EMPTY) return false;
+    final int to = toX + toY * DIM;
+    if (mSquares[to] != Piece.EMPTY && sideIndex(mSquares[to]) == sideIndex(piece)) return false;
+    ensureAttacks(sq);
+    return Bitboard.contains(mAttacks[sq * 2], mAttacks[sq * 2 + 1], to);
+  }
+
+  /**
+   * See if any piece owned by "by" attacks <x, y>. Only piece movement is
+   * considered; pins and drops are not.
+   */
+  public final boolean isAttacked(int x, int y, Player by) {
+    final int s = by.toIndex();
+    if ((mSideAttacksValid & (1 << s)) == 0) {
+      long lo = mSideBits[s * 2];
+      long hi = mSideBits[s * 2 + 1];
+      long attackLo = 0;
+      long attackHi = 0;
+      while (lo != 0) {
+        final int sq = Long.numberOfTrailingZeros(lo);
+        ensureAttacks(sq);
+        attackLo |= mAttacks[sq * 2];
+        attackHi |= mAttacks[sq * 2 + 1];
+        lo &= lo - 1;
       }
+      while (hi != 0) {
+        final int sq = 64 + Long.numberOfTrailingZeros(hi);
+        ensureAttacks(sq);
+        attackLo |= mAttacks[sq * 2];
+        attackHi |= mAttacks[sq * 2 + 1];
+        hi &= hi - 1;
+      }
+      mSideAttacks[s * 2] = attackLo;
+      mSideAttacks[s * 2 + 1] = attackHi;
+      mSideAttacksValid |= (1 << s);
     }
+    return Bitboard.contains(mSideAttacks[s * 2], mSideAttacks[s * 2 + 1], x + y * DIM);
+  }
+
+  /**
+   * Return the square (x + y * DIM) of the king owned by "p", or -1 if
+   * there is none.
+   */
+  public final int kingSquare(Player p) {
+    final int s = p.toIndex() * 2;
+    return Bitboard.first(mTypeBits[Piece.OU * 2] & mSideBits[s],
+                          mTypeBits[Piece.OU * 2 + 1] & mSideBits[s + 1]);
+  }
+
+  /**
+   * Return the Zobrist key of the position: the pieces on the board, the
+   * pieces in hand, and the player to move. The player to move is
+   * Player.BLACK after initialize() and flips with each applyPly().
+   */
+  public final long positionKey() { return mKey; }
+
+  /**
+   * Return the player to move, as tracked for positionKey().
+   */
+  public final Player nextPlayer() { return mWhiteToMove ? Player.WHITE : Player.BLACK; }
+
+  public final void setNextPlayer(Player p) { setWhiteToMove(p == Player.WHITE); }
+
+  private final void setWhiteToMove(boolean v) {
+    if (v != mWhiteToMove) {
+      mWhiteToMove = v;
+      mKey ^= ZOBRIST_WHITE_TO_MOVE;
+    }
+  }
+
+  /**
+   * Recompute the bitboards and positionKey() from mSquares and the hands.
+   * Must be called after they are modified without going through setPiece()
+   * or setCapturedPieces(), i.e., by the JNI code.
+   */
+  final void rebuildBitboards() {
+    if (mSideBits == null) allocateBitboards();
+    Arrays.fill(mSideBits, 0);
+    Arrays.fill(mTypeBits, 0);
+    mKey = handKey(0, mCapturedBlack) ^ handKey(1, mCapturedWhite);
+    if (mWhiteToMove) mKey ^= ZOBRIST_WHITE_TO_MOVE;
+    for (int sq = 0; sq < Bitboard.NUM_SQUARES; ++sq) {
+      if (mSquares[sq] != Piece.EMPTY) toggleBits(mSquares[sq], sq);
+    }
+    mAttacksValidLo = mAttacksValidHi = 0;
+    mSideAttacksValid = 0;
+  }
 
-    // Return the computed list of move targets.
-    public final ArrayList<Position> getTargets() { return mTargets; }
+  // Size of a snapshot written by saveSnapshot(): one byte per square, four
+  // bytes for each hand, and one byte for the player to move.
+  static final int SNAPSHOT_SIZE = Bitboard.NUM_SQUARES + 4 + 4 + 1;
 
-    private final boolean tryMoveTo(int x, int y) {
-      // Disallow moving outside the board
-      if (x < 0 || x >= Board.DIM || y < 0 || y >= Board.DIM) {
-        return false;
+  /**
+   * Write a compact copy of the position to out[offset, offset + SNAPSHOT_SIZE).
+   */
+  final void saveSnapshot(byte[] out, int offset) {
+    for (int sq = 0; sq < Bitboard.NUM_SQUARES; ++sq) {
+      out[offset++] = (byte)mSquares[sq];
+    }
+    offset = putInt(out, offset, mCapturedBlack);
+    offset = putInt(out, offset, mCapturedWhite);
+    out[offset] = (byte)(mWhiteToMove ? 1 : 0);
+  }
+
+  /**
+   * Set the position from a snapshot written by saveSnapshot().
+   */
+  final void restoreSnapshot(byte[] in, int offset) {
+    for (int sq = 0; sq < Bitboard.NUM_SQUARES; ++sq) {
+      mSquares[sq] = in[offset++];
+    }
+    mCapturedBlack = getInt(in, offset);
+    mCapturedWhite = getInt(in, offset + 4);
+    mWhiteToMove = in[offset + 8] != 0;
+    rebuildBitboards();
+  }
+
+  /**
+   * Set the position from a snapshot at in[0, SNAPSHOT_SIZE). The JNI code
+   * writes snapshots into a direct buffer in this layout. Does not change
+   * the position of "in".
+   */
+  final void restoreSnapshot(ByteBuffer in) {
+    for (int sq = 0; sq < Bitboard.NUM_SQUARES; ++sq) {
+      mSquares[sq] = in.get(sq);
+    }
+    mCapturedBlack = in.getInt(Bitboard.NUM_SQUARES);
+    mCapturedWhite = in.getInt(Bitboard.NUM_SQUARES + 4);
+    mWhiteToMove = in.get(Bitboard.NUM_SQUARES + 8) != 0;
+    rebuildBitboards();
+  }
+
+  /**
+   * Write the position in the compact binary encoding: a snapshot (see
+   * saveSnapshot()), SNAPSHOT_SIZE bytes.
+   */
+  public final void writeTo(DataOutput out) throws IOException {
+    final byte[] snapshot = new byte[SNAPSHOT_SIZE];
+    saveSnapshot(snapshot, 0);
+    out.write(snapshot);
+  }
+
+  /**
+   * Read a board written by writeTo() with encoding "version".
+   */
+  public static Board readFrom(DataInput in, int version) throws IOException {
+    final byte[] snapshot = new byte[SNAPSHOT_SIZE];
+    in.readFully(snapshot);
+    Board board = new Board();
+    board.restoreSnapshot(snapshot, 0);
+    return board;
+  }
+
+  private Object writeReplace() { return new BinaryCodec.Proxy(this); }
+
+  private static final int putInt(byte[] out, int offset, int v) {
+    out[offset] = (byte)(v >> 24);
+    out[offset + 1] = (byte)(v >> 16);
+    out[offset + 2] = (byte)(v >> 8);
+    out[offset + 3] = (byte)v;
+    return offset + 4;
+  }
+
+  private static final int getInt(byte[] in, int offset) {
+    return ((in[offset] & 0xff) << 24) | ((in[offset + 1] & 0xff) << 16) |
+        ((in[offset + 2] & 0xff) << 8) | (in[offset + 3] & 0xff);
+  }
+
+  private final void allocateBitboards() {
+    mSideBits = new long[2 * 2];
+    mTypeBits = new long[Piece.NUM_TYPES * 2];
+    mAttacks = new long[Bitboard.NUM_SQUARES * 2];
+    mSideAttacks = new long[2 * 2];
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    mLastReadCapturedBlack = mLastReadCapturedWhite = NO_LIST;
+    rebuildBitboards();
+  }
+
+  // 0 for a piece owned by Player.BLACK, 1 for Player.WHITE.
+  private static final int sideIndex(int piece) { return piece > 0 ? 0 : 1; }
+
+  // Add or remove "piece" at "sq" in mSideBits, mTypeBits and mKey.
+  private final void toggleBits(int piece, int sq) {
+    mKey ^= ZOBRIST_PIECE[(sideIndex(piece) * Piece.NUM_TYPES + type(piece)) * Bitboard.NUM_SQUARES + sq];
+    final long lo = Bitboard.loBit(sq);
+    final long hi = Bitboard.hiBit(sq);
+    final int s = sideIndex(piece) * 2;
+    mSideBits[s] ^= lo;
+    mSideBits[s + 1] ^= hi;
+    final int t = type(piece) * 2;
+    mTypeBits[t] ^= lo;
+    mTypeBits[t + 1] ^= hi;
+  }
+
+  // Called when the contents of "sq" change. The piece on "sq" needs its
+  // attacks recomputed. If the square became empty or occupied, so do
+  // the sliders whose rays reach "sq". Step moves never depend on
+  // other squares.
+  private final void invalidateAttacks(int sq, boolean occupancyChanged) {
+    mAttacksValidLo &= ~Bitboard.loBit(sq);
+    mAttacksValidHi &= ~Bitboard.hiBit(sq);
+    mSideAttacksValid = 0;
+    if (!occupancyChanged) return;
+
+    long lo = mAttacksValidLo & sliders(0);
+    long hi = mAttacksValidHi & sliders(1);
+    while (lo != 0) {
+      final int s = Long.numberOfTrailingZeros(lo);
+      if (Bitboard.contains(mAttacks[s * 2], mAttacks[s * 2 + 1], sq)) {
+        mAttacksValidLo &= ~(1L << s);
       }
-      // Disallow skipping over an opponent piece
-      if (mSeenOpponentPiece) return false;
-
-      // Disallow occuping the same square twice
-      int existing = mBoard.getPiece(x, y);
-      if (existing != 0) {
-        if (Board.player(existing) == mPlayer) return false;
-        mSeenOpponentPiece = true;
-        mTargets.add(new Position(x, y));
-        return true;
+      lo &= lo - 1;
+    }
+    while (hi != 0) {
+      final int s = Long.numberOfTrailingZeros(hi);
+      if (Bitboard.contains(mAttacks[(64 + s) * 2], mAttacks[(64 + s) * 2 + 1], sq)) {
+        mAttacksValidHi &= ~(1L << s);
       }
-
-      mTargets.add(new Position(x, y));
-      return true;
+      hi &= hi - 1;
     }
+  }
 
-    private final ArrayList<Position> mTargets = new ArrayList<Position>();
-    private final Board mBoard;
-    private final Player mPlayer;
-    private final int mCurX;
-    private final int mCurY;
-    private boolean mSeenOpponentPiece;
+  // Word "w" (0 == lo, 1 == hi) of the set of squares holding a sliding piece.
+  private final long sliders(int w) {
+    return mTypeBits[Piece.KYO * 2 + w] | mTypeBits[Piece.KAKU * 2 + w] |
+        mTypeBits[Piece.HI * 2 + w] | mTypeBits[Piece.UMA * 2 + w] |
+        mTypeBits[Piece.RYU * 2 + w];
+  }
+
+  // Make sure mAttacks[sq * 2], mAttacks[sq * 2 + 1] are up to date.
+  private final void ensureAttacks(int sq) {
+    if (Bitboard.contains(mAttacksValidLo, mAttacksValidHi, sq)) return;
+    final int piece = mSquares[sq];
+    final int i = sq * 2;
+    if (piece == Piece.EMPTY) {
+      mAttacks[i] = mAttacks[i + 1] = 0;
+    } else {
+      final int k = sideIndex(piece) * Piece.NUM_TYPES + type(piece);
+      mAttacks[i] = STEP_ATTACKS[k][i];
+      mAttacks[i + 1] = STEP_ATTACKS[k][i + 1];
+      int dirs = SLIDE_DIRS[k];
+      if (dirs != 0) {
+        final long occLo = mSideBits[0] | mSideBits[2];
+        final long occHi = mSideBits[1] | mSideBits[3];
+        for (int d = 0; dirs != 0; ++d, dirs >>>= 1) {
+          if ((dirs & 1) != 0) Bitboard.orSlide(d, sq, occLo, occHi, mAttacks, i);
+        }
+      }
+    }
+    mAttacksValidLo |= Bitboard.loBit(sq);
+    mAttacksValidHi |= Bitboard.hiBit(sq);
   }
 
   private static MoveDelta[] possibleMoves(int piece) {
@@ -479,7 +739,70 @@ public class Board implements Serializable {
     new MoveDelta(1, -1, false),
     new MoveDelta(1, 1, false),
   };
+
+  // Attack tables derived from the MoveDelta tables above. For side s (0 ==
+  // BLACK, 1 == WHITE) and piece type t, let k = s * Piece.NUM_TYPES + t.
+  // STEP_ATTACKS[k] holds a bitboard per square for the single-step moves, and
+  // SLIDE_DIRS[k] is the bitmask of Bitboard directions the piece slides in.
+  private static final long[][] STEP_ATTACKS = new long[2 * Piece.NUM_TYPES][];
+  private static final int[] SLIDE_DIRS = new int[2 * Piece.NUM_TYPES];
+  static {
+    for (int type = Piece.FU; type < Piece.NUM_TYPES; ++type) {
+      if (Piece.csaNames[type] == null) continue;
+      for (int side = 0; side < 2; ++side) {
+        final int k = side * Piece.NUM_TYPES + type;
+        final long[] steps = STEP_ATTACKS[k] = new long[Bitboard.NUM_SQUARES * 2];
+        for (MoveDelta m : possibleMoves(type)) {
+          final int dy = (side == 0) ? m.deltaY : -m.deltaY;
+          if (m.multi) {
+            SLIDE_DIRS[k] |= 1 << Bitboard.direction(m.deltaX, dy);
+            continue;
+          }
+          for (int sq = 0; sq < Bitboard.NUM_SQUARES; ++sq) {
+            final int x = Bitboard.squareX(sq) + m.deltaX;
+            final int y = Bitboard.squareY(sq) + dy;
+            if (x >= 0 && x < DIM && y >= 0 && y < DIM) {
+              steps[sq * 2] |= Bitboard.loBit(Bitboard.square(x, y));
+              steps[sq * 2 + 1] |= Bitboard.hiBit(Bitboard.square(x, y));
+            }
+          }
+        }
+      }
+    }
+  }
   
+  // Zobrist keys. ZOBRIST_PIECE is indexed by
+  // (side * Piece.NUM_TYPES + type) * Bitboard.NUM_SQUARES + square, and
+  // ZOBRIST_HAND by (side * Piece.NUM_TYPES + type) * 32 + count. The key
+  // for zero pieces in hand is 0, so an empty hand doesn't change the key.
+  // The seed is fixed so that keys are stable across runs.
+  private static final long[] ZOBRIST_PIECE = new long[2 * Piece.NUM_TYPES * Bitboard.NUM_SQUARES];
+  private static final long[] ZOBRIST_HAND = new long[2 * Piece.NUM_TYPES * 32];
+  private static final long ZOBRIST_WHITE_TO_MOVE;
+  static {
+    Random random = new Random(0x5b6f6e616e7a61L);
+    for (int i = 0; i < ZOBRIST_PIECE.length; ++i) ZOBRIST_PIECE[i] = random.nextLong();
+    for (int i = 0; i < ZOBRIST_HAND.length; ++i) {
+      ZOBRIST_HAND[i] = (i % 32 == 0) ? 0 : random.nextLong();
+    }
+    ZOBRIST_WHITE_TO_MOVE = random.nextLong();
+  }
+
+  // Layout of mCapturedBlack and mCapturedWhite, indexed by piece type:
+  // the count of that type is (bits >> HAND_SHIFT[type]) & HAND_MASK[type].
+  private static final int[] HAND_SHIFT = { 0, 0, 5, 8, 11, 14, 17, 19 };
+  private static final int[] HAND_MASK = { 0, 0x1f, 7, 7, 7, 7, 3, 0x1f };
+
+  // Zobrist key of the hand "bits" owned by side "side".
+  private static final long handKey(int side, int bits) {
+    long key = 0;
+    for (int type = Piece.FU; type <= Piece.HI; ++type) {
+      final int n = (bits >> HAND_SHIFT[type]) & HAND_MASK[type];
+      key ^= ZOBRIST_HAND[(side * Piece.NUM_TYPES + type) * 32 + n];
+    }
+    return key;
+  }
+
   // Helper functions to parse the value of mCapturedBlack or mCapturedWhite.
   private static final int numCapturedFu(int c) { return c & 0x1f; }
   private static final int numCapturedKyo(int c) { return (c >> 5) & 7; }
@@ -500,14 +823,40 @@ public class Board implements Serializable {
   private int mCapturedBlack;
   private int mCapturedWhite;
   
-  // Encode the set of pieces captured by the BLACK player. 
-  private ArrayList<CapturedPiece> mCapturedBlackList;
-  // Encode the set of pieces captured by the WHITE player. 
-  private ArrayList<CapturedPiece> mCapturedWhiteList;
+  // mCapturedBlack and mCapturedWhite are the source of truth for the
+  // hands. The following are list views of them for getCapturedPieces().
+  private transient ArrayList<CapturedPiece> mCapturedBlackList;
+  private transient ArrayList<CapturedPiece> mCapturedWhiteList;
 
   // The values of mCaptured{Black,White} used when computing the above lists.
   // That is, if mLastReadCapturefX != mCaptuturedX, then we need to recompute mCapturedXList.
-  private int mLastReadCapturedBlack;
-  private int mLastReadCapturedWhite;
+  // NO_LIST never matches, so the list is built on the first read.
+  private static final int NO_LIST = -1;
+  private transient int mLastReadCapturedBlack;
+  private transient int mLastReadCapturedWhite;
+
+  // Bitboards mirroring mSquares, kept in sync by setPiece(). Indices are
+  // [side * 2 + word] for mSideBits (side 0 == BLACK, 1 == WHITE) and
+  // [type * 2 + word] for mTypeBits (type == Board.type(piece)). See Bitboard
+  // for the word layout. They are derived from mSquares, so they are not
+  // serialized.
+  private transient long[] mSideBits;
+  private transient long[] mTypeBits;
+
+  // mAttacks[sq * 2 + word] is the set of squares attacked by the piece at
+  // sq, including squares occupied by either side. The entry is up to date
+  // only when sq is in <mAttacksValidLo, mAttacksValidHi>.
+  private transient long[] mAttacks;
+  private transient long mAttacksValidLo, mAttacksValidHi;
+
+  // Union of mAttacks for each side, valid when bit (1 << side) of
+  // mSideAttacksValid is set.
+  private transient long[] mSideAttacks;
+  private transient int mSideAttacksValid;
 
+  // Zobrist key returned by positionKey(). Updated incrementally by
+  // toggleBits(), setCapturedPieces(), addCapturedPiece() and
+  // setWhiteToMove().
+  private transient long mKey;
+  private boolean mWhiteToMove;
 }
@@ -224,8 +224,7 @@ public class BoardView extends FrameLayout implements View.OnTouchListener, Keyb
                     int y = py + j;
                     if (x >= 0 && x < Board.DIM && y >= 0 && y < Board.DIM) {
                         if (Board.player(board.getPiece(x, y)) == player) {
-                            ArrayList<Board.Position> dests = board.possibleMoveDestinations(x, y);
-                            if (!dests.isEmpty()) {
+                            if (board.possibleMoveDestinations(x, y, mDestinations) > 0) {
                                 tryScreenPosition(mLayout.screenX(x), mLayout.screenY(y), x, y, S_PIECE);
                             }
                         }
@@ -326,11 +325,13 @@ public class BoardView extends FrameLayout implements View.OnTouchListener, Keyb
             NearestSquareFinder finder = new NearestSquareFinder(layout, event.getX(), event.getY(), mExactPosition);
             if (mMoveFrom instanceof PositionOnBoard) {
                 PositionOnBoard from = (PositionOnBoard) mMoveFrom;
-                ArrayList<Board.Position> dests = mBoard.possibleMoveDestinations(from.x, from.y);
-                for (Board.Position d : dests) {
+                final int n = mBoard.possibleMoveDestinations(from.x, from.y, mDestinations);
+                for (int i = 0; i < n; ++i) {
+                    final int dx = mDestinations[i] % Board.DIM;
+                    final int dy = mDestinations[i] / Board.DIM;
                     finder.tryScreenPosition(
-                            layout.screenX(d.x), layout.screenY(d.y),
-                            d.x, d.y, S_MOVE_DESTINATION);
+                            layout.screenX(dx), layout.screenY(dy),
+                            dx, dy, S_MOVE_DESTINATION);
                 }
                 // Allow moving to the origin point to nullify the move.
                 finder.tryScreenPosition(
@@ -613,14 +614,14 @@ public class BoardView extends FrameLayout implements View.OnTouchListener, Keyb
             if (mMoveFrom instanceof PositionOnBoard) {
                 PositionOnBoard from = (PositionOnBoard) mMoveFrom;
                 // Draw orange dots in each possible destination
-                ArrayList<Board.Position> dests = mBoard.possibleMoveDestinations(from.x, from.y);
+                final int n = mBoard.possibleMoveDestinations(from.x, from.y, mDestinations);
 
                 Paint cp = new Paint();
                 cp.setColor(0xc0ff8c00);
                 cp.setStyle(Style.FILL);
-                for (Board.Position dest : dests) {
-                    float sx = layout.screenX(dest.x);
-                    float sy = layout.screenY(dest.y);
+                for (int i = 0; i < n; ++i) {
+                    float sx = layout.screenX(mDestinations[i] % Board.DIM);
+                    float sy = layout.screenY(mDestinations[i] / Board.DIM);
 
                     sx += squareDim / 2.0f;
                     sy += squareDim / 2.0f;
@@ -900,6 +901,9 @@ public class BoardView extends FrameLayout implements View.OnTouchListener, Keyb
     // @invariant mMoveTo== null || (0,0) <= mMoveTo < (Board.DIM, Board.DIM)
     private PositionOnBoard mMoveTo;
 
+    // Scratch buffer for Board.possibleMoveDestinations().
+    private final int[] mDestinations = new int[Board.MAX_DESTINATIONS];
+
     private Play mLastMove;
     private long mAnimationStartTime;
     private long mNextAnimationTime;
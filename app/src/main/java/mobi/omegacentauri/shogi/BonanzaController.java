@@ -1,7 +1,9 @@
 package mobi.omegacentauri.shogi;
 
-import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.os.Bundle;
 import android.os.Handler;
@@ -12,7 +14,7 @@ import android.util.Log;
 /**
  * An asynchronous interface for running Bonanza.
  * <p>
- * Each public method in this class, except abort(), is asynchronous.
+ * Each public method in this class, except abort() and moveNow(), is asynchronous.
  * It starts the request in a separate thread. The method itself returns
  * immediately. When the request completes, the result is communicated
  * via the Handler interface.
@@ -21,6 +23,10 @@ public class BonanzaController {
     private static final String TAG = "BonanzaController";
     private final int mComputerDifficulty;
     private final int mCores;
+    private final int mHashMb;
+    private final boolean mPonder;
+    // {total, perTurn} think time in seconds for each difficulty. The engine
+    // splits the total among its moves; see set_search_limit_time() in time.c.
     private static final int maxTime[][] = new int[][]{
             {60, 1},
             {60, 1},
@@ -34,69 +40,134 @@ public class BonanzaController {
             {30 * 60, 60},
             {60 * 60, 60}, /* 10 */
             {2 * 60 * 60, 60},
-            {3 * 60, 60, 60},
-            {4 * 60, 60, 60},
-            {5 * 60, 60, 60},
-            {6 * 60, 60, 60} /* 15 */
+            {3 * 60 * 60, 60},
+            {4 * 60 * 60, 60},
+            {5 * 60 * 60, 60},
+            {6 * 60 * 60, 60} /* 15 */
     };
     private Handler mOutputHandler;  // for reporting status to the caller
     private Handler mInputHandler;   // for sending commands to the controller thread
     private HandlerThread mThread;
 
+    // The BonanzaJNI engine that runs the game, and the game's instance ID
+    // on that engine.
+    private final long mEngine;
     private int mInstanceId;
 
+    // Shared by all BonanzaJNI.Results made on the controller thread, so
+    // that the JNI code can hand over boards with one memcpy.
+    private final ByteBuffer mBoardBuffer =
+            ByteBuffer.allocateDirect(Board.SNAPSHOT_SIZE).order(ByteOrder.BIG_ENDIAN);
+
+    // Set by the caller's thread, read by the controller thread.
+    private volatile SearchProgressListener mProgressListener;
+
+    // The BonanzaJNI.computerMove() token of the last computerMove()
+    // request, for moveNow().
+    private volatile int mMoveToken;
+
+    // The latest search progress not yet handed to mProgressListener. The
+    // controller thread posts mDeliverProgress only when this was null, so
+    // a slow caller thread sees the newest report instead of a backlog.
+    private final AtomicReference<SearchProgress> mPendingProgress =
+            new AtomicReference<SearchProgress>();
+
+    private final Runnable mDeliverProgress = new Runnable() {
+        @Override
+        public void run() {
+            SearchProgress p = mPendingProgress.getAndSet(null);
+            SearchProgressListener listener = mProgressListener;
+            if (p != null && listener != null) listener.onSearchProgress(p);
+        }
+    };
+
     private static final int C_START = 0;
     private static final int C_HUMAN_PLAY = 1;
     private static final int C_COMPUTER_PLAY = 2;
     private static final int C_UNDO = 3;
     private static final int C_DESTROY = 4;
 
-    public BonanzaController(Handler handler, int difficulty, int cores) {
+    /**
+     * @param hashMb transposition table size in MB; see Util.hashSizeMb().
+     * @param ponder if true, let the computer think while the human player does.
+     */
+    public BonanzaController(Handler handler, int difficulty, int cores, int hashMb, boolean ponder) {
+        this(handler, BonanzaJNI.DEFAULT_ENGINE, difficulty, cores, hashMb, ponder);
+    }
+
+    /**
+     * @param engine the BonanzaJNI engine to run the game on.
+     * @param hashMb transposition table size in MB; see Util.hashSizeMb().
+     * @param ponder if true, let the computer think while the human player does.
+     */
+    public BonanzaController(Handler handler, long engine, int difficulty, int cores, int hashMb, boolean ponder) {
         mOutputHandler = handler;
+        mEngine = engine;
         mComputerDifficulty = difficulty;
         mCores = cores;
+        mHashMb = hashMb;
+        mPonder = ponder;
         mInstanceId = -1;
         mThread = new HandlerThread("BonanzaController");
         mThread.start();
         mInputHandler = new Handler(mThread.getLooper()) {
             @Override
             public void handleMessage(Message msg) {
-                int command = msg.getData().getInt("command");
-                switch (command) {
+                Command c = (Command) msg.obj;
+                switch (msg.what) {
                     case C_START:
-                        doStart(msg.getData().getInt("resume_instance_id"),
-                                (Board) msg.getData().get("initial_board"),
-                                (Player) msg.getData().get("next_player"),
-                                (ArrayList<Play>) msg.getData().get("moves"),
-                                (int) msg.getData().getInt("preplay", 0),
-                                (int) msg.getData().getInt("black_time", 0),
-                                (int) msg.getData().getInt("white_time", 0)
-                                );
+                        doStart(c.resumeInstanceId, c.board, c.player, c.moves,
+                                c.preplayCount, c.blackTime, c.whiteTime);
                         break;
                     case C_HUMAN_PLAY:
-                        doHumanPlay(
-                                (Player) msg.getData().get("player"),
-                                (Play) msg.getData().get("play"));
+                        doHumanPlay(c.player, c.play);
                         break;
                     case C_COMPUTER_PLAY:
-                        doComputerPlay((Player) msg.getData().get("player"));
+                        doComputerPlay(c.player, c.timeMs, c.maxNodes, c.moveToken);
                         break;
                     case C_UNDO:
-                        doUndo(
-                                (Player) msg.getData().get("player"),
-                                msg.getData().getInt("cookie1"),
-                                msg.getData().getInt("cookie2"));
+                        doUndo(c.player, c.cookie1, c.cookie2);
                         break;
                     case C_DESTROY:
                         doDestroy();
                         break;
                     default:
-                        throw new AssertionError("Invalid command: " + command);
+                        throw new AssertionError("Invalid command: " + msg.what);
                 }
             }
         };
     }
 
+    /**
+     * Snapshot of an ongoing computerMove() search.
+     */
+    public static final class SearchProgress {
+        public Player player;  // the computer player
+        public int depth;      // iterative deepening depth
+        public long nodes;     // number of nodes searched so far
+        public int nps;        // nodes per second
+        public int score;      // evaluation of pv. Positive favors "player".
+        public String pv;      // best line, in CSA format separated by spaces
+    }
+
+    public interface SearchProgressListener {
+        /**
+         * Called on the thread of the Handler given to the constructor while
+         * the computer is thinking. Reports are rate-limited, and the ones
+         * that arrive while the Handler is busy are coalesced. All reports
+         * for a move are delivered before its Result.
+         */
+        void onSearchProgress(SearchProgress progress);
+    }
+
+    /**
+     * Set the listener for live search information. Null disables it;
+     * without a listener the engine does not produce the reports at all.
+     */
+    public final void setSearchProgressListener(SearchProgressListener listener) {
+        mProgressListener = listener;
+    }
+
     public final void saveInstanceState(Bundle bundle) {
         if (mInstanceId != 0) {
             bundle.putInt("bonanza_instance_id", mInstanceId);
@@ -104,21 +175,28 @@ public class BonanzaController {
     }
 
     public final void start(Bundle bundle, Board board, Player nextPlayer, ArrayList<Play> plays, int preplayCount, long[] thinkTimeMs) {
-        Bundle b = new Bundle();
-
+        Command c = new Command();
         if (bundle != null) {
-            final int instanceId = bundle.getInt("bonanza_instance_id", 0);
-            b.putInt("resume_instance_id", instanceId);
+            c.resumeInstanceId = bundle.getInt("bonanza_instance_id", 0);
         }
-        b.putSerializable("initial_board", board);
-        b.putSerializable("next_player", nextPlayer);
-        b.putSerializable("moves", plays);
-        b.putInt("preplay", preplayCount);
+        // The engine thread reads the arguments after this method returns,
+        // so hand it copies.
+        c.board = new Board(board);
+        c.player = nextPlayer;
+        c.moves = (plays != null) ? new ArrayList<Play>(plays) : null;
+        c.preplayCount = preplayCount;
         if (thinkTimeMs != null) {
-            b.putInt("black_time", (int) (thinkTimeMs[Player.BLACK.toIndex()] / 1000));
-            b.putInt("white_time", (int) (thinkTimeMs[Player.WHITE.toIndex()] / 1000));
+            c.blackTime = (int) (thinkTimeMs[Player.BLACK.toIndex()] / 1000);
+            c.whiteTime = (int) (thinkTimeMs[Player.WHITE.toIndex()] / 1000);
         }
-        sendInputMessage(C_START, b);
+        sendInputMessage(C_START, c);
+    }
+
+    /**
+     * @return the BonanzaJNI engine that runs the game.
+     */
+    public final long getEngine() {
+        return mEngine;
     }
 
     /**
@@ -126,7 +204,7 @@ public class BonanzaController {
      * abandonding this object.
      */
     public final void destroy() {
-        sendInputMessage(C_DESTROY, new Bundle());
+        sendInputMessage(C_DESTROY, new Command());
     }
 
     /**
@@ -137,10 +215,10 @@ public class BonanzaController {
      *               report back Result.nextPlayer.
      */
     public final void humanPlay(Player player, Play play) {
-        Bundle b = new Bundle();
-        b.putSerializable("player", player);
-        b.putSerializable("play", play);
-        sendInputMessage(C_HUMAN_PLAY, b);
+        Command c = new Command();
+        c.player = player;
+        c.play = play;
+        sendInputMessage(C_HUMAN_PLAY, c);
     }
 
     /**
@@ -151,9 +229,35 @@ public class BonanzaController {
      *               report back Result.nextPlayer.
      */
     public final void computerMove(Player player) {
-        Bundle b = new Bundle();
-        b.putSerializable("player", player);
-        sendInputMessage(C_COMPUTER_PLAY, b);
+        computerMove(player, 0, 0);
+    }
+
+    /**
+     * Like computerMove() above, with limits for this move on top of those
+     * of the difficulty level.
+     *
+     * @param timeMs the deadline for the move, or 0 for none.
+     * @param maxNodes the node budget for the move, or 0 for none.
+     */
+    public final void computerMove(Player player, int timeMs, long maxNodes) {
+        Command c = new Command();
+        c.player = player;
+        c.timeMs = timeMs;
+        c.maxNodes = maxNodes;
+        c.moveToken = BonanzaJNI.newMoveToken();
+        mMoveToken = c.moveToken;
+        sendInputMessage(C_COMPUTER_PLAY, c);
+    }
+
+    /**
+     * Make the computer play the best move found so far for the last
+     * computerMove() request, e.g., when the user doesn't want to wait or
+     * leaves the game. The move is reported as usual. Does nothing if the
+     * move is already made. Can be called from any thread.
+     */
+    public final void moveNow() {
+        int token = mMoveToken;
+        if (token != 0) BonanzaJNI.moveNow(mEngine, token);
     }
 
     /**
@@ -163,10 +267,11 @@ public class BonanzaController {
      * @param cookie The last move made in the game.
      */
     public final void undo1(Player player, int cookie) {
-        Bundle b = new Bundle();
-        b.putSerializable("player", player);
-        b.putSerializable("cookie1", cookie);
-        sendInputMessage(C_UNDO, b);
+        Command c = new Command();
+        c.player = player;
+        c.cookie1 = cookie;
+        c.cookie2 = -1;
+        sendInputMessage(C_UNDO, c);
     }
 
     /**
@@ -177,20 +282,21 @@ public class BonanzaController {
      * @param cookie2 the penultimate move made in the game.
      */
     public final void undo2(Player player, int cookie1, int cookie2) {
-        Bundle b = new Bundle();
-        b.putSerializable("player", player);
-        b.putSerializable("cookie1", cookie1);
-        b.putSerializable("cookie2", cookie2);
-        sendInputMessage(C_UNDO, b);
+        Command c = new Command();
+        c.player = player;
+        c.cookie1 = cookie1;
+        c.cookie2 = cookie2;
+        sendInputMessage(C_UNDO, c);
     }
 
     /**
-     * The result of each asynchronous request. Packed in the "result" part of
-     * the Message.getData() bundle.
+     * The result of each asynchronous request. Passed by reference as the
+     * Message.obj of the message sent to the output handler.
      */
-    @SuppressWarnings("serial")
-    public static class Result implements Serializable {
-        // The new state of the board
+    public static class Result {
+        // The new state of the board. A fresh object filled by the JNI code.
+        // The controller doesn't touch it after sending the result, so the
+        // receiver owns it.
         public Board board;
 
         // The following three fields describe the last move made.
@@ -232,6 +338,7 @@ public class BonanzaController {
                 BonanzaJNI.Result jr,
                 Player curPlayer) {
             Result r = new Result();
+            jr.syncBoard();
             r.board = jr.board;
             r.lastMove = (jr.move != null) ? Play.fromCsaString(jr.move, curPlayer) : null;
             r.lastPlayer = curPlayer;
@@ -282,6 +389,7 @@ public class BonanzaController {
                         throw new AssertionError("Illegal jni_status: " + jr.status);
                 }
             }
+            if (r.nextPlayer != Player.INVALID) r.board.setNextPlayer(r.nextPlayer);
             return r;
         }
     }
@@ -290,44 +398,69 @@ public class BonanzaController {
     // Implementation details
     //
 
-    private final void sendInputMessage(int command, Bundle bundle) {
-        bundle.putInt("command", command);
-        Message msg = mInputHandler.obtainMessage();
-        msg.setData(bundle);
-        mInputHandler.sendMessage(msg);
+    // Arguments of a command, handed to the controller thread by reference
+    // as Message.obj. Each command uses the fields it needs.
+    private static final class Command {
+        int resumeInstanceId;
+        Board board;
+        Player player;
+        Play play;
+        ArrayList<Play> moves;
+        int preplayCount;
+        int blackTime, whiteTime;
+        int cookie1, cookie2;
+        int timeMs;
+        long maxNodes;
+        int moveToken;
+    }
+
+    private final void sendInputMessage(int command, Command c) {
+        mInputHandler.sendMessage(mInputHandler.obtainMessage(command, c));
     }
 
     private final void sendOutputMessage(Result result) {
-        Message msg = mOutputHandler.obtainMessage();
-        Bundle b = new Bundle();
-        b.putSerializable("result", result);
-        msg.setData(b);
-        mOutputHandler.sendMessage(msg);
+        mOutputHandler.sendMessage(mOutputHandler.obtainMessage(0, result));
     }
 
-    private final void doStart(int resumeInstanceId, Board board, Player nextPlayer, ArrayList<Play> moves, int preplayCount, int blackTime, int whiteTime) {
+    private final BonanzaJNI.Result newJniResult() {
         BonanzaJNI.Result jr = new BonanzaJNI.Result();
+        jr.boardBuffer = mBoardBuffer;
+        return jr;
+    }
+
+    private final void doStart(int resumeInstanceId, Board board, Player nextPlayer, ArrayList<Play> moves, int preplayCount, int blackTime, int whiteTime) {
+        BonanzaJNI.Result jr = newJniResult();
         if (board == null) {
             throw new AssertionError("BOARD==null");
         }
         mInstanceId = BonanzaJNI.startGame(
-                resumeInstanceId, board, (nextPlayer == Player.BLACK) ? 0 : 1, mComputerDifficulty,
-                mCores, maxTime[mComputerDifficulty][0], maxTime[mComputerDifficulty][1], jr);
+                mEngine, resumeInstanceId, board, (nextPlayer == Player.BLACK) ? 0 : 1, mComputerDifficulty,
+                mCores, maxTime[mComputerDifficulty][0], maxTime[mComputerDifficulty][1], mHashMb, jr);
         if (jr.status != BonanzaJNI.R_OK) {
             throw new AssertionError(String.format("startGame failed: %d %s", jr.status, jr.error));
         }
+        BonanzaJNI.setPondering(mEngine, mPonder);
         Result r = new Result();
+        jr.syncBoard();
+        jr.board.setNextPlayer(nextPlayer);
         r.board = jr.board;
         r.nextPlayer = nextPlayer;
         r.gameState = GameState.ACTIVE;
 
         sendOutputMessage(r);
 
+        if (Log.isLoggable(JniBenchmark.TAG, Log.DEBUG)) {
+            JniBenchmark.run(mEngine, mBoardBuffer);
+        }
+
         if (preplayCount == 0)
             return;
 
         for (int i=0; i < preplayCount ; i++) {
-            BonanzaJNI.humanMove(mInstanceId, moves.get(i).toCsaString(), jr);
+            // A fresh Result each time: the receiver owns the Board of
+            // every Result sent, including the one sent above.
+            jr = newJniResult();
+            BonanzaJNI.humanMove(mEngine, mInstanceId, moves.get(i).toCsaString(), jr);
             if (jr.status == BonanzaJNI.R_INSTANCE_DELETED) {
                 mThread.quit();
                 return;
@@ -349,12 +482,12 @@ public class BonanzaController {
 
         r.lastMove = null; // do not record move
         sendOutputMessage(r);
-        BonanzaJNI.resetTime(blackTime, whiteTime);
+        BonanzaJNI.resetTime(mEngine, blackTime, whiteTime);
     }
 
     private final void doHumanPlay(Player player, Play move) {
-        BonanzaJNI.Result jr = new BonanzaJNI.Result();
-        BonanzaJNI.humanMove(mInstanceId, move.toCsaString(), jr);
+        BonanzaJNI.Result jr = newJniResult();
+        BonanzaJNI.humanMove(mEngine, mInstanceId, move.toCsaString(), jr);
         if (jr.status == BonanzaJNI.R_INSTANCE_DELETED) {
             mThread.quit();
             return;
@@ -362,21 +495,47 @@ public class BonanzaController {
         sendOutputMessage(Result.fromJNI(jr, player));
     }
 
-    private final void doComputerPlay(Player player) {
-        BonanzaJNI.Result jr = new BonanzaJNI.Result();
-        BonanzaJNI.computerMove(mInstanceId, jr);
+    private final void doComputerPlay(final Player player, int timeMs, long maxNodes, int moveToken) {
+        BonanzaJNI.Result jr = newJniResult();
+        if (mProgressListener != null) {
+            BonanzaJNI.setSearchProgressListener(mEngine, new BonanzaJNI.SearchProgressListener() {
+                @Override
+                public void onSearchProgress(int depth, long nodes, int nps, int score, String pv) {
+                    SearchProgress p = new SearchProgress();
+                    p.player = player;
+                    p.depth = depth;
+                    p.nodes = nodes;
+                    p.nps = nps;
+                    p.score = score;
+                    p.pv = pv;
+                    if (mPendingProgress.getAndSet(p) == null) {
+                        mOutputHandler.post(mDeliverProgress);
+                    }
+                }
+            });
+        }
+        try {
+            BonanzaJNI.computerMove(mEngine, mInstanceId, timeMs, maxNodes, moveToken, jr);
+        } finally {
+            BonanzaJNI.setSearchProgressListener(mEngine, null);
+        }
         if (jr.status == BonanzaJNI.R_INSTANCE_DELETED) {
             Log.d(TAG, "Instance deleted");
             mThread.quit();
             return;
         }
+        if (Log.isLoggable(TAG, Log.DEBUG)) {
+            if (mPonder) logPonderStats();
+            logStats();
+            logBookStats();
+        }
         sendOutputMessage(Result.fromJNI(jr, player));
     }
 
     private final void doUndo(Player player, int cookie1, int cookie2) {
-        BonanzaJNI.Result jr = new BonanzaJNI.Result();
+        BonanzaJNI.Result jr = newJniResult();
         Log.d(TAG, "Undo " + cookie1 + " " + cookie2);
-        BonanzaJNI.undo(mInstanceId, cookie1, cookie2, jr);
+        BonanzaJNI.undo(mEngine, mInstanceId, cookie1, cookie2, jr);
         if (jr.status == BonanzaJNI.R_INSTANCE_DELETED) {
             Log.d(TAG, "Instance deleted");
             mThread.quit();
@@ -393,8 +552,57 @@ public class BonanzaController {
         sendOutputMessage(r);
     }
 
+    private final void logPonderStats() {
+        long[] stats = new long[BonanzaJNI.NUM_PONDER_STATS];
+        BonanzaJNI.getPonderStats(mEngine, stats);
+        long hits = stats[BonanzaJNI.PONDER_HITS];
+        long tries = hits + stats[BonanzaJNI.PONDER_MISSES];
+        Log.d(TAG, String.format("Ponder: %d searches, %d/%d hits (%d%%), %.1fs saved",
+                stats[BonanzaJNI.PONDER_SEARCHES], hits, tries,
+                tries > 0 ? hits * 100 / tries : 0,
+                stats[BonanzaJNI.PONDER_SAVED_MS] / 1000.0));
+    }
+
+    private final void logStats() {
+        long[] stats = new long[BonanzaJNI.NUM_STATS];
+        BonanzaJNI.getStats(mEngine, stats);
+        long nodes = Math.max(1, stats[BonanzaJNI.STAT_NODES]);
+        long probes = Math.max(1, stats[BonanzaJNI.STAT_HASH_PROBES]);
+        Log.d(TAG, String.format(
+                "Stats: %d searches in %.1fs, %d nodes (%d%% quiescence), %d nps, " +
+                "hash %d%% hits %d%% cutoffs %d overwrites, mate %d/%d, book %d/%d",
+                stats[BonanzaJNI.STAT_SEARCHES], stats[BonanzaJNI.STAT_SEARCH_MS] / 1000.0,
+                stats[BonanzaJNI.STAT_NODES], stats[BonanzaJNI.STAT_QUIES_NODES] * 100 / nodes,
+                stats[BonanzaJNI.STAT_NPS],
+                stats[BonanzaJNI.STAT_HASH_HITS] * 100 / probes,
+                stats[BonanzaJNI.STAT_HASH_CUTOFFS] * 100 / probes,
+                stats[BonanzaJNI.STAT_HASH_OVERWRITES],
+                stats[BonanzaJNI.STAT_MATE1PLY_CALLS], stats[BonanzaJNI.STAT_MATE3_CALLS],
+                stats[BonanzaJNI.STAT_BOOK_HITS], stats[BonanzaJNI.STAT_BOOK_PROBES]));
+        StringBuilder threads = new StringBuilder("Threads:");
+        int n = (int) Math.min(stats[BonanzaJNI.STAT_THREADS], BonanzaJNI.MAX_THREADS);
+        for (int i = 0; i < n; ++i) {
+            threads.append(String.format(" #%d %d splits %.1fs idle", i,
+                    stats[BonanzaJNI.STAT_THREAD_SPLITS + i],
+                    stats[BonanzaJNI.STAT_THREAD_IDLE_MS + i] / 1000.0));
+        }
+        Log.d(TAG, threads.toString());
+    }
+
+    private final void logBookStats() {
+        long[] stats = new long[BonanzaJNI.NUM_BOOK_STATS];
+        BonanzaJNI.getBookStats(mEngine, stats);
+        if (stats[BonanzaJNI.BOOK_PROBES] == 0) return;
+        Log.d(TAG, String.format("Book: %d/%d hits, %.1fus per probe, %dus max",
+                stats[BonanzaJNI.BOOK_HITS], stats[BonanzaJNI.BOOK_PROBES],
+                (double) stats[BonanzaJNI.BOOK_TOTAL_US] / stats[BonanzaJNI.BOOK_PROBES],
+                stats[BonanzaJNI.BOOK_MAX_US]));
+    }
+
     private final void doDestroy() {
         Log.d(TAG, "Destroy");
+        // Don't keep thinking for a game nobody plays.
+        BonanzaJNI.stopPondering(mEngine);
         mThread.quit();
     }
 }
@@ -1,10 +1,92 @@
 package mobi.omegacentauri.shogi;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 import mobi.omegacentauri.shogi.Board;
 
 // JNI interface for Bonanza
 public class BonanzaJNI {
   static {  
     System.loadLibrary("bonanza-jni");  
+    System.loadLibrary("bonanza-engine0");
+  }
+
+  //
+  // Engines. Each engine is a separate copy of Bonanza with its own search
+  // tree, transposition table, time control and game. The methods below
+  // take the handle of the engine to run on. Calls on one engine are
+  // serialized, but calls on different engines run concurrently.
+  //
+  // CAUTION: MAX_ENGINES must match BONANZA_ENGINE_SLOTS in Android.mk.
+  public static final int MAX_ENGINES = 3;
+
+  // The engine that plays games. It always exists.
+  public static final long DEFAULT_ENGINE = 0;
+
+  // The directory passed to initialize(), for newEngine().
+  private static String sStorageDir;
+
+  // Whether libbonanza-engine<slot>.so is loaded, and whether the slot is
+  // handed out by newEngine(). Guarded by BonanzaJNI.class.
+  private static final boolean[] sEngineLoaded = new boolean[MAX_ENGINES];
+  private static final boolean[] sEngineInUse = new boolean[MAX_ENGINES];
+  static {
+    sEngineLoaded[(int)DEFAULT_ENGINE] = true;
+    sEngineInUse[(int)DEFAULT_ENGINE] = true;
+  }
+
+  /**
+   * Allocate an engine in addition to DEFAULT_ENGINE, e.g., to analyze a
+   * position while a game is played. The first use of each engine loads
+   * and initializes another copy of Bonanza, which takes as long and as
+   * much memory as initialize(). Must be called after initialize().
+   *
+   * @return the handle of the engine, or -1 if all engines are in use.
+   */
+  static public long newEngine() {
+    final int slot;
+    final String dir;
+    synchronized (BonanzaJNI.class) {
+      if (sStorageDir == null) {
+        throw new IllegalStateException("BonanzaJNI.initialize() not called");
+      }
+      int free = -1;
+      for (int i = 0; i < MAX_ENGINES; ++i) {
+        if (!sEngineInUse[i]) {
+          free = i;
+          break;
+        }
+      }
+      if (free < 0) return -1;
+      slot = free;
+      if (!sEngineLoaded[slot]) {
+        System.loadLibrary("bonanza-engine" + slot);
+        sEngineLoaded[slot] = true;
+      }
+      sEngineInUse[slot] = true;
+      dir = sStorageDir;
+    }
+    // Idempotent, like initialize().
+    initializeEngine(slot, dir);
+    return slot;
+  }
+
+  /**
+   * Release an engine allocated by newEngine(). Aborts its search, if any.
+   * The engine may be handed out again, and a game started on it makes
+   * calls for the games of earlier owners fail with R_INSTANCE_DELETED.
+   */
+  static public void deleteEngine(long engine) {
+    if (engine == DEFAULT_ENGINE) {
+      throw new IllegalArgumentException("Can't delete the default engine");
+    }
+    abort(engine);
+    stopPondering(engine);
+    sProgressListeners.set((int)engine, null);
+    synchronized (BonanzaJNI.class) {
+      sEngineInUse[(int)engine] = false;
+    }
   }
 
   // TODO(saito) don't write to games.csa
@@ -22,7 +104,7 @@ public class BonanzaJNI {
   // Sennichite
   public static final int R_DRAW = -4;
   
-  // Another instance of the game started
+  // Another instance of the game started on the same engine
   public static final int R_INSTANCE_DELETED = -5;
   
   // Initialization error (e.g., required DB files not found).
@@ -50,22 +132,133 @@ public class BonanzaJNI {
     // A cookie used to undo the move in the future. In practice, the value
     // in the result of calling interpret_CSA_move(csaMove).
     public int moveCookie;
+
+    // If non-null, a direct buffer of at least Board.SNAPSHOT_SIZE bytes
+    // (big-endian). The JNI code then copies the new state of the board
+    // into it in the layout of Board.saveSnapshot(), instead of filling
+    // "board" field by field, and sets boardInBuffer. The buffer can be
+    // shared by Results used on one thread.
+    public ByteBuffer boardBuffer;
+
+    // Set by the JNI code when the board was written to boardBuffer.
+    public boolean boardInBuffer;
+
+    // Set by computerMove() only: the depth of the last iteration, the
+    // nodes searched, and the time the call took. The depth and nodes are
+    // 0 for a book move, and those of the ponder search for a ponder hit.
+    public int searchDepth;
+    public long searchNodes;
+    public int searchTimeMs;
+
+    /**
+     * Make "board" reflect the state reported by the JNI code.
+     */
+    public final void syncBoard() {
+      if (boardInBuffer) {
+        board.restoreSnapshot(boardBuffer);
+      } else {
+        // The JNI code writes Board.mSquares directly.
+        board.rebuildBitboards();
+      }
+    }
   }
   
+  // Max number of lines analyze() reports.
+  // CAUTION: This must match MPV_MAX_PV in shogi.h.
+  public static final int MAX_ANALYSIS_LINES = 16;
+
+  static public final class Analysis {
+    /**
+     * @param numLines the max number of lines to report.
+     */
+    public Analysis(int numLines) {
+      scores = new int[numLines];
+      depths = new int[numLines];
+      pvs = new String[numLines];
+    }
+
+    // One of R_XXX constants. R_NO_VALID_MOVE if the player to move has
+    // no legal move.
+    public int status;
+
+    // Error message, if any.
+    public String error;
+
+    // False if moveNow() or abort() stopped the search before its time was up.
+    public boolean complete;
+
+    // The lines found, best first. Only the first numLines elements of
+    // each array are valid. scores[i] is from the point of view of the
+    // player to move, depths[i] the depth the line was searched to, and
+    // pvs[i] the line in CSA format without the player marks, separated by
+    // spaces, e.g., "7776FU 3334FU".
+    public int numLines;
+    public final int[] scores;
+    public final int[] depths;
+    public final String[] pvs;
+  }
+
+  /**
+   * Receives reports from an ongoing computerMove() search.
+   */
+  public interface SearchProgressListener {
+    /**
+     * Called on the thread running computerMove(), at most a few times a
+     * second, while the engine is locked. It must return quickly and must
+     * not call any BonanzaJNI method.
+     *
+     * @param depth the iterative deepening depth.
+     * @param nodes the number of nodes searched so far.
+     * @param nps nodes per second since the search started.
+     * @param score evaluation of the best line, from the point of view of
+     *   the player to move. Positive is good for the computer.
+     * @param pv the best line, in CSA format without the player marks,
+     *   separated by spaces, e.g., "7776FU 3334FU".
+     */
+    void onSearchProgress(int depth, long nodes, int nps, int score, String pv);
+  }
+
+  // Indexed by engine.
+  private static final AtomicReferenceArray<SearchProgressListener> sProgressListeners =
+      new AtomicReferenceArray<SearchProgressListener>(MAX_ENGINES);
+
+  /**
+   * Set the listener for progress of subsequent computerMove() calls on
+   * "engine". Null disables progress reports.
+   */
+  static public void setSearchProgressListener(long engine, SearchProgressListener listener) {
+    sProgressListeners.set((int)engine, listener);
+  }
+
+  // Called by the JNI code.
+  private static void onSearchProgress(
+      long engine, int depth, long nodes, int nps, int score, String pv) {
+    final SearchProgressListener listener = sProgressListeners.get((int)engine);
+    if (listener != null) listener.onSearchProgress(depth, nodes, nps, score, pv);
+  }
+
   /**
-   * Initialize the C module. This should be called once on process startup.
-   * Repeated calls are idempotent. Any error in this method will be reported
-   * via subsequent startGame calls.
+   * Initialize the C module and DEFAULT_ENGINE. This should be called once
+   * on process startup. Repeated calls are idempotent. Any error in this
+   * method will be reported via subsequent startGame calls.
    * 
    * @param externalStorageDir The SD card directory that stores the Bonanza
    * fv.bin, hash.bin, book.bin files.
    */
-  static public native void initialize(
-      String externalStorageDir);
+  static public void initialize(String externalStorageDir) {
+    synchronized (BonanzaJNI.class) {
+      if (sStorageDir == null) sStorageDir = externalStorageDir;
+    }
+    initializeEngine(DEFAULT_ENGINE, externalStorageDir);
+  }
+
+  private static native void initializeEngine(long engine, String externalStorageDir);
   
   /** 
    * Start or resume a game.
    * 
+   * @param engine the engine to play the game on.
+   *
    * @param resumeInstanceId if != 0, resume the game specified by this value.
    * If this game is not active any more, start a new game.
    * 
@@ -75,12 +268,17 @@ public class BonanzaJNI {
    *   in the game. This param is non-zero only when resuming a saved game midway.
    *
    * @param difficulty 0==weak, 4==strong
+   * @param hashMb size of the transposition table in megabytes, rounded
+   *   down to a power of two number of entries. The engine settles for less
+   *   if that much memory can't be had. 0 keeps the current size, 48MB
+   *   after initialize(). Only applies when a new game starts.
    * @param result (output)  filled with the initial board configuration.
    * @return The game's instance ID. When the game has resumed 
    * resumeInstanceId, the method return its value. Otherwise it returns a newly
-   * allocated integer that's different from any prior ID (the scope is this process).
+   * allocated integer that's different from any prior ID (the scope is the engine).
    */
   static public native int startGame(
+      long engine,
       int resumeInstanceId,
       Board initialBoard,
       int next_turn,
@@ -88,9 +286,11 @@ public class BonanzaJNI {
       int numCores,
       int total_think_time_secs,    
       int per_turn_think_time_secs,
+      int hashMb,
       Result result);
 
   static public native int resetTime(
+      long engine,
       int blackTime,
       int whiteTime);
 
@@ -101,6 +301,7 @@ public class BonanzaJNI {
    * @param result (output)
    */
   static public native void humanMove(
+      long engine,
       int instanceId,
       String move,
       Result result);
@@ -108,11 +309,55 @@ public class BonanzaJNI {
   /**
    * Have the computer compute the next move. 
 
+   * @param result (output) store the move made by the computer
+   */
+  static public void computerMove(
+      long engine,
+      int instanceId,
+      Result result) {
+    computerMove(engine, instanceId, 0, 0, 0, result);
+  }
+
+  /**
+   * Like computerMove() above, with limits for this move only on top of
+   * those of the game's level. When a limit is hit, or moveNow() is called
+   * with "token", the search stops and the best move found so far is made,
+   * as when its regular time is up.
+   *
+   * @param timeMs the deadline after the call, or 0 for none.
+   * @param maxNodes the node budget, or 0 for none. It is checked with the
+   *   time, about 16 times a second, so the search may overrun it by that
+   *   much. Not applied to the search of a ponder hit.
+   * @param token from newMoveToken(), or 0 if moveNow() is not used.
    * @param result (output) store the move made by the computer
    */
   static public native void computerMove(
+      long engine,
       int instanceId,
+      int timeMs,
+      long maxNodes,
+      int token,
       Result result);
+
+  /**
+   * Return a token for computerMove() or analyze(), distinct from those
+   * handed out before.
+   */
+  static public int newMoveToken() {
+    int token = sNextMoveToken.incrementAndGet();
+    return token != 0 ? token : sNextMoveToken.incrementAndGet();
+  }
+
+  private static final AtomicInteger sNextMoveToken = new AtomicInteger();
+
+  /**
+   * Make the computerMove() call given "token" return the best move found
+   * so far, or the analyze() call given "token" the lines found so far.
+   * Takes effect even if the call has not started yet; does nothing once it
+   * has returned, so unlike abort() it can't hurt the next search or the
+   * game. Can be called from any thread.
+   */
+  static public native void moveNow(long engine, int token);
   
   /**
    * Undo up to two past moves. 
@@ -124,13 +369,198 @@ public class BonanzaJNI {
    * @param result (output)
    */
   static public native void undo(
+      long engine,
       int instanceId,
       int cookie1, int cookie2,
       Result result);
   
-  // Abort the current game. This method can be called from any thread.
-  // If another thread is running HumanMove or ComputerMove, it will see
-  // an error. The state of the game will be undefined after this call.
-  static public native void abort();
+  // Abort the current game on "engine". This method can be called from any
+  // thread. If another thread is running HumanMove or ComputerMove, it will
+  // see an error. The state of the game will be undefined after this call.
+  static public native void abort(long engine);
+
+  /**
+   * Enable or disable pondering: thinking on the expected reply while the
+   * human player thinks. When the human plays the expected move, the
+   * search continues as the computer's next search, and humanMove()
+   * returns at once. Any other move aborts it within a fraction of a
+   * second. Off by default; applies to levels without a depth limit.
+   */
+  static public native void setPondering(long engine, boolean enable);
+
+  /**
+   * Stop pondering until the computer's next move, and wait for the search
+   * to abort. If the human's move was a hit, the computer's reply found so
+   * far is discarded.
+   */
+  static public native void stopPondering(long engine);
+
+  //
+  // Indices into the array filled by getPonderStats().
+  //
+  // Number of searches of an expected reply.
+  public static final int PONDER_SEARCHES = 0;
+  // Number of times the human played the expected reply.
+  public static final int PONDER_HITS = 1;
+  // Number of times the human played another move while pondering.
+  public static final int PONDER_MISSES = 2;
+  // Total milliseconds spent pondering on replies that were hits, i.e.,
+  // thinking time the computer got for free.
+  public static final int PONDER_SAVED_MS = 3;
+  public static final int NUM_PONDER_STATS = 4;
+
+  /**
+   * Copy the pondering counters of "engine" since process start into
+   * "stats", indexed by the PONDER_XXX constants.
+   */
+  static public native void getPonderStats(long engine, long[] stats);
+
+  //
+  // Indices into the array filled by getHashStats().
+  //
+  // Number of transposition table lookups.
+  public static final int HASH_PROBES = 0;
+  // Number of lookups that found the position.
+  public static final int HASH_HITS = 1;
+  // Number of hits whose stored value ended the search of the node.
+  public static final int HASH_CUTOFFS = 2;
+  // Number of stores that evicted another position of the same search. Many
+  // of them mean that the table is too small for the search.
+  public static final int HASH_OVERWRITES = 3;
+  // Size of the table in bytes.
+  public static final int HASH_SIZE_BYTES = 4;
+  public static final int NUM_HASH_STATS = 5;
+
+  /**
+   * Copy the transposition table counters of "engine" since the last
+   * startGame() that started a new game into "stats", indexed by the
+   * HASH_XXX constants.
+   */
+  static public native void getHashStats(long engine, long[] stats);
+
+  //
+  // Indices into the array filled by getBookStats().
+  //
+  // Number of opening book lookups.
+  public static final int BOOK_PROBES = 0;
+  // Number of lookups that found the position.
+  public static final int BOOK_HITS = 1;
+  // Total and longest time of a lookup, in microseconds.
+  public static final int BOOK_TOTAL_US = 2;
+  public static final int BOOK_MAX_US = 3;
+  // 1 if book.bin is loaded, else 0.
+  public static final int BOOK_LOADED = 4;
+  public static final int NUM_BOOK_STATS = 5;
+
+  /**
+   * Copy the opening book counters of "engine" since the last startGame()
+   * that started a new game into "stats", indexed by the BOOK_XXX
+   * constants.
+   */
+  static public native void getBookStats(long engine, long[] stats);
+
+  // TLP_MAX_THREADS in Android.mk: the most threads a search can use.
+  public static final int MAX_THREADS = 8;
+
+  //
+  // Indices into the array filled by getStats().
+  //
+  // Number of searches that visited at least one node, and their total
+  // time in milliseconds. Book moves are not searches.
+  public static final int STAT_SEARCHES = 0;
+  public static final int STAT_SEARCH_MS = 1;
+  // Number of nodes searched, and how many of them were quiescence nodes.
+  public static final int STAT_NODES = 2;
+  public static final int STAT_QUIES_NODES = 3;
+  // STAT_NODES per second of STAT_SEARCH_MS.
+  public static final int STAT_NPS = 4;
+  // Same as HASH_PROBES, HASH_HITS, HASH_CUTOFFS and HASH_OVERWRITES.
+  public static final int STAT_HASH_PROBES = 5;
+  public static final int STAT_HASH_HITS = 6;
+  public static final int STAT_HASH_CUTOFFS = 7;
+  public static final int STAT_HASH_OVERWRITES = 8;
+  // Number of one-ply and three-ply mate searches.
+  public static final int STAT_MATE1PLY_CALLS = 9;
+  public static final int STAT_MATE3_CALLS = 10;
+  // Same as BOOK_PROBES and BOOK_HITS.
+  public static final int STAT_BOOK_PROBES = 11;
+  public static final int STAT_BOOK_HITS = 12;
+  // Number of threads the engine searches with now.
+  public static final int STAT_THREADS = 13;
+  // STAT_THREAD_SPLITS + i is the number of times thread i split its
+  // search among idle threads, and STAT_THREAD_IDLE_MS + i the time
+  // thread i had nothing to search during searches. Thread 0 is the one
+  // that started the search.
+  public static final int STAT_THREAD_SPLITS = 14;
+  public static final int STAT_THREAD_IDLE_MS = STAT_THREAD_SPLITS + MAX_THREADS;
+  public static final int NUM_STATS = STAT_THREAD_IDLE_MS + MAX_THREADS;
+
+  /**
+   * Copy a snapshot of the search counters of "engine" since the last
+   * startGame() that started a new game into "stats", indexed by the
+   * STAT_XXX constants. Searches in progress are not counted until they
+   * end.
+   */
+  static public native void getStats(long engine, long[] stats);
+
+  /**
+   * Search "board" until "timeMs" milliseconds or "maxNodes" nodes are used
+   * up, and report up to result.scores.length best moves, each with its
+   * score and line. Lines more than about two pawns worse than the best one
+   * are left out. This replaces the game on "engine", if any: further calls
+   * for it fail with R_INSTANCE_DELETED. Progress is reported to the
+   * engine's SearchProgressListener, and moveNow() with "token" stops the
+   * search early, as does abort() once the search has started.
+   *
+   * @param nextTurn 0 if Black is to move, 1 if White is.
+   * @param numThreads the number of search threads.
+   * @param timeMs the time budget, or 0 for none.
+   * @param maxNodes the node budget, or 0 for none. It is approximate with
+   *   several threads, whose nodes are counted as their work is merged.
+   * @param token from newMoveToken(), or 0 if moveNow() is not used.
+   * @param result (output)
+   */
+  static public native void analyze(
+      long engine,
+      Board board,
+      int nextTurn,
+      int numThreads,
+      int timeMs,
+      long maxNodes,
+      int token,
+      Analysis result);
+
+  /**
+   * Copy the current board of the engine into "result", for
+   * JniBenchmark. mode 0 does it the way the JNI code did before it cached
+   * class and field IDs; mode 1 is the regular path, which writes
+   * result.boardBuffer when set and result.board otherwise. Does nothing
+   * before a game is started.
+   */
+  static native void benchmarkFill(long engine, int mode, Result result);
+
+  //
+  // Indices into the array filled by bench().
+  //
+  // Nodes searched, their time in milliseconds and nodes per second.
+  public static final int BENCH_NODES = 0;
+  public static final int BENCH_TIME_MS = 1;
+  public static final int BENCH_NPS = 2;
+  // Number of positions searched.
+  public static final int BENCH_POSITIONS = 3;
+  // BENCH_POSITION_NODES + i is the number of nodes of position i.
+  public static final int BENCH_POSITION_NODES = 4;
+  public static final int MAX_BENCH_POSITIONS = 16;
+  public static final int NUM_BENCH_STATS = BENCH_POSITION_NODES + MAX_BENCH_POSITIONS;
+
+  /**
+   * Search a fixed set of positions (openings, middle games, endgames) to
+   * "depth" plies with "numThreads" threads, each from an empty
+   * transposition table of a fixed size, and fill "stats", indexed by the
+   * BENCH_XXX constants. With one thread the node counts depend only on
+   * the engine code, so they work as a signature of the search. Ends the
+   * game on "engine". Returns R_OK, or another R_XXX on failure.
+   */
+  static public native int bench(long engine, int depth, int numThreads, long[] stats);
 }
 
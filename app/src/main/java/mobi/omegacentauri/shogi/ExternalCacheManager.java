@@ -1,5 +1,7 @@
 package mobi.omegacentauri.shogi;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -58,7 +60,7 @@ public class ExternalCacheManager {
     try {
       MessageDigest digest = MessageDigest.getInstance("SHA-1");
       digest.update(k.getBytes());
-      return Util.bytesToHexText(digest.digest());
+      return TextUtil.bytesToHexText(digest.digest());
     } catch (NoSuchAlgorithmException e) {
       throw new AssertionError("MessageDigest.NoSuchAlgorithmException: " + e.getMessage());
     }
@@ -129,7 +131,9 @@ public class ExternalCacheManager {
       try {
         File path = new File(mDir, key);
         data_out = new FileOutputStream(path);
-        new ObjectOutputStream(data_out).writeObject(ent);
+        ObjectOutputStream oout = new ObjectOutputStream(new BufferedOutputStream(data_out));
+        oout.writeObject(ent);
+        oout.flush();
         mLastAccessTimes.put(key, System.currentTimeMillis());
         saveSummary();
       } finally {
@@ -162,7 +166,7 @@ public class ExternalCacheManager {
       try {
         File path = new File(mDir, key);
         data_in = new FileInputStream(path);
-        CacheEntry ent = (CacheEntry)(new ObjectInputStream(data_in).readObject());
+        CacheEntry ent = (CacheEntry)(new ObjectInputStream(new BufferedInputStream(data_in)).readObject());
         if (ent != null) {
           r.obj = ent.obj;
           r.needRefresh = (now - ent.createMs >= maxCacheStalenessMillis);
@@ -130,7 +130,14 @@ public class GameActivity extends Activity {
             mPlays, mNextPlayer, null);
     mStatusView.updateThinkTimes(mThinkTimeMs);
     int numCores = Math.min(Util.numberOfCores(), Integer.parseInt(mPrefs.getString("cores","4")));
-    mController = new BonanzaController(mEventHandler, mComputerLevel, numCores);
+    mController = new BonanzaController(mEventHandler, mComputerLevel, numCores,
+        Util.hashSizeMb(this), mPrefs.getBoolean("ponder", false));
+    mController.setSearchProgressListener(new BonanzaController.SearchProgressListener() {
+      @Override
+      public void onSearchProgress(BonanzaController.SearchProgress progress) {
+        if (!mDestroyed) mStatusView.showSearchProgress(progress);
+      }
+    });
     if (mGameState == GameState.ACTIVE) {
       if (/*! NEW_SAVES ||*/ savedInstanceState != null)
         mController.start(savedInstanceState, mBoard, mNextPlayer, null, 0, null);
@@ -373,7 +380,7 @@ public class GameActivity extends Activity {
       mMoveCookies = new ArrayList<Integer>();
     }
 
-    BonanzaJNI.abort();
+    BonanzaJNI.abort(BonanzaJNI.DEFAULT_ENGINE);
 
     // TODO: check
     if (resetTime) {
@@ -386,6 +393,13 @@ public class GameActivity extends Activity {
       setTimesFromPlays();
   }
 
+  @Override
+  protected void onPause() {
+    // Don't keep the computer thinking while nobody watches.
+    mController.moveNow();
+    super.onPause();
+  }
+
   @Override
   protected void onResume() {
     super.onResume();
@@ -487,8 +501,7 @@ public class GameActivity extends Activity {
   //
   private final Handler mEventHandler = new Handler() {
     @Override public void handleMessage(Message msg) {
-      BonanzaController.Result r = (BonanzaController.Result)(
-          msg.getData().get("result"));
+      BonanzaController.Result r = (BonanzaController.Result) msg.obj;
 
       if (r.gameState != GameState.ACTIVE) {
         deleteSaveActiveGame(GameActivity.this);
@@ -508,7 +521,7 @@ public class GameActivity extends Activity {
       if (r.undoMoves>0) {
         setTimesFromPlays();
         resetTime();
-        BonanzaJNI.resetTime((int) ((mThinkTimeMs[Player.BLACK.toIndex()] + 500) / 1000), (int) ((mThinkTimeMs[Player.WHITE.toIndex()] + 500) / 1000));
+        BonanzaJNI.resetTime(mController.getEngine(), (int) ((mThinkTimeMs[Player.BLACK.toIndex()] + 500) / 1000), (int) ((mThinkTimeMs[Player.WHITE.toIndex()] + 500) / 1000));
       }
 
       mBoardView.update(
@@ -546,17 +559,34 @@ public class GameActivity extends Activity {
   private final BoardView.EventListener mViewListener = new BoardView.EventListener() {
     public void onHumanPlay(Player player, Play play) {
       //setCurrentPlayer(Player.INVALID, play);
+      // Check the move locally so that illegal moves and forced promotions
+      // don't need a round trip to Bonanza.
+      final boolean mayStay = MoveGenerator.isLegal(mBoard, player, play);
+      final boolean mayPromote = PlayAllowsForPromotion(player, play) &&
+          MoveGenerator.isLegal(mBoard, player, promotedPlay(play));
+      if (!mayStay && !mayPromote) {
+        mBoardView.update(mGameState, null, mBoard, player, null, false);
+        mStatusView.update(mGameState, mBoard, mBoard, mPlays, player,
+            getResources().getString(R.string.illegal_move));
+        return;
+      }
       mNextPlayer = Player.INVALID;
-      if (PlayAllowsForPromotion(player, play)) {
+      if (mayStay && mayPromote) {
         mSavedPlayerForPromotion = player;
         mSavedPlayForPromotion = play;
         showDialog(DIALOG_PROMOTE);
       } else {
-        mController.humanPlay(player, play);
+        mController.humanPlay(player, mayPromote ? promotedPlay(play) : play);
       }
     }
   };
 
+  private static final Play promotedPlay(Play play) {
+    return new Play(
+        Board.promote(play.piece()),
+        play.fromX(), play.fromY(), play.toX(), play.toY());
+  }
+
   private void maybeSaveGame() {
     if (mDidHumanMove && mPlays.size() > 0) {
       TreeMap<String, String> attrs = new TreeMap<String, String>();
@@ -613,10 +643,7 @@ public class GameActivity extends Activity {
             }
 
             if (item == 0) {
-              mSavedPlayForPromotion = new Play(
-                  Board.promote(mSavedPlayForPromotion.piece()), 
-                  mSavedPlayForPromotion.fromX(), mSavedPlayForPromotion.fromY(),
-                  mSavedPlayForPromotion.toX(), mSavedPlayForPromotion.toY());
+              mSavedPlayForPromotion = promotedPlay(mSavedPlayForPromotion);
             }
             mController.humanPlay(mSavedPlayerForPromotion, mSavedPlayForPromotion);
             mSavedPlayForPromotion = null;
@@ -672,6 +699,8 @@ public class GameActivity extends Activity {
     inflater.inflate(R.menu.game_context_menu, menu);
     menu.findItem(R.id.game_undo).setEnabled(mUndosRemaining > 0 && mHumanPlayers.size() > 0);
     menu.findItem(R.id.log).setEnabled(mDidHumanMove || mHumanPlayers.size() == 0);
+    menu.findItem(R.id.game_move_now).setEnabled(
+        mGameState == GameState.ACTIVE && isComputerPlayer(mNextPlayer));
   }
 
   @Override
@@ -686,6 +715,9 @@ public class GameActivity extends Activity {
       case R.id.game_undo:
         undo();
         return true;
+      case R.id.game_move_now:
+        mController.moveNow();
+        return true;
       case R.id.log:
         maybeSaveGame();
         return true;
@@ -0,0 +1,185 @@
+package mobi.omegacentauri.shogi;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+
+import android.util.Log;
+
+/**
+ * Engine evaluation of every position of a GameLog, and the mistakes it
+ * reveals. Filled by GameLogAnalyzer.
+ * <p>
+ * Position i is the one before play i; position log.numPlays() is the final
+ * one. The analysis is saved as a text file next to the log, one line per
+ * position, in the order the positions are evaluated:
+ *
+ * <pre>
+ * # analysis DIGEST NODES
+ * POSITION SCORE DEPTH BEST_MOVE
+ * </pre>
+ *
+ * DIGEST is GameLog.digest() and NODES the node budget per position.
+ * SCORE is from the point of view of the player to move, and BEST_MOVE is
+ * in CSA format, or "-" if the player has no legal move.
+ * <p>
+ * GameLogAnalyzer fills the analysis while the UI thread reads it, so the
+ * methods that touch the results are synchronized.
+ */
+public class GameAnalysis {
+  private static final String TAG = "GameAnalysis";
+  private static final String HEADER = "# analysis";
+
+  // A play that loses this many points is a mistake. A pawn is worth about
+  // 100.
+  public static final int MISTAKE_THRESHOLD = 300;
+
+  // Scores are capped at this when computing the loss of a play, so that
+  // plays in a game that is already decided aren't flagged.
+  private static final int DECIDED_SCORE = 2000;
+
+  // The score of a position in which the player to move has no legal move.
+  public static final int NO_MOVE_SCORE = -32000;
+
+  private final String mDigest;
+  private final long mNodes;
+  private final boolean[] mDone;
+  private final int[] mScores;
+  private final int[] mDepths;
+  private final String[] mBestMoves;
+  private int mNumDone;
+
+  public GameAnalysis(GameLog log, long nodes) {
+    mDigest = log.digest();
+    mNodes = nodes;
+    final int n = log.numPlays() + 1;
+    mDone = new boolean[n];
+    mScores = new int[n];
+    mDepths = new int[n];
+    mBestMoves = new String[n];
+  }
+
+  /**
+   * Return the file that stores the analysis of "log": next to the log if
+   * it is on sdcard, and in "dir" otherwise.
+   */
+  public static File fileFor(GameLog log, File dir) {
+    File path = log.path();
+    if (path != null) return new File(path.getPath() + ".analysis");
+    return new File(dir, log.digest() + ".analysis");
+  }
+
+  /**
+   * Read the analysis of "log" from "file". Return null if the file doesn't
+   * exist or was written for another log or node budget. A truncated last
+   * line, e.g., of an interrupted analysis, is ignored.
+   */
+  public static GameAnalysis read(File file, GameLog log, long nodes) throws IOException {
+    if (!file.exists()) return null;
+    GameAnalysis a = new GameAnalysis(log, nodes);
+    BufferedReader in = new BufferedReader(
+        new InputStreamReader(new FileInputStream(file), "UTF-8"));
+    try {
+      String line = in.readLine();
+      if (line == null || !line.equals(a.header())) return null;
+      while ((line = in.readLine()) != null) {
+        String[] f = line.split(" ");
+        if (f.length != 4) continue;
+        try {
+          final int i = Integer.parseInt(f[0]);
+          if (i < 0 || i >= a.mDone.length) continue;
+          a.set(i, Integer.parseInt(f[1]), Integer.parseInt(f[2]),
+              f[3].equals("-") ? null : f[3]);
+        } catch (NumberFormatException e) {
+          Log.d(TAG, file.getPath() + ": ignoring line: " + line);
+        }
+      }
+    } finally {
+      in.close();
+    }
+    return a;
+  }
+
+  /**
+   * Write the first line of the file.
+   */
+  public final void writeHeader(Writer out) throws IOException {
+    out.write(header() + "\n");
+  }
+
+  /**
+   * Write the line of position i, which must be done.
+   */
+  public final synchronized void writePosition(Writer out, int i) throws IOException {
+    Assert.isTrue(mDone[i]);
+    out.write(String.format("%d %d %d %s\n", i, mScores[i], mDepths[i],
+        mBestMoves[i] != null ? mBestMoves[i] : "-"));
+  }
+
+  private final String header() {
+    return HEADER + " " + mDigest + " " + mNodes;
+  }
+
+  /**
+   * Record the evaluation of position i. "bestMove" is null if the player to
+   * move has no legal move.
+   */
+  public final synchronized void set(int i, int score, int depth, String bestMove) {
+    if (!mDone[i]) ++mNumDone;
+    mDone[i] = true;
+    mScores[i] = score;
+    mDepths[i] = depth;
+    mBestMoves[i] = bestMove;
+  }
+
+  public final int numPositions() { return mDone.length; }
+  public final synchronized int numDone() { return mNumDone; }
+  public final synchronized boolean isComplete() { return mNumDone == mDone.length; }
+  public final long nodes() { return mNodes; }
+
+  public final synchronized boolean hasPosition(int i) { return mDone[i]; }
+  public final synchronized int score(int i) { return mScores[i]; }
+  public final synchronized int depth(int i) { return mDepths[i]; }
+  public final synchronized String bestMove(int i) { return mBestMoves[i]; }
+
+  /**
+   * Return true if the loss of play i is known, i.e., positions i and i + 1
+   * are done.
+   */
+  public final synchronized boolean hasPlay(int i) {
+    return i >= 0 && i + 1 < mDone.length && mDone[i] && mDone[i + 1];
+  }
+
+  /**
+   * Return the points play i lost for the player who made it: the score
+   * before the play minus the score after it, both from the player's point
+   * of view. Requires hasPlay(i).
+   */
+  public final synchronized int loss(int i) {
+    Assert.isTrue(hasPlay(i));
+    return cap(mScores[i]) + cap(mScores[i + 1]);
+  }
+
+  public final synchronized boolean isMistake(int i) {
+    return hasPlay(i) && loss(i) >= MISTAKE_THRESHOLD;
+  }
+
+  /**
+   * Return the number of mistakes among the plays of "player". Black makes
+   * the even-numbered plays.
+   */
+  public final synchronized int numMistakes(Player player) {
+    int n = 0;
+    for (int i = (player == Player.BLACK ? 0 : 1); i + 1 < mDone.length; i += 2) {
+      if (isMistake(i)) ++n;
+    }
+    return n;
+  }
+
+  private static int cap(int score) {
+    return Math.max(-DECIDED_SCORE, Math.min(DECIDED_SCORE, score));
+  }
+}
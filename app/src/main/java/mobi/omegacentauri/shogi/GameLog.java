@@ -1,9 +1,13 @@
 package mobi.omegacentauri.shogi;
 
 import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamField;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.Reader;
@@ -13,6 +17,7 @@ import java.io.Writer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Comparator;
 import java.util.GregorianCalendar;
@@ -33,6 +38,10 @@ import android.util.Log;
 @SuppressWarnings("serial") 
 public class GameLog implements Serializable {
   private static final String TAG = "GameLog";
+
+  // The value the default computation gave before writeReplace() was added,
+  // so that summaries written by older versions can still be read.
+  private static final long serialVersionUID = -7425034756916016976L;
   
   // Common mAttrs keys. They are also the standard KIF headers.
   public static final String ATTR_TITLE = "表題";
@@ -50,15 +59,39 @@ public class GameLog implements Serializable {
   private TreeMap<String, String> mAttrs;
   
   private long mStartTimeMs;  // UTC in millisec
-  private ArrayList<Play> mPlays;
   private String mDigest;  // cached value of getDigest().
   private File mPath;  // the path on sdcard. null in the log is only in memory
+
+  // The plays. mMoves[i] is the packed move of play i (see Play.pack()),
+  // and mTimes[i * 2], mTimes[i * 2 + 1] are its start and end times. The
+  // arrays may have room for more than mNumPlays plays. play() creates
+  // Play objects on demand.
+  private int mNumPlays;
+  private int[] mMoves;
+  private long[] mTimes;
   
   private GameLog() {
     mAttrs = new TreeMap<String, String>();
-    mPlays = new ArrayList<Play>();
+    mMoves = new int[0];
+    mTimes = new long[0];
     mPath = null;
   }
+
+  private final void addPlay(Play play) {
+    addPlay(play.packed(), play.startTime(), play.endTime());
+  }
+
+  private final void addPlay(int packed, long startTimeInMs, long endTimeInMs) {
+    if (mNumPlays == mMoves.length) {
+      final int capacity = Math.max(64, mNumPlays * 2);
+      mMoves = Arrays.copyOf(mMoves, capacity);
+      mTimes = Arrays.copyOf(mTimes, capacity * 2);
+    }
+    mMoves[mNumPlays] = packed;
+    mTimes[mNumPlays * 2] = startTimeInMs;
+    mTimes[mNumPlays * 2 + 1] = endTimeInMs;
+    ++mNumPlays;
+  }
   
   public String attrsToString() {
     StringBuilder b = new StringBuilder();
@@ -113,10 +146,10 @@ public class GameLog implements Serializable {
           digest.update(e.getKey().getBytes());
           digest.update(e.getValue().getBytes());
         }
-        for (int i = 0; i < mPlays.size(); ++i) {
-          digest.update(mPlays.get(i).toString().getBytes());
+        for (int i = 0; i < mNumPlays; ++i) {
+          digest.update(play(i).toString().getBytes());
         }
-        mDigest = Util.bytesToHexText(digest.digest());
+        mDigest = TextUtil.bytesToHexText(digest.digest());
       } catch (NoSuchAlgorithmException e) {
         throw new AssertionError("MessageDigest.NoSuchAlgorithmException: " + e.getMessage());
       }
@@ -135,9 +168,27 @@ public class GameLog implements Serializable {
     return Handicap.NONE;
   }
   
-  public final Play play(int n) { return mPlays.get(n); }
-  public final int numPlays() { return mPlays.size(); }
-  public final ArrayList<Play> plays() { return mPlays; }
+  /**
+   * Return play "n". Each call creates a new Play, so changes to it don't
+   * affect the log.
+   */
+  public final Play play(int n) {
+    if (n < 0 || n >= mNumPlays) {
+      throw new IndexOutOfBoundsException("Play " + n + " of " + mNumPlays);
+    }
+    return new Play(mMoves[n], mTimes[n * 2], mTimes[n * 2 + 1]);
+  }
+
+  public final int numPlays() { return mNumPlays; }
+
+  /**
+   * Return a new list of all the plays.
+   */
+  public final ArrayList<Play> plays() {
+    ArrayList<Play> plays = new ArrayList<Play>(mNumPlays);
+    for (int i = 0; i < mNumPlays; ++i) plays.add(play(i));
+    return plays;
+  }
 
   public final String getPlayer(String playerAttr) {
     String name = mAttrs.get(playerAttr);
@@ -240,11 +291,82 @@ public class GameLog implements Serializable {
     for (Map.Entry<String, String> e : attrs) {
       log.mAttrs.put(e.getKey(), e.getValue());
     }
-    log.mPlays = new ArrayList<Play>(plays);
+    for (Play play : plays) log.addPlay(play);
     log.mPath = path;
     return log;
   }
 
+  /**
+   * Write the log in the compact binary encoding: the start time, the
+   * attributes, the sdcard path, the digest, and the plays (see
+   * Play.writeTo()).
+   */
+  public final void writeTo(DataOutput out) throws IOException {
+    out.writeLong(mStartTimeMs);
+    BinaryCodec.writeVarint(out, mAttrs.size());
+    for (Map.Entry<String, String> e : mAttrs.entrySet()) {
+      out.writeUTF(e.getKey());
+      out.writeUTF(e.getValue());
+    }
+    out.writeUTF(mPath != null ? mPath.getPath() : "");
+    out.writeUTF(digest());
+    BinaryCodec.writeVarint(out, mNumPlays);
+    for (int i = 0; i < mNumPlays; ++i) {
+      Play.writeTo(out, mMoves[i], mTimes[i * 2], mTimes[i * 2 + 1]);
+    }
+  }
+
+  /**
+   * Read a log written by writeTo() with encoding "version".
+   */
+  public static GameLog readFrom(DataInput in, int version) throws IOException {
+    GameLog log = new GameLog();
+    log.mStartTimeMs = in.readLong();
+    for (int n = (int)BinaryCodec.readVarint(in); n > 0; --n) {
+      final String key = in.readUTF();
+      log.mAttrs.put(key, in.readUTF());
+    }
+    final String path = in.readUTF();
+    log.mPath = path.isEmpty() ? null : new File(path);
+    log.mDigest = in.readUTF();
+    final int numPlays = (int)BinaryCodec.readVarint(in);
+    log.mMoves = new int[numPlays];
+    log.mTimes = new long[numPlays * 2];
+    for (int i = 0; i < numPlays; ++i) {
+      log.mMoves[i] = Play.readFrom(in, version, log.mTimes, i * 2);
+    }
+    log.mNumPlays = numPlays;
+    return log;
+  }
+
+  private Object writeReplace() { return new BinaryCodec.Proxy(this); }
+
+  // The fields of GameLog as serialized by older versions, before it had
+  // writeReplace() and the packed plays. Only readObject() uses them.
+  private static final ObjectStreamField[] serialPersistentFields = {
+    new ObjectStreamField("mAttrs", TreeMap.class),
+    new ObjectStreamField("mStartTimeMs", Long.TYPE),
+    new ObjectStreamField("mPlays", ArrayList.class),
+    new ObjectStreamField("mDigest", String.class),
+    new ObjectStreamField("mPath", File.class),
+  };
+
+  @SuppressWarnings("unchecked")
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    ObjectInputStream.GetField f = in.readFields();
+    mAttrs = (TreeMap<String, String>)f.get("mAttrs", null);
+    if (mAttrs == null) mAttrs = new TreeMap<String, String>();
+    mStartTimeMs = f.get("mStartTimeMs", 0L);
+    mDigest = (String)f.get("mDigest", null);
+    mPath = (File)f.get("mPath", null);
+    mMoves = new int[0];
+    mTimes = new long[0];
+    ArrayList<Play> plays = (ArrayList<Play>)f.get("mPlays", null);
+    if (plays != null) {
+      for (Play play : plays) addPlay(play);
+    }
+  }
+
   /**
    * Parse an embedded KIF file downloaded from http://wiki.optus.nu/.
    * Such a file can be created by saving a "テキスト表示" link directly to a file.
@@ -252,7 +374,7 @@ public class GameLog implements Serializable {
    * @param path The path in which the file is stored. Can be null.
    */
   public static GameLog parseHtml(File path, InputStream stream) throws ParseException, IOException {
-    BufferedReader reader = new BufferedReader(Util.inputStreamToReader(stream, "EUC-JP"));
+    BufferedReader reader = new BufferedReader(TextUtil.inputStreamToReader(stream, "EUC-JP"));
     String line;
     StringBuilder output = new StringBuilder();
     boolean kifFound = false;
@@ -311,11 +433,11 @@ public class GameLog implements Serializable {
     }
     b.append("手数----指手---------消費時間--").append(EOL);
     Board board = new Board();
-    board.initialize(Handicap.NONE);
+    board.initialize(handicap());
     Player player = Player.BLACK;
-    for (int i = 0; i < mPlays.size(); ++i) {
-      Play thisPlay = mPlays.get(i);
-      Play prevPlay = (i > 0 ? mPlays.get(i - 1) : null);
+    Play prevPlay = null;
+    for (int i = 0; i < mNumPlays; ++i) {
+      Play thisPlay = play(i);
       Play.TraditionalNotation n = thisPlay.toTraditionalNotation(board, prevPlay);
       b.append(String.format("%4d %s%s%s", 
           i + 1,
@@ -347,6 +469,7 @@ public class GameLog implements Serializable {
       b.append(EOL);
       board.applyPly(player, thisPlay);
       player = player.opponent();
+      prevPlay = thisPlay;
     }
     stream.write(b.toString());
     stream.close();
@@ -357,7 +480,7 @@ public class GameLog implements Serializable {
    * an exception, it always return a non-null GameLog object.
    */
   public static GameLog parseKif(File path, InputStream in) throws ParseException, IOException {
-    Reader stream = Util.inputStreamToReader(in, "SHIFT-JIS");
+    Reader stream = TextUtil.inputStreamToReader(in, "SHIFT-JIS");
     return doParseKif(path, stream);
   }
 
@@ -403,7 +526,7 @@ public class GameLog implements Serializable {
         } else {
           Play m = Play.fromKifString(prevPlay, curPlayer, playString);
           if (m != null) {
-            l.mPlays.add(m);
+            l.addPlay(m);
             prevPlay = m;
           }
           curPlayer = curPlayer.opponent();
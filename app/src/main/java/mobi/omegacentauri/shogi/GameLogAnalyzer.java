@@ -0,0 +1,194 @@
+package mobi.omegacentauri.shogi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import android.os.Handler;
+import android.util.Log;
+
+/**
+ * Evaluates every position of a GameLog in the background, to find the
+ * mistakes of both players. See GameAnalysis.
+ * <p>
+ * Each position is searched with a fixed node budget, on an engine of its
+ * own from BonanzaJNI.newEngine(), with one search thread per core. The
+ * result of each position is saved as soon as it is known, so an analysis
+ * that is cancelled or killed resumes where it stopped.
+ */
+public class GameLogAnalyzer {
+    private static final String TAG = "GameLogAnalyzer";
+
+    // Node budget per position.
+    public static final long NODES_PER_POSITION = 1000000;
+
+    public interface Listener {
+        /**
+         * Called on the thread that created the analyzer after each
+         * position, and once after the saved results are read.
+         */
+        void onProgress(GameAnalysis analysis);
+
+        /**
+         * Called on the thread that created the analyzer when the analysis
+         * stops. "analysis" is null if it couldn't be read.
+         *
+         * @param status BonanzaJNI.R_OK, or the error of the search or I/O.
+         */
+        void onFinish(GameAnalysis analysis, int status, String error);
+    }
+
+    private final GameLog mLog;
+    private final File mFile;
+    private final String mStorageDir;
+    private final Listener mListener;
+    private final Handler mOutputHandler;
+    private final Thread mThread;
+
+    private volatile boolean mCancelled;
+
+    // The BonanzaJNI token of every search, so that cancel() stops the
+    // current one even if it hasn't started yet.
+    private final int mSearchToken = BonanzaJNI.newMoveToken();
+
+    // The engine, or -1. Set by mThread.
+    private volatile long mEngine = -1;
+
+    /**
+     * @param file where the analysis is saved. See GameAnalysis.fileFor().
+     * @param storageDir the directory passed to BonanzaJNI.initialize().
+     */
+    public GameLogAnalyzer(GameLog log, File file, String storageDir, Listener listener) {
+        mLog = log;
+        mFile = file;
+        mStorageDir = storageDir;
+        mListener = listener;
+        mOutputHandler = new Handler();
+        mThread = new Thread("GameLogAnalyzer") {
+            @Override
+            public void run() {
+                doAnalyze();
+            }
+        };
+    }
+
+    public final void start() {
+        mThread.start();
+    }
+
+    /**
+     * Stop the analysis. The positions done so far stay saved. The listener
+     * is not called after this method returns.
+     */
+    public final void cancel() {
+        mCancelled = true;
+        final long engine = mEngine;
+        if (engine >= 0) BonanzaJNI.moveNow(engine, mSearchToken);
+    }
+
+    private final void doAnalyze() {
+        GameAnalysis analysis = null;
+        int status = BonanzaJNI.R_OK;
+        String error = null;
+        try {
+            analysis = GameAnalysis.read(mFile, mLog, NODES_PER_POSITION);
+            if (analysis == null) {
+                analysis = new GameAnalysis(mLog, NODES_PER_POSITION);
+            }
+            postProgress(analysis);
+            if (!analysis.isComplete()) {
+                BonanzaJNI.initialize(mStorageDir);
+                mEngine = BonanzaJNI.newEngine();
+                if (mEngine < 0) {
+                    status = BonanzaJNI.R_INITIALIZATION_ERROR;
+                    error = "No engine available";
+                } else {
+                    BonanzaJNI.Analysis result = searchPositions(analysis);
+                    if (result != null) {
+                        status = result.status;
+                        error = result.error;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.d(TAG, mFile.getPath() + ": " + e.getMessage());
+            status = BonanzaJNI.R_FATAL_ERROR;
+            error = e.getMessage();
+        } finally {
+            if (mEngine >= 0) BonanzaJNI.deleteEngine(mEngine);
+            mEngine = -1;
+        }
+
+        final GameAnalysis a = analysis;
+        final int s = status;
+        final String e = error;
+        mOutputHandler.post(new Runnable() {
+            public void run() {
+                if (!mCancelled) mListener.onFinish(a, s, e);
+            }
+        });
+    }
+
+    // Search the positions not yet in "analysis", and save each. Returns
+    // the result of a failed search, or null.
+    private final BonanzaJNI.Analysis searchPositions(GameAnalysis analysis) throws IOException {
+        // Rewrite the file rather than append to it, in case its last line
+        // was cut short.
+        File dir = mFile.getParentFile();
+        if (dir != null) dir.mkdirs();
+        Writer out = new OutputStreamWriter(new FileOutputStream(mFile), "UTF-8");
+        try {
+            analysis.writeHeader(out);
+            for (int i = 0; i < analysis.numPositions(); ++i) {
+                if (analysis.hasPosition(i)) analysis.writePosition(out, i);
+            }
+            out.flush();
+
+            final int numThreads = Runtime.getRuntime().availableProcessors();
+            BonanzaJNI.Analysis result = new BonanzaJNI.Analysis(1);
+            Board board = new Board();
+            board.initialize(mLog.handicap());
+            Player player = Player.BLACK;
+            for (int i = 0; i < analysis.numPositions() && !mCancelled; ++i) {
+                if (!analysis.hasPosition(i)) {
+                    result.error = null;  // analyze() only sets it on failure
+                    BonanzaJNI.analyze(mEngine, board,
+                            player == Player.WHITE ? 1 : 0, numThreads,
+                            0, NODES_PER_POSITION, mSearchToken, result);
+                    if (result.status == BonanzaJNI.R_NO_VALID_MOVE) {
+                        analysis.set(i, GameAnalysis.NO_MOVE_SCORE, 0, null);
+                    } else if (result.status != BonanzaJNI.R_OK) {
+                        return result;
+                    } else if (!result.complete) {
+                        break;  // cancelled
+                    } else if (result.numLines == 0) {
+                        analysis.set(i, GameAnalysis.NO_MOVE_SCORE, 0, null);
+                    } else {
+                        analysis.set(i, result.scores[0], result.depths[0],
+                                result.pvs[0].split(" ")[0]);
+                    }
+                    analysis.writePosition(out, i);
+                    out.flush();
+                    postProgress(analysis);
+                }
+                if (i < mLog.numPlays()) {
+                    board.applyPly(player, mLog.play(i));
+                    player = player.opponent();
+                }
+            }
+        } finally {
+            out.close();
+        }
+        return null;
+    }
+
+    private final void postProgress(final GameAnalysis analysis) {
+        mOutputHandler.post(new Runnable() {
+            public void run() {
+                if (!mCancelled) mListener.onProgress(analysis);
+            }
+        });
+    }
+}
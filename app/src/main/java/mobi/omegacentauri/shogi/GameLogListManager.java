@@ -7,6 +7,10 @@ import android.preference.PreferenceManager;
 import android.util.Log;
 import android.widget.Toast;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -15,7 +19,6 @@ import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
@@ -271,8 +274,17 @@ public class GameLogListManager {
     try {
       try {
         fin = context.openFileInput(path);
-        ObjectInputStream oin = new ObjectInputStream(fin);
-        summary = (LogList)oin.readObject();
+        BufferedInputStream in = new BufferedInputStream(fin);
+        in.mark(4);
+        DataInputStream din = new DataInputStream(in);
+        if (din.readInt() == SUMMARY_MAGIC) {
+          summary = readSummaryData(din);
+        } else {
+          // Written by an older version with Java serialization.
+          in.reset();
+          ObjectInputStream oin = new ObjectInputStream(in);
+          summary = (LogList)oin.readObject();
+        }
       } finally {
         if (fin != null) fin.close();
       }
@@ -304,9 +316,9 @@ public class GameLogListManager {
     try {
       try {
         fout = context.openFileOutput(path, Context.MODE_PRIVATE);
-        ObjectOutputStream oout = new ObjectOutputStream(fout);
-        oout.writeObject(summary);
-        oout.close();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fout));
+        writeSummaryData(out, summary);
+        out.close();
       } finally {
         fout.close();
       }
@@ -318,6 +330,33 @@ public class GameLogListManager {
     }
   }
 
+  // The summary file format: SUMMARY_MAGIC, BinaryCodec.VERSION (a byte),
+  // LogList.lastScanTimeMs, the number of logs as a varint, then the logs
+  // (see GameLog.writeTo()).
+  private static final int SUMMARY_MAGIC = 0x534c4f47;  // "SLOG"
+
+  private static LogList readSummaryData(DataInputStream in) throws IOException {
+    final int version = in.readUnsignedByte();
+    BinaryCodec.checkVersion(version);
+    LogList summary = new LogList();
+    summary.lastScanTimeMs = in.readLong();
+    for (int n = (int)BinaryCodec.readVarint(in); n > 0; --n) {
+      GameLog log = GameLog.readFrom(in, version);
+      summary.logs.put(log.digest(), log);
+    }
+    return summary;
+  }
+
+  private static void writeSummaryData(DataOutputStream out, LogList summary) throws IOException {
+    out.writeInt(SUMMARY_MAGIC);
+    out.writeByte(BinaryCodec.VERSION);
+    out.writeLong(summary.lastScanTimeMs);
+    BinaryCodec.writeVarint(out, summary.logs.size());
+    for (GameLog log : summary.logs.values()) {
+      log.writeTo(out);
+    }
+  }
+
   private static boolean isHtml(String basename) {
     return basename.endsWith(".html") || basename.endsWith(".htm");
   }
@@ -415,6 +454,7 @@ public class GameLogListManager {
   //
   private static final String TAG = "ShogiLogLister";
 
+  // Serializable only to read summaries written by older versions.
   @SuppressWarnings("serial") 
   private static class LogList implements Serializable {
     public LogList() {
@@ -0,0 +1,105 @@
+package mobi.omegacentauri.shogi;
+
+import java.util.ArrayList;
+
+/**
+ * The position after any number of plays of a GameLog, for replaying it.
+ * <p>
+ * seek() steps from the current position with applyPly() and unapplyPly(),
+ * or starts from the nearest checkpoint of a PositionIndex when that's
+ * closer.
+ */
+public class GameReplay {
+  private final GameLog mLog;
+  private final PositionIndex mIndex;
+
+  private final Board mBoard = new Board();
+  private final ArrayList<Play> mPlays = new ArrayList<Play>();  // plays made up to mBoard
+  private Player mNextPlayer;
+
+  // Number of plays made so far. 0 means the beginning of the game.
+  private int mNextPlay;
+
+  // mUndo[i] is the undo record returned by applyPly() for mLog.play(i).
+  // Valid for mFirstUndo <= i < mNextPlay.
+  private final int[] mUndo;
+  private int mFirstUndo;
+
+  /**
+   * Start at the beginning of "log".
+   *
+   * @param index checkpoints of "log", possibly still being built, or null.
+   */
+  public GameReplay(GameLog log, PositionIndex index) {
+    mLog = log;
+    mIndex = index;
+    mUndo = new int[log.numPlays()];
+    mBoard.initialize(log.handicap());
+    mNextPlayer = Player.BLACK;
+  }
+
+  /**
+   * Set the position to the one after the first "numPlays" plays.
+   */
+  public void seek(int numPlays) {
+    Assert.isTrue(numPlays >= 0 && numPlays <= mLog.numPlays());
+    // Stepping back needs the undo records of the plays taken back, and
+    // previousBoard() that of the last play. A checkpoint jump skips those
+    // of the plays before it, so start over if one is missing.
+    final boolean canStep = numPlays == 0 ? mFirstUndo == 0 : numPlays > mFirstUndo;
+    final int checkpoint = (mIndex == null || numPlays == 0) ? -1 :
+        mIndex.checkpointAtOrBefore(numPlays - 1);
+    if (checkpoint >= 0 &&
+        (!canStep || numPlays - checkpoint < Math.abs(numPlays - mNextPlay))) {
+      mIndex.restore(checkpoint, mBoard);
+      mNextPlay = mFirstUndo = checkpoint;
+      mNextPlayer = (checkpoint % 2 == 0) ? Player.BLACK : Player.WHITE;
+    } else if (!canStep) {
+      mBoard.initialize(mLog.handicap());
+      mNextPlay = mFirstUndo = 0;
+      mNextPlayer = Player.BLACK;
+    }
+    while (mPlays.size() > mNextPlay) mPlays.remove(mPlays.size() - 1);
+    while (mPlays.size() < mNextPlay) mPlays.add(mLog.play(mPlays.size()));
+
+    while (mNextPlay > numPlays) {
+      --mNextPlay;
+      mNextPlayer = mNextPlayer.opponent();
+      mBoard.unapplyPly(mNextPlayer, mLog.play(mNextPlay), mUndo[mNextPlay]);
+      mPlays.remove(mPlays.size() - 1);
+    }
+    while (mNextPlay < numPlays) {
+      Play play = mLog.play(mNextPlay);
+      mUndo[mNextPlay] = mBoard.applyPly(mNextPlayer, play);
+      mNextPlayer = mNextPlayer.opponent();
+      mPlays.add(play);
+      ++mNextPlay;
+    }
+  }
+
+  /**
+   * Return a new board with the position before the last play, or board()
+   * at the beginning of the game.
+   */
+  public Board previousBoard() {
+    if (mNextPlay == 0) return mBoard;
+    Assert.isTrue(mNextPlay - 1 >= mFirstUndo);
+    Board board = new Board(mBoard);
+    board.unapplyPly(mNextPlayer.opponent(), mLog.play(mNextPlay - 1), mUndo[mNextPlay - 1]);
+    return board;
+  }
+
+  /**
+   * The current position. Changed in place by seek().
+   */
+  public Board board() { return mBoard; }
+
+  /**
+   * The plays made up to board(). Changed in place by seek().
+   */
+  public ArrayList<Play> plays() { return mPlays; }
+
+  public Player nextPlayer() { return mNextPlayer; }
+
+  public int numPlays() { return mNextPlay; }
+}
@@ -112,6 +112,7 @@ public class GameStatusView extends LinearLayout {
 
     mCurrentPlayer = currentPlayer;
     showPlayerNames();
+    if (gameState == GameState.ACTIVE) mGameStatus.setText("");
 
     while (plays.size() > mPlayList.size()) {
       // Generally, moves is just one larger than mMoveList, in which case
@@ -165,6 +166,69 @@ public class GameStatusView extends LinearLayout {
     }
   }
 
+  /**
+   * Show live information about the computer's search. Cleared by the next
+   * update().
+   */
+  public final void showSearchProgress(BonanzaController.SearchProgress progress) {
+    mGameStatus.setText(getResources().getString(R.string.search_progress,
+        progress.depth, progress.score, progress.pv, progress.nps));
+  }
+
+  public final void showAnalyzing() {
+    mGameStatus.setText(R.string.analyzing);
+  }
+
+  /**
+   * Show the result of PositionAnalyzer. "analysis" is null if no engine
+   * is available.
+   */
+  public final void showAnalysis(BonanzaJNI.Analysis analysis) {
+    if (analysis == null) {
+      mGameStatus.setText(R.string.analysis_unavailable);
+      return;
+    }
+    if (analysis.status == BonanzaJNI.R_NO_VALID_MOVE) {
+      mGameStatus.setText(R.string.analysis_no_move);
+      return;
+    }
+    if (analysis.status != BonanzaJNI.R_OK) {
+      mGameStatus.setText(analysis.error);
+      return;
+    }
+    StringBuilder b = new StringBuilder();
+    for (int i = 0; i < analysis.numLines; ++i) {
+      if (i > 0) b.append('\n');
+      b.append(getResources().getString(R.string.analysis_line,
+          analysis.depths[i], analysis.scores[i], analysis.pvs[i]));
+    }
+    mGameStatus.setText(b.toString());
+  }
+
+  /**
+   * Show what "analysis" says about the last of "numPlays" plays, and the
+   * progress of the analysis if it is "running".
+   */
+  public final void showGameAnalysis(GameAnalysis analysis, int numPlays, boolean running) {
+    StringBuilder b = new StringBuilder();
+    if (running) {
+      b.append(getResources().getString(R.string.game_analysis_progress,
+          analysis.numDone(), analysis.numPositions()));
+    } else {
+      b.append(getResources().getString(R.string.game_analysis_summary,
+          analysis.numMistakes(Player.BLACK), analysis.numMistakes(Player.WHITE)));
+    }
+    final int play = numPlays - 1;
+    if (analysis.hasPlay(play)) {
+      String best = analysis.bestMove(play);
+      b.append('\n');
+      b.append(getResources().getString(
+          analysis.isMistake(play) ? R.string.game_analysis_mistake : R.string.game_analysis_play,
+          numPlays, analysis.loss(play), best != null ? best : "-"));
+    }
+    mGameStatus.setText(b.toString());
+  }
+
   private void showPlayerNames() {
     if (mCurrentPlayer == Player.WHITE) {
       mBlackStatus.setText(mBlackPlayerName);
@@ -0,0 +1,53 @@
+package mobi.omegacentauri.shogi;
+
+import java.nio.ByteBuffer;
+
+import android.util.Log;
+
+/**
+ * Microbenchmark for handing the engine's board to Java.
+ * <p>
+ * Times round trips of BonanzaJNI.benchmarkFill() through each transfer
+ * path and logs the cost per call. Runs from BonanzaController after a game
+ * starts, when enabled with "adb shell setprop log.tag.JniBenchmark DEBUG".
+ */
+final class JniBenchmark {
+    static final String TAG = "JniBenchmark";
+
+    private static final int WARMUP = 1000;
+    private static final int ITERATIONS = 20000;
+
+    private JniBenchmark() {}
+
+    /**
+     * Must be called on the controller thread after BonanzaJNI.startGame().
+     *
+     * @param engine the engine the game was started on.
+     * @param buffer a direct buffer of at least Board.SNAPSHOT_SIZE bytes.
+     */
+    static void run(long engine, ByteBuffer buffer) {
+        BonanzaJNI.Result jr = new BonanzaJNI.Result();
+        Log.d(TAG, String.format("uncached lookups: %d ns/call",
+                nsPerCall(engine, 0, jr)));
+        Log.d(TAG, String.format("cached IDs: %d ns/call",
+                nsPerCall(engine, 1, jr)));
+        jr.boardBuffer = buffer;
+        Log.d(TAG, String.format("direct buffer: %d ns/call",
+                nsPerCall(engine, 1, jr)));
+    }
+
+    // Measure one transfer path, including the Java-side work of bringing
+    // the Board up to date, as BonanzaController does for every result.
+    private static long nsPerCall(long engine, int mode, BonanzaJNI.Result jr) {
+        for (int i = 0; i < WARMUP; ++i) {
+            BonanzaJNI.benchmarkFill(engine, mode, jr);
+            jr.syncBoard();
+        }
+        final long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; ++i) {
+            BonanzaJNI.benchmarkFill(engine, mode, jr);
+            jr.syncBoard();
+        }
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+}
@@ -0,0 +1,217 @@
+package mobi.omegacentauri.shogi;
+
+/**
+ * Legal move generator. Unlike Board.possibleMoveDestinations(), it handles
+ * drops, promotion choices, nifu, uchifuzume, pieces with no further
+ * moves, and king safety. It does not detect sennichite, which depends on
+ * the game history.
+ * <p>
+ * Moves are packed into ints (see encode()) so that they can be generated
+ * without allocation. Use toPlay() to convert one to a Play.
+ */
+public class MoveGenerator {
+  // Upper bound on the number of legal moves in any position (593 is the
+  // known maximum).
+  public static final int MAX_MOVES = 600;
+
+  // Value stored in the source square field of a packed drop.
+  private static final int DROP_SQUARE = 127;
+
+  // Scratch buffer for isLegal(), which runs on every tap on the board.
+  private static final ThreadLocal<int[]> sLegalMoves = new ThreadLocal<int[]>() {
+    @Override protected int[] initialValue() {
+      return new int[MAX_MOVES];
+    }
+  };
+
+  // Scratch buffers of generateBoardMoves(), which never runs nested, and
+  // of isPawnDropMate(), which only needs to know if there is a move.
+  private static final ThreadLocal<int[]> sDestinations = new ThreadLocal<int[]>() {
+    @Override protected int[] initialValue() {
+      return new int[Board.MAX_DESTINATIONS];
+    }
+  };
+  private static final ThreadLocal<int[]> sAnyMove = new ThreadLocal<int[]>() {
+    @Override protected int[] initialValue() {
+      return new int[1];
+    }
+  };
+
+  /**
+   * Pack a move. "piece" is the piece after the move (as in Play.piece()).
+   * "from" and "to" are square indices, x + y * Board.DIM. "from" is -1 for
+   * drops.
+   *
+   * Layout: bits 0-6: to, bits 7-13: from, bits 14-18: piece + 16.
+   */
+  public static final int encode(int piece, int from, int to) {
+    return to | ((from < 0 ? DROP_SQUARE : from) << 7) | ((piece + 16) << 14);
+  }
+
+  public static final int to(int move) { return move & 0x7f; }
+  public static final int from(int move) {
+    final int from = (move >> 7) & 0x7f;
+    return from == DROP_SQUARE ? -1 : from;
+  }
+  public static final int piece(int move) { return ((move >> 14) & 0x1f) - 16; }
+
+  public static final int encode(Play play) {
+    return encode(play.piece(),
+        play.isDroppingPiece() ? -1 : Bitboard.square(play.fromX(), play.fromY()),
+        Bitboard.square(play.toX(), play.toY()));
+  }
+
+  public static final Play toPlay(int move) {
+    final int from = from(move);
+    final int to = to(move);
+    return new Play(piece(move),
+        from < 0 ? -1 : Bitboard.squareX(from), from < 0 ? -1 : Bitboard.squareY(from),
+        Bitboard.squareX(to), Bitboard.squareY(to));
+  }
+
+  /**
+   * Store the legal moves of "player" in "moves", which must have room for
+   * MAX_MOVES entries. Returns the number of moves stored.
+   * <p>
+   * The board is modified while testing king safety, and restored before
+   * this method returns, so it must not be shared with another thread.
+   */
+  public static int generate(Board board, Player player, int[] moves) {
+    int n = generateBoardMoves(board, player, moves, 0, false);
+    return generateDrops(board, player, moves, n);
+  }
+
+  /**
+   * See if "player" can legally make "play". Promotion is part of the
+   * play: a piece that must promote is illegal when unpromoted.
+   */
+  public static boolean isLegal(Board board, Player player, Play play) {
+    if (play.player() != player) return false;
+    final int wanted = encode(play);
+    final int[] moves = sLegalMoves.get();
+    final int n = generate(board, player, moves);
+    for (int i = 0; i < n; ++i) {
+      if (moves[i] == wanted) return true;
+    }
+    return false;
+  }
+
+  /**
+   * See if the king of "player" is attacked. Returns false if "player" has
+   * no king on the board (e.g., tsume problems).
+   */
+  public static boolean isInCheck(Board board, Player player) {
+    final int king = board.kingSquare(player);
+    if (king < 0) return false;
+    return board.isAttacked(Bitboard.squareX(king), Bitboard.squareY(king), player.opponent());
+  }
+
+  // Generate moves of pieces already on the board, starting at moves[n].
+  // Returns the new number of moves. If "anyMove", stops after finding one.
+  private static int generateBoardMoves(Board board, Player player, int[] moves, int n,
+                                        boolean anyMove) {
+    final int[] dests = sDestinations.get();
+    for (int from = 0; from < Bitboard.NUM_SQUARES; ++from) {
+      final int fx = Bitboard.squareX(from);
+      final int fy = Bitboard.squareY(from);
+      final int piece = board.getPiece(fx, fy);
+      if (Board.player(piece) != player) continue;
+
+      final int numDests = board.possibleMoveDestinations(fx, fy, dests);
+      for (int i = 0; i < numDests; ++i) {
+        final int to = dests[i];
+        final int ty = Bitboard.squareY(to);
+        if (!leavesKingSafe(board, player, from, to, piece)) continue;
+        if (canPromote(piece, player, fy, ty)) {
+          moves[n++] = encode(Board.promote(piece), from, to);
+          if (anyMove) return n;
+        }
+        if (!isDead(piece, player, ty)) {
+          moves[n++] = encode(piece, from, to);
+          if (anyMove) return n;
+        }
+      }
+    }
+    return n;
+  }
+
+  // Generate drops of captured pieces, starting at moves[n]. Returns the
+  // new number of moves.
+  private static int generateDrops(Board board, Player player, int[] moves, int n) {
+    // Files that already have an unpromoted pawn of "player".
+    int pawnFiles = 0;
+    final int myFu = (player == Player.BLACK) ? Piece.FU : -Piece.FU;
+    for (int sq = 0; sq < Bitboard.NUM_SQUARES; ++sq) {
+      if (board.getPiece(Bitboard.squareX(sq), Bitboard.squareY(sq)) == myFu) {
+        pawnFiles |= 1 << Bitboard.squareX(sq);
+      }
+    }
+
+    final int sign = (player == Player.BLACK) ? 1 : -1;
+    for (int type = Piece.FU; type <= Piece.HI; ++type) {
+      if (board.numCapturedPieces(player, type) == 0) continue;
+      final int piece = type * sign;
+      for (int to = 0; to < Bitboard.NUM_SQUARES; ++to) {
+        final int tx = Bitboard.squareX(to);
+        final int ty = Bitboard.squareY(to);
+        if (board.getPiece(tx, ty) != Piece.EMPTY) continue;
+        if (isDead(piece, player, ty)) continue;
+        if (piece == myFu) {
+          if ((pawnFiles & (1 << tx)) != 0) continue;
+          if (isPawnDropMate(board, player, tx, ty)) continue;
+        }
+        if (!leavesKingSafe(board, player, -1, to, piece)) continue;
+        moves[n++] = encode(piece, -1, to);
+      }
+    }
+    return n;
+  }
+
+  // See if "player" is still not in check after moving "piece" from
+  // square "from" (-1 for drops) to square "to".
+  private static boolean leavesKingSafe(Board board, Player player, int from, int to, int piece) {
+    final int tx = Bitboard.squareX(to);
+    final int ty = Bitboard.squareY(to);
+    final int captured = board.getPiece(tx, ty);
+    if (from >= 0) board.setPiece(Bitboard.squareX(from), Bitboard.squareY(from), Piece.EMPTY);
+    board.setPiece(tx, ty, piece);
+    final boolean safe = !isInCheck(board, player);
+    board.setPiece(tx, ty, captured);
+    if (from >= 0) board.setPiece(Bitboard.squareX(from), Bitboard.squareY(from), piece);
+    return safe;
+  }
+
+  // Uchifuzume: see if dropping a pawn of "player" at <tx, ty> checkmates
+  // the opponent. Interposition is impossible against a pawn check and
+  // drops can't capture, so only the opponent's board moves matter.
+  private static boolean isPawnDropMate(Board board, Player player, int tx, int ty) {
+    final Player opponent = player.opponent();
+    final int kingY = (player == Player.BLACK) ? ty - 1 : ty + 1;
+    if (kingY < 0 || kingY >= Board.DIM) return false;
+    final int king = (player == Player.BLACK) ? -Piece.OU : Piece.OU;
+    if (board.getPiece(tx, kingY) != king) return false;
+
+    board.setPiece(tx, ty, (player == Player.BLACK) ? Piece.FU : -Piece.FU);
+    final boolean mate = generateBoardMoves(board, opponent, sAnyMove.get(), 0, true) == 0;
+    board.setPiece(tx, ty, Piece.EMPTY);
+    return mate;
+  }
+
+  // See if a move of "piece" between rows fromY and toY may promote.
+  private static boolean canPromote(int piece, Player player, int fromY, int toY) {
+    if (Board.isPromoted(piece)) return false;
+    final int type = Board.type(piece);
+    if (type == Piece.KIN || type == Piece.OU) return false;
+    if (player == Player.BLACK) return fromY < 3 || toY < 3;
+    return fromY >= 6 || toY >= 6;
+  }
+
+  // See if an unpromoted "piece" placed on row y could never move again.
+  private static boolean isDead(int piece, Player player, int y) {
+    final int type = Board.type(piece);
+    final int rank = (player == Player.BLACK) ? y : Board.DIM - 1 - y;
+    if (type == Piece.FU || type == Piece.KYO) return rank == 0;
+    if (type == Piece.KEI) return rank <= 1;
+    return false;
+  }
+}
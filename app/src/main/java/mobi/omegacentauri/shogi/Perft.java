@@ -0,0 +1,54 @@
+package mobi.omegacentauri.shogi;
+
+/**
+ * Perft driver for MoveGenerator: counts the leaf nodes of the legal move
+ * tree to a fixed depth. Run from a desktop JVM as
+ *
+ *   java mobi.omegacentauri.shogi.Perft [depth]
+ *
+ * Counts from the even-game start are checked against the published
+ * values; handicap starts are printed for reference.
+ */
+public class Perft {
+  // Known perft(0..6) node counts for the even-game start.
+  private static final long[] EVEN_GAME_COUNTS = {
+    1L, 30L, 900L, 25470L, 719731L, 19861490L, 547581517L,
+  };
+
+  public static long perft(Board board, Player player, int depth) {
+    if (depth == 0) return 1;
+    final int[] moves = new int[MoveGenerator.MAX_MOVES];
+    final int n = MoveGenerator.generate(board, player, moves);
+    if (depth == 1) return n;
+    long nodes = 0;
+    for (int i = 0; i < n; ++i) {
+      Board child = new Board(board);
+      child.applyPly(player, MoveGenerator.toPlay(moves[i]));
+      nodes += perft(child, player.opponent(), depth - 1);
+    }
+    return nodes;
+  }
+
+  public static void main(String[] args) {
+    final int maxDepth = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+    boolean ok = true;
+    for (Handicap h : Handicap.values()) {
+      Board board = new Board();
+      board.initialize(h);
+      for (int depth = 1; depth <= maxDepth; ++depth) {
+        final long start = System.currentTimeMillis();
+        final long nodes = perft(board, Player.BLACK, depth);
+        final long ms = System.currentTimeMillis() - start;
+        String status = "";
+        if (h == Handicap.NONE && depth < EVEN_GAME_COUNTS.length) {
+          final boolean match = (nodes == EVEN_GAME_COUNTS[depth]);
+          ok &= match;
+          status = match ? " OK" : " MISMATCH, expected " + EVEN_GAME_COUNTS[depth];
+        }
+        System.out.println(String.format("%-8s depth %d: %12d nodes %8d ms%s",
+            h.toString(), depth, nodes, ms, status));
+      }
+    }
+    if (!ok) System.exit(1);
+  }
+}
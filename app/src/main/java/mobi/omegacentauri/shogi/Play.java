@@ -2,8 +2,12 @@
 
 package mobi.omegacentauri.shogi;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
-import java.util.ArrayList;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -13,6 +17,10 @@ import java.util.regex.Pattern;
  */
 @SuppressWarnings("serial")
 public class Play implements Serializable {
+  // The value the default computation gave before writeReplace() was added,
+  // so that logs serialized by older versions can still be read.
+  private static final long serialVersionUID = 3512069185727334104L;
+
   // Japanese move display support
   public static final String japaneseNumbers[] = {
     null, "一", "二", "三", "四", "五", "六", "七", "八", "九",    
@@ -21,33 +29,49 @@ public class Play implements Serializable {
     null, "１", "２", "３", "４", "５", "６", "７", "８", "９",    
   };
   
-  // The piece to move. The value is positive if player==BLACK, negative if player==WHITE.
-  // The absolute value of mPiece is one of the constants define in Piece (e.g., Piece.FU).
-  private final int mPiece;
-
-  // The source and destination coordinates. When moving a piece on the board, each value is in range
+  // The piece to move, and the source and destination coordinates, packed
+  // by pack(). Unpack them with piece(), fromX(), etc.
+  //
+  // The piece is positive if player==BLACK, negative if player==WHITE.
+  // Its absolute value is one of the constants define in Piece (e.g., Piece.FU).
+  //
+  // When moving a piece on the board, each coordinate is in range
   // [0, Board.DIM). When dropping a captured piece on the board, fromX = fromY = -1.
-  private final int mFromX, mFromY, mToX, mToY;
+  private int mMove;
 
   private long mStartTimeInMs; // player's start time
   private long mEndTimeInMs;  // player's end time
 
   public Play(int p, int fx, int fy, int tx, int ty) {
-    mPiece = p;
-    mFromX = fx;
-    mFromY = fy;
-    mToX = tx;
-    mToY = ty;
+    mMove = pack(p, fx, fy, tx, ty);
     mStartTimeInMs = -1;
     mEndTimeInMs = -1;
   }
 
-  public final boolean isDroppingPiece() { return mFromX < 0; }
-  public final int piece() { return mPiece; }
-  public final int fromX() { return mFromX; }
-  public final int fromY() { return mFromY; }  
-  public final int toX() { return mToX; }
-  public final int toY() { return mToY; }
+  Play(int packed, long startTimeInMs, long endTimeInMs) {
+    mMove = packed;
+    mStartTimeInMs = startTimeInMs;
+    mEndTimeInMs = endTimeInMs;
+  }
+
+  // Layout of mMove: bits 0-3: toX, 4-7: toY, 8-11: fromX, 12-15: fromY
+  // (15 for -1), 16-20: piece + 16. The piece after the move tells whether
+  // the move promotes, as in piece().
+  static final int pack(int p, int fx, int fy, int tx, int ty) {
+    return tx | (ty << 4) | ((fx & 0xf) << 8) | ((fy & 0xf) << 12) | ((p + 16) << 16);
+  }
+
+  private static final int unpackCoord(int v) { return v == 0xf ? -1 : v; }
+
+  // Return the packed move. See pack().
+  final int packed() { return mMove; }
+
+  public final boolean isDroppingPiece() { return ((mMove >> 8) & 0xf) == 0xf; }
+  public final int piece() { return (mMove >> 16) - 16; }
+  public final int fromX() { return unpackCoord((mMove >> 8) & 0xf); }
+  public final int fromY() { return unpackCoord((mMove >> 12) & 0xf); }
+  public final int toX() { return mMove & 0xf; }
+  public final int toY() { return (mMove >> 4) & 0xf; }
   public final long startTime() { return mStartTimeInMs; }
   public final long endTime() { return mEndTimeInMs; }
   public final long playTime() { return mEndTimeInMs-mStartTimeInMs; }
@@ -57,24 +81,94 @@ public class Play implements Serializable {
     mEndTimeInMs = endTimeInMs;
   }
 
+  /**
+   * Write the play in the compact binary encoding: a varint holding the
+   * move as packed by MoveGenerator.encode() and a flag telling whether
+   * the play has times, followed by the times as two signed varints, start
+   * time and play time.
+   */
+  public final void writeTo(DataOutput out) throws IOException {
+    writeTo(out, mMove, mStartTimeInMs, mEndTimeInMs);
+  }
+
+  /**
+   * Read a play written by writeTo() with encoding "version".
+   */
+  public static Play readFrom(DataInput in, int version) throws IOException {
+    final long[] times = new long[2];
+    final int packed = readFrom(in, version, times, 0);
+    return new Play(packed, times[0], times[1]);
+  }
+
+  // Write a play given as its packed move (see pack()) and times.
+  static void writeTo(DataOutput out, int packed, long startTimeInMs, long endTimeInMs)
+      throws IOException {
+    final int fx = unpackCoord((packed >> 8) & 0xf);
+    final int from = fx < 0 ? -1 : Board.DIM * ((packed >> 12) & 0xf) + fx;
+    final int to = Board.DIM * ((packed >> 4) & 0xf) + (packed & 0xf);
+    final int move = MoveGenerator.encode((packed >> 16) - 16, from, to);
+    final boolean hasTime = (startTimeInMs != -1 || endTimeInMs != -1);
+    BinaryCodec.writeVarint(out, (move << 1) | (hasTime ? 1 : 0));
+    if (hasTime) {
+      BinaryCodec.writeSignedVarint(out, startTimeInMs);
+      BinaryCodec.writeSignedVarint(out, endTimeInMs - startTimeInMs);
+    }
+  }
+
+  // Read a play written by writeTo(). Return its packed move, and store
+  // its start and end times in times[i] and times[i + 1].
+  static int readFrom(DataInput in, int version, long[] times, int i) throws IOException {
+    final long v = BinaryCodec.readVarint(in);
+    final int move = (int)(v >>> 1);
+    final int from = MoveGenerator.from(move);
+    final int to = MoveGenerator.to(move);
+    times[i] = times[i + 1] = -1;
+    if ((v & 1) != 0) {
+      times[i] = BinaryCodec.readSignedVarint(in);
+      times[i + 1] = times[i] + BinaryCodec.readSignedVarint(in);
+    }
+    return pack(MoveGenerator.piece(move),
+        from < 0 ? -1 : from % Board.DIM, from < 0 ? -1 : from / Board.DIM,
+        to % Board.DIM, to / Board.DIM);
+  }
+
+  private Object writeReplace() { return new BinaryCodec.Proxy(this); }
+
+  // The fields of Play as serialized by older versions, before it had
+  // writeReplace() and mMove. Only readObject() uses them.
+  private static final ObjectStreamField[] serialPersistentFields = {
+    new ObjectStreamField("mPiece", Integer.TYPE),
+    new ObjectStreamField("mFromX", Integer.TYPE),
+    new ObjectStreamField("mFromY", Integer.TYPE),
+    new ObjectStreamField("mToX", Integer.TYPE),
+    new ObjectStreamField("mToY", Integer.TYPE),
+    new ObjectStreamField("mStartTimeInMs", Long.TYPE),
+    new ObjectStreamField("mEndTimeInMs", Long.TYPE),
+  };
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    ObjectInputStream.GetField f = in.readFields();
+    mMove = pack(f.get("mPiece", 0), f.get("mFromX", -1), f.get("mFromY", -1),
+        f.get("mToX", 0), f.get("mToY", 0));
+    mStartTimeInMs = f.get("mStartTimeInMs", -1L);
+    mEndTimeInMs = f.get("mEndTimeInMs", -1L);
+  }
+
   public Player player() {
-    return mPiece < 0 ? Player.WHITE : Player.BLACK;
+    return piece() < 0 ? Player.WHITE : Player.BLACK;
   }
 
   @Override public boolean equals(Object o) {
     if (o instanceof Play) {
       Play m = (Play)o;
-      return (
-          m.mPiece == mPiece &&
-          m.mFromX == mFromX && m.mFromY == mFromY &&
-          m.mToX == mToX && m.mToY == mToY);
+      return m.mMove == mMove;
     } else {
       return false;
     }
   }
   
   @Override public int hashCode() {
-    return mPiece + mFromX + mFromY + mToX;
+    return mMove;
   }
   
   @Override public String toString() {
@@ -88,10 +182,10 @@ public class Play implements Serializable {
       int playMin = play % 60;
       play /= 60;
       int playHr = play;
-      return String.format("%d%d%d%d:%d (%2d:%02d/%2d:%02d:%02d)", mFromX, mFromY, mToX, mToY, mPiece, startMin, startSec, playHr, playMin, playSec);
+      return String.format("%d%d%d%d:%d (%2d:%02d/%2d:%02d:%02d)", fromX(), fromY(), toX(), toY(), piece(), startMin, startSec, playHr, playMin, playSec);
     }
     else {
-      return String.format("%d%d%d%d:%d", mFromX, mFromY, mToX, mToY, mPiece);
+      return String.format("%d%d%d%d:%d", fromX(), fromY(), toX(), toY(), piece());
     }
   }
   
@@ -102,16 +196,16 @@ public class Play implements Serializable {
     // Translate the coordinate accordingly.
     int cFromX = 0;
     int cFromY = 0;
-    if (mFromX >= 0) {
+    if (fromX() >= 0) {
       // Moving a piece on board
-      cFromX = 9 - mFromX;
-      cFromY = mFromY + 1;
+      cFromX = 9 - fromX();
+      cFromY = fromY() + 1;
     } else {
       // Dropping a captured piece
     }
-    int cToX = 9 - mToX;
-    int cToY = mToY + 1;
-    int p = mPiece >= 0 ? mPiece : -mPiece;
+    int cToX = 9 - toX();
+    int cToY = toY() + 1;
+    int p = piece() >= 0 ? piece() : -piece();
     return String.format("%d%d%d%d%s", 
         cFromX, cFromY, cToX, cToY,
         Piece.csaNames[p]);
@@ -148,32 +242,29 @@ public class Play implements Serializable {
   // Parse a KIF-format string. It looks like
   // "８四歩(83)" (move FU at 83 to 84). Returns null if the play is a noop.
   public static final Play fromKifString(Play prevMove, Player player, String kifMove) throws ParseException {
-    Matcher m = KIF_MOVE_PATTERN.matcher(kifMove);
     try {
-      m = KIF_TIME_PATTERN.matcher(kifMove);
-      if (m.matches()) {
-        try {
+      // Split off the optional think time suffix, e.g., " ( 0:05/00:01:10)".
+      Matcher time = KIF_TIME_PATTERN.matcher(kifMove);
+      final boolean hasTime = time.find();
+      final String move = hasTime ? kifMove.substring(0, time.start()) : kifMove;
 
-        }
-        catch(NumberFormatException e) {
-        }
-      }
       Play p = null;
+      Matcher m = KIF_MOVE_PATTERN.matcher(move);
       if (m.matches()) {
         p = new Play(japaneseToPiece(player, m.group(3)),
             arabicToXCoord(m.group(4)), arabicToYCoord(m.group(5)),
             arabicToXCoord(m.group(1)), japaneseToYCoord(m.group(2)));
       }
       else if (prevMove != null) {
-        m = KIF_MOVE2_PATTERN.matcher(kifMove);
+        m = KIF_MOVE2_PATTERN.matcher(move);
         if (m.matches()) {
           p = new Play(japaneseToPiece(player, m.group(1)),
               arabicToXCoord(m.group(2)), arabicToYCoord(m.group(3)),
-              prevMove.mToX, prevMove.mToY);
+              prevMove.toX(), prevMove.toY());
         }
       }
       if (p == null) {
-        m = KIF_DROP_PATTERN.matcher(kifMove);
+        m = KIF_DROP_PATTERN.matcher(move);
         if (m.matches()) {
           p = new Play(japaneseToPiece(player, m.group(3)),
                   -1, -1, arabicToXCoord(m.group(1)), japaneseToYCoord(m.group(2)));
@@ -181,10 +272,9 @@ public class Play implements Serializable {
       }
 
       if (p != null) {
-        m = KIF_TIME_PATTERN.matcher(kifMove);
-        if (m.matches()) {
-          long delta = (Long.parseLong(m.group(1)) * 60 + Long.parseLong(m.group(2))) * 1000l;
-          long start = ((Long.parseLong(m.group(3)) * 60 + Long.parseLong(m.group(4))) * 60 + Long.parseLong(m.group(5))) * 1000l;
+        if (hasTime) {
+          long delta = (Long.parseLong(time.group(1)) * 60 + Long.parseLong(time.group(2))) * 1000l;
+          long start = ((Long.parseLong(time.group(3)) * 60 + Long.parseLong(time.group(4))) * 60 + Long.parseLong(time.group(5))) * 1000l;
           p.setTime(start, start+delta);
         }
         return p;
@@ -312,27 +402,28 @@ public class Play implements Serializable {
   public final TraditionalNotation toTraditionalNotation(Board board, Play prevPlay) {
     int modifier = 0;
 
-    if (prevPlay != null && prevPlay.toX() == mToX && prevPlay.toY() == mToY) {
+    if (prevPlay != null && prevPlay.toX() == toX() && prevPlay.toY() == toY()) {
       modifier |= CAPTURED_PREVIOUS_PIECE;
     }
     
-    int pieceBeforeMove = mPiece;
+    int pieceBeforeMove = piece();
     if (isNewlyPromoted(board)) {
       modifier |= PROMOTE;
-      pieceBeforeMove = Board.unpromote(mPiece);
+      pieceBeforeMove = Board.unpromote(piece());
     }
-    ArrayList<Board.Position> others = listOtherMoveSources(board);
-    if (others.isEmpty()) {
+    final int[] others = sOtherSources.get();
+    final int numOthers = listOtherMoveSources(board, others);
+    if (numOthers == 0) {
       ;
     } else if (isDroppingCapturedPiece()) {
       modifier |= DROP;
     } else {
-      int myMoveDir = moveDirection(board, mFromX, mFromY, mToX, mToY);
+      int myMoveDir = moveDirection(board, fromX(), fromY(), toX(), toY());
       modifier |= myMoveDir;
       
       boolean hasPieceWithSameMoveDir = false;
-      for (Board.Position p: others) {
-        int dir = moveDirection(board, p.x, p.y, mToX, mToY);
+      for (int i = 0; i < numOthers; ++i) {
+        int dir = moveDirection(board, sourceX(others[i]), sourceY(others[i]), toX(), toY());
         if (dir == myMoveDir) {
           hasPieceWithSameMoveDir = true;
         } 
@@ -349,24 +440,26 @@ public class Play implements Serializable {
         // There are only three possibilites --- the piece is to the right,
         // to the left, or in the center of other pieces.
         int relPos = 0;
-        for (Board.Position p: others) {
-          if (moveDirection(board, p.x, p.y, mToX, mToY) == myMoveDir) {
-            relPos |= relativePosition(mFromX, mFromY, p.x, p.y);
+        for (int i = 0; i < numOthers; ++i) {
+          final int x = sourceX(others[i]);
+          final int y = sourceY(others[i]);
+          if (moveDirection(board, x, y, toX(), toY()) == myMoveDir) {
+            relPos |= relativePosition(fromX(), fromY(), x, y);
           }
         }
         if (relPos == (LEFT | RIGHT)) relPos = CENTER;
         modifier |= relPos;
       }
     }
-    return new TraditionalNotation(pieceBeforeMove, 9 - mToX, mToY + 1, modifier);
+    return new TraditionalNotation(pieceBeforeMove, 9 - toX(), toY() + 1, modifier);
   }
   
-  private final boolean isDroppingCapturedPiece() { return mFromX < 0; }
+  private final boolean isDroppingCapturedPiece() { return fromX() < 0; }
   
   private final boolean isNewlyPromoted(Board board) {
     if (isDroppingCapturedPiece()) return false; 
-    boolean fromPromoted = Board.isPromoted(board.getPiece(mFromX, mFromY)); 
-    boolean toPromoted = Board.isPromoted(mPiece);
+    boolean fromPromoted = Board.isPromoted(board.getPiece(fromX(), fromY())); 
+    boolean toPromoted = Board.isPromoted(piece());
     return toPromoted && !fromPromoted;
   }
   
@@ -382,48 +475,58 @@ public class Play implements Serializable {
   }
 
   private final int relativePosition(int x1, int y1, int x2, int y2) {
-    if (Board.player(mPiece) == Player.BLACK) {
+    if (Board.player(piece()) == Player.BLACK) {
       return(x1 < x2) ? LEFT : RIGHT; 
     } else {
       return(x1 < x2) ? RIGHT : LEFT;
     }
   }
   
+  // Scratch buffer for listOtherMoveSources(). Room for every square plus
+  // a captured piece.
+  private static final ThreadLocal<int[]> sOtherSources = new ThreadLocal<int[]>() {
+    @Override protected int[] initialValue() {
+      return new int[Board.DIM * Board.DIM + 1];
+    }
+  };
+
+  // Decode an entry stored by listOtherMoveSources().
+  private static final int sourceX(int source) { return source < 0 ? -1 : source % Board.DIM; }
+  private static final int sourceY(int source) { return source < 0 ? -1 : source / Board.DIM; }
+
   // Find pieces other than the one at <fromX, fromX> 
   // that can move or can be dropped at<toX, toY>. 
-  // For captured pieces, Position.x and Position.y
-  // are both -1. 
-  private final ArrayList<Board.Position> listOtherMoveSources(Board board) {
-    ArrayList<Board.Position> list = new ArrayList<Board.Position>();
+  // Each piece is stored in "sources" as x + y * Board.DIM.
+  // A captured piece is stored as -1. Returns the number of
+  // entries stored.
+  private final int listOtherMoveSources(Board board, int[] sources) {
+    int n = 0;
     for (int x = 0; x < Board.DIM; ++x) {
       for (int y = 0; y < Board.DIM; ++y) {
-        if (x == mFromX && y == mFromY) continue;  // exclude this piece.
+        if (x == fromX() && y == fromY()) continue;  // exclude this piece.
         int otherPiece = board.getPiece(x, y);
 
         // We need disambiguation only when there are two pieces of the same type that
         // can move to the same spot. 
-        if (maybeUnpromote(otherPiece) != maybeUnpromote(mPiece)) continue;
+        if (maybeUnpromote(otherPiece) != maybeUnpromote(piece())) continue;
 
         // If otherPiece can move to <fromX,  fromY>, then we need disambiguation
-        for (Board.Position p : board.possibleMoveDestinations(x, y)) {
-          if (p.x == mToX && p.y == mToY) {
-            list.add(new Board.Position(x, y));
-            break;
-          }
+        if (board.canMoveTo(x, y, toX(), toY())) {
+          sources[n++] = x + y * Board.DIM;
         }
       }
     }
     
-    if (board.getPiece(mToX, mToY) == 0 && !isDroppingCapturedPiece()) {
+    if (board.getPiece(toX(), toY()) == 0 && !isDroppingCapturedPiece()) {
       // The destination is empty now, so we need to check if
       // there's a captured piece that can be dropped to <tox,toy>.
-      Player me = Board.player(mPiece);
+      Player me = Board.player(piece());
       for (Board.CapturedPiece cp: board.getCapturedPieces(me)) {
         boolean dropAllowed = true;
         if (Board.type(cp.piece) == Piece.FU) {
           // Don't allow double pawns
           for (int y = 0; y < Board.DIM; ++y) {
-            int piece = board.getPiece(mToX, y);
+            int piece = board.getPiece(toX(), y);
             if (Board.player(piece) == me &&
                 Board.type(piece) == Piece.FU) {
               dropAllowed = false;
@@ -431,13 +534,13 @@ public class Play implements Serializable {
             }
           }
         }
-        if (dropAllowed && cp.piece == mPiece) {
-          list.add(new Board.Position(-1, -1));
+        if (dropAllowed && cp.piece == piece()) {
+          sources[n++] = -1;
           break;
         }
       }
     }
-    return list;
+    return n;
   }
   
   static final int maybeUnpromote(int piece) {
@@ -0,0 +1,202 @@
+package mobi.omegacentauri.shogi;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.util.Log;
+
+/**
+ * Multi-PV analysis of positions, e.g., while replaying a game.
+ * <p>
+ * Searches run in a separate thread on an engine of their own, allocated
+ * with BonanzaJNI.newEngine(), so they don't disturb a game in progress.
+ * Results are cached by Board.positionKey(), so stepping back and forth
+ * through a game doesn't repeat searches.
+ * <p>
+ * Only the position requested last matters. Requesting another position
+ * aborts the search in progress, and its result is dropped.
+ */
+public class PositionAnalyzer {
+    private static final String TAG = "PositionAnalyzer";
+
+    // The number of candidate moves to report per position.
+    public static final int NUM_LINES = 3;
+
+    // Search time per position.
+    public static final int TIME_MS = 3000;
+
+    // Max number of positions in the cache.
+    private static final int CACHE_SIZE = 256;
+
+    public interface Listener {
+        /**
+         * Called on the thread that created the analyzer, for the position
+         * passed to analyze() last. "analysis" is null if no engine is
+         * available.
+         */
+        void onAnalysis(Board board, BonanzaJNI.Analysis analysis);
+    }
+
+    private final Handler mOutputHandler;
+    private final Listener mListener;
+    private final String mStorageDir;
+    private final HandlerThread mThread;
+    private final Handler mInputHandler;
+
+    // Complete analyses, least recently used first. Guarded by itself.
+    private final LinkedHashMap<Long, BonanzaJNI.Analysis> mCache =
+        new LinkedHashMap<Long, BonanzaJNI.Analysis>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Long, BonanzaJNI.Analysis> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+    // Guards mWantedKey, mSearchingKey, mSearchToken and mSearching, so that
+    // analyze() either stops a search or keeps it from starting.
+    private final Object mSearchLock = new Object();
+
+    // The key of the position passed to analyze() last.
+    private long mWantedKey;
+
+    // The key and BonanzaJNI token of the position being searched, valid
+    // while mSearching.
+    private long mSearchingKey;
+    private int mSearchToken;
+    private boolean mSearching;
+
+    // The engine, or -1. Allocated in mThread on the first search.
+    private volatile long mEngine = -1;
+
+    private boolean mDestroyed;
+
+    /**
+     * @param listener receives the results.
+     * @param storageDir the directory passed to BonanzaJNI.initialize().
+     */
+    public PositionAnalyzer(Listener listener, String storageDir) {
+        mOutputHandler = new Handler();
+        mListener = listener;
+        mStorageDir = storageDir;
+        mThread = new HandlerThread("PositionAnalyzer");
+        mThread.start();
+        mInputHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                doAnalyze((Board) msg.obj);
+            }
+        };
+    }
+
+    /**
+     * Analyze "board" with "nextPlayer" to move. The result is sent to the
+     * listener; immediately if it is in the cache.
+     *
+     * @return true if the result was in the cache.
+     */
+    public final boolean analyze(Board board, Player nextPlayer) {
+        Assert.isTrue(!mDestroyed);
+        final Board b = new Board(board);
+        b.setNextPlayer(nextPlayer);
+        final long key = b.positionKey();
+        synchronized (mSearchLock) {
+            mWantedKey = key;
+            if (mSearching && mSearchingKey != key) {
+                BonanzaJNI.moveNow(mEngine, mSearchToken);
+            }
+        }
+        BonanzaJNI.Analysis cached;
+        synchronized (mCache) {
+            cached = mCache.get(key);
+        }
+        if (cached != null) {
+            mListener.onAnalysis(b, cached);
+            return true;
+        }
+        mInputHandler.sendMessage(mInputHandler.obtainMessage(0, b));
+        return false;
+    }
+
+    /**
+     * Abort the search and release the engine. The listener is not called
+     * after this method returns.
+     */
+    public final void destroy() {
+        mDestroyed = true;
+        synchronized (mSearchLock) {
+            if (mSearching) BonanzaJNI.moveNow(mEngine, mSearchToken);
+        }
+        mInputHandler.post(new Runnable() {
+            public void run() {
+                if (mEngine >= 0) BonanzaJNI.deleteEngine(mEngine);
+                mEngine = -1;
+                mThread.quit();
+            }
+        });
+    }
+
+    private final void doAnalyze(final Board board) {
+        final long key = board.positionKey();
+        if (key != wantedKey()) return;  // superseded by a later request
+
+        BonanzaJNI.Analysis analysis;
+        synchronized (mCache) {
+            analysis = mCache.get(key);
+        }
+        if (analysis == null && allocateEngine()) {
+            analysis = new BonanzaJNI.Analysis(NUM_LINES);
+            final int token = BonanzaJNI.newMoveToken();
+            boolean wanted;
+            synchronized (mSearchLock) {
+                wanted = key == mWantedKey && !mDestroyed;
+                mSearchingKey = key;
+                mSearchToken = token;
+                mSearching = wanted;
+            }
+            if (wanted) {
+                BonanzaJNI.analyze(mEngine, board,
+                        board.nextPlayer() == Player.WHITE ? 1 : 0,
+                        Runtime.getRuntime().availableProcessors(),
+                        TIME_MS, 0, token, analysis);
+            } else {
+                analysis.complete = false;
+            }
+            synchronized (mSearchLock) {
+                mSearching = false;
+            }
+            if (analysis.complete) {
+                synchronized (mCache) {
+                    mCache.put(key, analysis);
+                }
+            }
+        }
+        final BonanzaJNI.Analysis result = analysis;
+        mOutputHandler.post(new Runnable() {
+            public void run() {
+                if (!mDestroyed && key == wantedKey()) {
+                    mListener.onAnalysis(board, result);
+                }
+            }
+        });
+    }
+
+    private final long wantedKey() {
+        synchronized (mSearchLock) {
+            return mWantedKey;
+        }
+    }
+
+    // Must be called in mThread.
+    private final boolean allocateEngine() {
+        if (mEngine < 0) {
+            BonanzaJNI.initialize(mStorageDir);
+            mEngine = BonanzaJNI.newEngine();
+            if (mEngine < 0) Log.d(TAG, "No engine available for analysis");
+        }
+        return mEngine >= 0;
+    }
+}
@@ -0,0 +1,68 @@
+package mobi.omegacentauri.shogi;
+
+/**
+ * Snapshots of the positions of a GameLog, one every INTERVAL plies, so
+ * that any ply can be reached with at most INTERVAL applyPly() calls.
+ * <p>
+ * build() is meant to run on a background thread. The other methods may be
+ * called from any thread while it runs; they only see the checkpoints built
+ * so far.
+ */
+public class PositionIndex {
+  public static final int INTERVAL = 16;
+
+  private final GameLog mLog;
+
+  // Checkpoint i, the position after i * INTERVAL plies, is stored at
+  // mSnapshots[i * Board.SNAPSHOT_SIZE].
+  private final byte[] mSnapshots;
+
+  // Number of checkpoints stored in mSnapshots. Written only by build();
+  // the volatile write publishes the snapshot bytes to other threads.
+  private volatile int mNumReady;
+  private volatile boolean mCancelled;
+
+  public PositionIndex(GameLog log) {
+    mLog = log;
+    mSnapshots = new byte[(log.numPlays() / INTERVAL + 1) * Board.SNAPSHOT_SIZE];
+  }
+
+  /**
+   * Replay the game and store the checkpoints. Returns early if cancel() is
+   * called.
+   */
+  public void build() {
+    Board board = new Board();
+    board.initialize(mLog.handicap());
+    Player player = Player.BLACK;
+    for (int i = 0; !mCancelled; ++i) {
+      if (i % INTERVAL == 0) {
+        board.saveSnapshot(mSnapshots, (i / INTERVAL) * Board.SNAPSHOT_SIZE);
+        mNumReady = i / INTERVAL + 1;
+      }
+      if (i == mLog.numPlays()) break;
+      board.applyPly(player, mLog.play(i));
+      player = player.opponent();
+    }
+  }
+
+  public void cancel() { mCancelled = true; }
+
+  /**
+   * Return the latest checkpoint at or before "ply", as a number of plies,
+   * or -1 if it hasn't been built yet.
+   */
+  public int checkpointAtOrBefore(int ply) {
+    final int i = Math.min(ply / INTERVAL, mNumReady - 1);
+    return i < 0 ? -1 : i * INTERVAL;
+  }
+
+  /**
+   * Set "board" to the position after "ply" plies. "ply" must be a value
+   * returned by checkpointAtOrBefore().
+   */
+  public void restore(int ply, Board board) {
+    Assert.isTrue(ply % INTERVAL == 0 && ply / INTERVAL < mNumReady);
+    board.restoreSnapshot(mSnapshots, (ply / INTERVAL) * Board.SNAPSHOT_SIZE);
+  }
+}
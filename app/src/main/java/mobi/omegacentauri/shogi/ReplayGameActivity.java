@@ -24,6 +24,7 @@ import android.widget.CheckBox;
 import android.widget.ImageButton;
 import android.widget.SeekBar;
 import android.widget.TextView;
+import android.widget.Toast;
 
 /**
  * Activity for replaying a saved game
@@ -41,15 +42,23 @@ public class ReplayGameActivity extends Activity {
     private boolean mFlipScreen;
 
     // State of the game
-    private Board mBoard;            // current state of the board
-    private ArrayList<Play> mPlays;  // plays made up to mBoard.
-    private Player mNextPlayer;   // the next player to make a move
     private GameState mGameState;    // is the game is active or finished?
 
     private GameLog mLog;
 
-    // Number of moves made so far. 0 means the beginning of the game.
-    private int mNextPlay;
+    // The position being shown.
+    private GameReplay mReplay;
+
+    // Checkpoints of mLog for seeking. Built in the background, so it may
+    // be incomplete.
+    private PositionIndex mPositionIndex;
+
+    // Non-null while the positions replayed are analyzed.
+    private PositionAnalyzer mAnalyzer;
+
+    // Non-null while the whole game is analyzed, and its result so far.
+    private GameLogAnalyzer mLogAnalyzer;
+    private GameAnalysis mGameAnalysis;
 
     private SharedPreferences mPrefs;
 
@@ -81,11 +90,15 @@ public class ReplayGameActivity extends Activity {
         initializeInstanceState(savedInstanceState);
 
         mGameState = GameState.ACTIVE;
-        mNextPlay = 0;
-        mBoard = new Board();
-        mPlays = new ArrayList<Play>();
-        mBoard.initialize(mLog.handicap());
-        mNextPlayer = Player.BLACK;
+        mPositionIndex = new PositionIndex(mLog);
+        mReplay = new GameReplay(mLog, mPositionIndex);
+        new AsyncTask<PositionIndex, Void, Void>() {
+            @Override
+            protected Void doInBackground(PositionIndex... index) {
+                index[0].build();
+                return null;
+            }
+        }.execute(mPositionIndex);
 
         mStatusView = (GameStatusView) findViewById(R.id.gamestatusview);
         mStatusView.initialize(
@@ -100,14 +113,14 @@ public class ReplayGameActivity extends Activity {
         b = (ImageButton) findViewById(R.id.replay_prev_button);
         b.setOnClickListener(new ImageButton.OnClickListener() {
             public void onClick(View v) {
-                if (mNextPlay > 0) replayUpTo(mNextPlay - 1);
+                if (mReplay.numPlays() > 0) replayUpTo(mReplay.numPlays() - 1);
             }
         });
         b = (ImageButton) findViewById(R.id.replay_next_button);
         b.setOnClickListener(new ImageButton.OnClickListener() {
             public void onClick(View v) {
-                if (mNextPlay < mLog.numPlays()) {
-                    replayUpTo(mNextPlay + 1);
+                if (mReplay.numPlays() < mLog.numPlays()) {
+                    replayUpTo(mReplay.numPlays() + 1);
                 }
             }
         });
@@ -132,7 +145,7 @@ public class ReplayGameActivity extends Activity {
         setFlipScreen(mFlipScreen);
 
         mBoardView.update(
-                mGameState, mBoard, mBoard,
+                mGameState, mReplay.board(), mReplay.board(),
                 Player.INVALID, // Disallow board manipulation by the user
                 null, false);
 
@@ -142,35 +155,92 @@ public class ReplayGameActivity extends Activity {
         registerForContextMenu(findViewById(R.id.menu_button));
     }
 
-    private final void replayUpTo(int numPlays) {
-        mBoard.initialize(mLog.handicap());
-        mNextPlayer = Player.BLACK;
-        mPlays.clear();
-
-        Play play = null;
-        Board lastBoard = mBoard;
-
-        // Compute the state of the game @ numMoves
-        for (int i = 0; i < numPlays; ++i) {
-            play = mLog.play(i);
-            if (i == numPlays - 1) {
-                lastBoard = new Board(mBoard);
-            }
-            mBoard.applyPly(mNextPlayer, play);
-            mNextPlayer = mNextPlayer.opponent();
-            mPlays.add(play);
+    @Override
+    public void onDestroy() {
+        mPositionIndex.cancel();
+        if (mAnalyzer != null) {
+            mAnalyzer.destroy();
+            mAnalyzer = null;
         }
-        mNextPlay = numPlays;
-        mStatusView.update(mGameState, lastBoard, mBoard, mPlays, mNextPlayer, null);
+        if (mLogAnalyzer != null) {
+            mLogAnalyzer.cancel();
+            mLogAnalyzer = null;
+        }
+        super.onDestroy();
+    }
+
+    private final void replayUpTo(int numPlays) {
+        mReplay.seek(numPlays);
+        final Board board = mReplay.board();
+        final ArrayList<Play> plays = mReplay.plays();
+        final Play play = numPlays > 0 ? plays.get(numPlays - 1) : null;
+        final Board lastBoard = mReplay.previousBoard();
+        mStatusView.update(mGameState, lastBoard, board, plays, mReplay.nextPlayer(), null);
 
         long[] times = new long[2];
-        Util.getTimesFromPlays(mPlays, numPlays, times);
+        Util.getTimesFromPlays(plays, numPlays, times);
         mStatusView.updateThinkTimes(times);
 
-        mBoardView.update(mGameState, lastBoard, mBoard,
+        mBoardView.update(mGameState, lastBoard, board,
                 Player.INVALID,  // Disallow board manipulation by the user
                 play, false);
-        mSeekBar.setProgress(mNextPlay);
+        mSeekBar.setProgress(numPlays);
+        analyzePosition();
+        showGameAnalysis();
+    }
+
+    private final void analyzePosition() {
+        if (mAnalyzer != null && !mAnalyzer.analyze(mReplay.board(), mReplay.nextPlayer())) {
+            mStatusView.showAnalyzing();
+        }
+    }
+
+    private final void toggleAnalysis() {
+        if (mAnalyzer != null) {
+            mAnalyzer.destroy();
+            mAnalyzer = null;
+            replayUpTo(mReplay.numPlays());
+            return;
+        }
+        mAnalyzer = new PositionAnalyzer(new PositionAnalyzer.Listener() {
+            public void onAnalysis(Board board, BonanzaJNI.Analysis analysis) {
+                mStatusView.showAnalysis(analysis);
+            }
+        }, StartScreenActivity.getExternalDir(this).getAbsolutePath());
+        analyzePosition();
+    }
+
+    private final void showGameAnalysis() {
+        if (mGameAnalysis != null && mAnalyzer == null) {
+            mStatusView.showGameAnalysis(mGameAnalysis, mReplay.numPlays(), mLogAnalyzer != null);
+        }
+    }
+
+    private final void toggleGameAnalysis() {
+        if (mLogAnalyzer != null) {
+            mLogAnalyzer.cancel();
+            mLogAnalyzer = null;
+            showGameAnalysis();
+            return;
+        }
+        mLogAnalyzer = new GameLogAnalyzer(mLog,
+                GameAnalysis.fileFor(mLog, getFilesDir()),
+                StartScreenActivity.getExternalDir(this).getAbsolutePath(),
+                new GameLogAnalyzer.Listener() {
+                    public void onProgress(GameAnalysis analysis) {
+                        mGameAnalysis = analysis;
+                        showGameAnalysis();
+                    }
+                    public void onFinish(GameAnalysis analysis, int status, String error) {
+                        mLogAnalyzer = null;
+                        if (analysis != null) mGameAnalysis = analysis;
+                        if (status != BonanzaJNI.R_OK && error != null) {
+                            Toast.makeText(getBaseContext(), error, Toast.LENGTH_LONG).show();
+                        }
+                        showGameAnalysis();
+                    }
+                });
+        mLogAnalyzer.start();
     }
 
     private static final int DIALOG_RESUME_GAME = 1;
@@ -182,11 +252,11 @@ public class ReplayGameActivity extends Activity {
         Board initialBoard = new Board();
         initialBoard.initialize(mLog.handicap());
         intent.putExtra("initial_board", initialBoard);
-        intent.putExtra("saved_board", mBoard);
-        intent.putExtra("moves", mPlays);
+        intent.putExtra("saved_board", mReplay.board());
+        intent.putExtra("moves", mReplay.plays());
         Log.v("shogilog", "resuming");
-        for (Play p : mPlays) Log.v("shogilog", p.toString());
-        intent.putExtra("next_player", mNextPlayer);
+        for (Play p : mReplay.plays()) Log.v("shogilog", p.toString());
+        intent.putExtra("next_player", mReplay.nextPlayer());
         //intent.putExtra("replaying_saved_game", true);
         intent.putExtra("skip_dialog", skipDialog);
         intent.putExtra("reset_time", resetTime);
@@ -326,6 +396,12 @@ public class ReplayGameActivity extends Activity {
         super.onCreateContextMenu(menu, v, menuInfo);
         MenuInflater inflater = getMenuInflater();
         inflater.inflate(R.menu.replay_game_context_menu, menu);
+        if (mAnalyzer != null) {
+            menu.findItem(R.id.menu_analyze).setTitle(R.string.analyze_off);
+        }
+        if (mLogAnalyzer != null) {
+            menu.findItem(R.id.menu_analyze_game).setTitle(R.string.analyze_game_off);
+        }
     }
 
     @Override
@@ -341,6 +417,12 @@ public class ReplayGameActivity extends Activity {
             case R.id.menu_save_in_sdcard:
                 toSD();
                 return true;
+            case R.id.menu_analyze:
+                toggleAnalysis();
+                return true;
+            case R.id.menu_analyze_game:
+                toggleGameAnalysis();
+                return true;
             case R.id.menu_log_properties:
                 info();
                 return true;
@@ -2,22 +2,18 @@
 
 package mobi.omegacentauri.shogi;
 
-import org.mozilla.universalchardet.UniversalDetector;
-
+import android.app.ActivityManager;
 import android.app.AlertDialog;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.os.Build;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.Reader;
 import java.util.ArrayList;
 import java.util.regex.Pattern;
 
@@ -26,54 +22,6 @@ import java.util.regex.Pattern;
  *
  */
 public class Util {
-  private static ThreadLocal<byte[]> mBuf = new ThreadLocal<byte[]>() {
-    @Override protected synchronized byte[] initialValue() { 
-      return new byte[8192];
-    }
-  };
-
-  public static Reader inputStreamToReader(InputStream in, String defaultEncoding) throws IOException {
-    byte[] contents = Util.streamToBytes(in);
-    String encoding = Util.detectEncoding(contents, defaultEncoding);
-    return new InputStreamReader(new ByteArrayInputStream(contents), encoding);
-  }
-  
-  /** Read the contents of @p into a byte array */
-  public static byte[] streamToBytes(InputStream in) throws IOException {
-    byte[] tmpBuf = mBuf.get();
-    ByteArrayOutputStream out = new ByteArrayOutputStream();
-    int n;
-    while ((n = in.read(tmpBuf)) > 0) {
-      out.write(tmpBuf, 0, n);  
-    }
-    return out.toByteArray();
-  }
-  
-  /** Detect character encoding of @p contents. Return null on error */
-  public static String detectEncoding(
-      byte[] contents,
-      String defaultEncoding) {
-    UniversalDetector encodingDetector = new UniversalDetector(null);
-    
-    encodingDetector.reset();
-    encodingDetector.handleData(contents, 0, contents.length);
-    encodingDetector.dataEnd();
-    String encoding = encodingDetector.getDetectedCharset();
-    if (encoding == null) {
-      encoding = defaultEncoding;
-      if (encoding == null) encoding = "SHIFT-JIS";
-    }
-    return encoding;
-  }
-  
-  public static String bytesToHexText(byte[] b) {
-    StringBuffer hex = new StringBuffer();
-    for (int i = 0;i < b.length; i++) {
-      hex.append(Integer.toHexString(b[i] & 0xff));
-    }        
-    return hex.toString();
-  }
-  
   public static String throwableToString(Throwable e) {
     StringBuilder b = new StringBuilder();
     b.append(e.toString()).append("\n");
@@ -127,6 +75,35 @@ public class Util {
     }
   }
 
+  /**
+   * Return the size of the engine's transposition table for this device, in
+   * MB. A small heap allowance usually means little RAM, and a table fills
+   * slowly with few cores, so such devices get a small one. The size is
+   * doubled only with both eight cores or more and a memory class of 256 or
+   * more, since many cores alone don't mean the RAM is there.
+   */
+  public static int hashSizeMb(Context context) {
+    ActivityManager am = (ActivityManager)context.getSystemService(Context.ACTIVITY_SERVICE);
+    if (Build.VERSION.SDK_INT >= 19 && am.isLowRamDevice())
+      return 12;
+    int memoryClass = am.getMemoryClass();
+    int mb;
+    if (memoryClass < 64)
+      mb = 12;
+    else if (memoryClass < 128)
+      mb = 24;
+    else if (memoryClass < 256)
+      mb = 48;
+    else
+      mb = 96;
+    int cores = numberOfCores();
+    if (cores <= 2)
+      mb = Math.min(mb, 24);
+    else if (cores >= 8 && memoryClass >= 256)
+      mb *= 2;
+    return mb;
+  }
+
   static private String getStreamFile(InputStream stream) {
     BufferedReader reader;
     try {
@@ -0,0 +1,220 @@
+package mobi.omegacentauri.shogi;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks for the hot paths of the game core. Each benchmark
+ * processes the whole corpus once, so scores are per corpus.
+ * <p>
+ * The corpus is the set of *.kif files in the directory named by the
+ * "shogi.kifDir" system property. Without it, it is the games checked in
+ * under src/jmh/resources/kif, listed in the INDEX file there: full games
+ * between two Bonanza engines from MatchRunner, with the opening book, over
+ * the even and handicap starts. They are this project's own, under its
+ * license. Should they be missing, a fixed-seed corpus of random legal games
+ * is generated with MoveGenerator and round-tripped through GameLog.toKif();
+ * that one has few captures and drops, so it's a poor stand-in.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CoreBenchmark {
+  // Where the default corpus is on the classpath.
+  private static final String CORPUS_RESOURCE = "/kif/";
+
+  private static final int SYNTHETIC_GAMES = 32;
+  private static final int SYNTHETIC_PLIES = 160;
+
+  // Raw contents of each KIF file.
+  private ArrayList<byte[]> mKifs;
+  // mKifs, parsed.
+  private ArrayList<GameLog> mLogs;
+  // mPositions.get(i) is the board before play i of some game in mLogs.
+  private ArrayList<Board> mPositions;
+
+  @Setup
+  public void setup() throws IOException, ParseException {
+    final String dir = System.getProperty("shogi.kifDir");
+    mKifs = (dir != null) ? readKifs(new File(dir)) : resourceKifs();
+    if (mKifs == null) mKifs = syntheticKifs();
+    mLogs = new ArrayList<GameLog>();
+    mPositions = new ArrayList<Board>();
+    for (byte[] kif : mKifs) {
+      GameLog log = GameLog.parseKif(null, new ByteArrayInputStream(kif));
+      mLogs.add(log);
+      Board board = new Board();
+      board.initialize(log.handicap());
+      Player player = Player.BLACK;
+      for (int i = 0; i < log.numPlays(); ++i) {
+        mPositions.add(new Board(board));
+        board.applyPly(player, log.play(i));
+        player = player.opponent();
+      }
+    }
+  }
+
+  @Benchmark
+  public void applyPly(Blackhole bh) {
+    for (GameLog log : mLogs) {
+      Board board = new Board();
+      board.initialize(log.handicap());
+      Player player = Player.BLACK;
+      for (int i = 0; i < log.numPlays(); ++i) {
+        board.applyPly(player, log.play(i));
+        player = player.opponent();
+      }
+      bh.consume(board);
+    }
+  }
+
+  @Benchmark
+  public int possibleMoveDestinations() {
+    final int[] squares = new int[Board.MAX_DESTINATIONS];
+    int total = 0;
+    for (Board board : mPositions) {
+      for (int y = 0; y < Board.DIM; ++y) {
+        for (int x = 0; x < Board.DIM; ++x) {
+          if (board.getPiece(x, y) != Piece.EMPTY) {
+            total += board.possibleMoveDestinations(x, y, squares);
+          }
+        }
+      }
+    }
+    return total;
+  }
+
+  @Benchmark
+  public void toTraditionalNotation(Blackhole bh) {
+    for (GameLog log : mLogs) {
+      Board board = new Board();
+      board.initialize(log.handicap());
+      Player player = Player.BLACK;
+      Play prev = null;
+      for (int i = 0; i < log.numPlays(); ++i) {
+        Play play = log.play(i);
+        bh.consume(play.toTraditionalNotation(board, prev));
+        board.applyPly(player, play);
+        player = player.opponent();
+        prev = play;
+      }
+    }
+  }
+
+  @Benchmark
+  public void parseKif(Blackhole bh) throws IOException, ParseException {
+    for (byte[] kif : mKifs) {
+      bh.consume(GameLog.parseKif(null, new ByteArrayInputStream(kif)));
+    }
+  }
+
+  @Benchmark
+  public void toKif(Blackhole bh) throws IOException {
+    for (GameLog log : mLogs) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      log.toKif(out, "kif_utf8");
+      bh.consume(out.size());
+    }
+  }
+
+  // GameLog caches its digest, so each iteration digests a fresh copy.
+  @Benchmark
+  public void digest(Blackhole bh) {
+    for (GameLog log : mLogs) {
+      GameLog copy = GameLog.newLog(log.getDate(), log.attrs(), log.plays(), null);
+      bh.consume(copy.digest());
+    }
+  }
+
+  private static ArrayList<byte[]> readKifs(File dir) throws IOException {
+    ArrayList<byte[]> kifs = new ArrayList<byte[]>();
+    File[] files = dir.listFiles();
+    if (files == null) throw new IOException(dir + ": not a directory");
+    for (File f : files) {
+      if (!f.getName().endsWith(".kif")) continue;
+      FileInputStream in = new FileInputStream(f);
+      try {
+        kifs.add(TextUtil.streamToBytes(in));
+      } finally {
+        in.close();
+      }
+    }
+    if (kifs.isEmpty()) throw new IOException(dir + ": no .kif files");
+    return kifs;
+  }
+
+  // Read the games listed in the INDEX of CORPUS_RESOURCE. Returns null if
+  // there is none.
+  private static ArrayList<byte[]> resourceKifs() throws IOException {
+    InputStream index = CoreBenchmark.class.getResourceAsStream(CORPUS_RESOURCE + "INDEX");
+    if (index == null) return null;
+    ArrayList<byte[]> kifs = new ArrayList<byte[]>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(index, "UTF-8"));
+    try {
+      String name;
+      while ((name = reader.readLine()) != null) {
+        name = name.trim();
+        if (name.isEmpty() || name.startsWith("#")) continue;
+        InputStream in = CoreBenchmark.class.getResourceAsStream(CORPUS_RESOURCE + name);
+        if (in == null) throw new IOException(CORPUS_RESOURCE + name + ": not found");
+        try {
+          kifs.add(TextUtil.streamToBytes(in));
+        } finally {
+          in.close();
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return kifs.isEmpty() ? null : kifs;
+  }
+
+  // Generate games by playing random legal moves with a fixed seed.
+  private static ArrayList<byte[]> syntheticKifs() throws IOException {
+    ArrayList<byte[]> kifs = new ArrayList<byte[]>();
+    Random random = new Random(12345);
+    final int[] moves = new int[MoveGenerator.MAX_MOVES];
+    for (int g = 0; g < SYNTHETIC_GAMES; ++g) {
+      Board board = new Board();
+      board.initialize(Handicap.NONE);
+      Player player = Player.BLACK;
+      ArrayList<Play> plays = new ArrayList<Play>();
+      for (int i = 0; i < SYNTHETIC_PLIES; ++i) {
+        final int n = MoveGenerator.generate(board, player, moves);
+        if (n == 0) break;
+        Play play = MoveGenerator.toPlay(moves[random.nextInt(n)]);
+        play.setTime(i * 10000L, i * 10000L + 5000L);
+        plays.add(play);
+        board.applyPly(player, play);
+        player = player.opponent();
+      }
+      TreeMap<String, String> attrs = new TreeMap<String, String>();
+      attrs.put(GameLog.ATTR_BLACK_PLAYER, "Black " + g);
+      attrs.put(GameLog.ATTR_WHITE_PLAYER, "White " + g);
+      GameLog log = GameLog.newLog(1300000000000L + g * 86400000L, attrs.entrySet(), plays, null);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      log.toKif(out, "kif_utf8");
+      kifs.add(out.toByteArray());
+    }
+    return kifs;
+  }
+}
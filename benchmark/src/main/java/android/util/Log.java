@@ -0,0 +1,15 @@
+package android.util;
+
+/**
+ * Desktop replacement for android.util.Log, so that the game core can be
+ * built outside of Android. Messages are dropped.
+ */
+public final class Log {
+  private Log() {}
+
+  public static int v(String tag, String msg) { return 0; }
+  public static int d(String tag, String msg) { return 0; }
+  public static int i(String tag, String msg) { return 0; }
+  public static int w(String tag, String msg) { return 0; }
+  public static int e(String tag, String msg) { return 0; }
+}
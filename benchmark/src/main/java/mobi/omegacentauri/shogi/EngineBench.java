@@ -0,0 +1,92 @@
+package mobi.omegacentauri.shogi;
+
+/**
+ * Measures the search speed of Bonanza on a fixed set of positions (see
+ * BonanzaJNI.bench()) with 1, 2, ... threads. Runs on a desktop JVM against
+ * the host build of the JNI libraries; see benchmark/build.gradle.
+ *
+ *   java mobi.omegacentauri.shogi.EngineBench [options]
+ *
+ *   -depth N       search depth in plies (default 8)
+ *   -threads N     largest number of threads (default
+ *                  BonanzaJNI.MAX_THREADS)
+ *   -expect N      fail unless the one-thread search visits exactly N
+ *                  nodes, e.g., to catch an unintended change of the search
+ *   -data DIR      the directory with fv.bin (default .)
+ *
+ * The one-thread node count only changes with the engine code and fv.bin,
+ * so it is printed as the signature of the search.
+ */
+public class EngineBench {
+  private int mDepth = 8;
+  private int mMaxThreads = BonanzaJNI.MAX_THREADS;
+  private long mExpectedNodes = -1;
+  private String mDataDir = ".";
+
+  public static void main(String[] args) {
+    EngineBench b = new EngineBench();
+    for (int i = 0; i < args.length; ++i) {
+      final String arg = args[i];
+      if (i + 1 >= args.length) usage(arg);
+      final String value = args[++i];
+      if (arg.equals("-depth")) {
+        b.mDepth = Integer.parseInt(value);
+      } else if (arg.equals("-threads")) {
+        b.mMaxThreads = Math.min(Integer.parseInt(value), BonanzaJNI.MAX_THREADS);
+      } else if (arg.equals("-expect")) {
+        b.mExpectedNodes = Long.parseLong(value);
+      } else if (arg.equals("-data")) {
+        b.mDataDir = value;
+      } else {
+        usage(arg);
+      }
+    }
+    System.exit(b.run() ? 0 : 1);
+  }
+
+  private static void usage(String arg) {
+    System.err.println(arg + ": bad option. See EngineBench.java for usage.");
+    System.exit(2);
+  }
+
+  private boolean run() {
+    BonanzaJNI.initialize(mDataDir);
+    BonanzaJNI.setPondering(BonanzaJNI.DEFAULT_ENGINE, false);
+    System.out.println(String.format("# depth %d", mDepth));
+    System.out.println("threads        nodes      ms        nps  speedup");
+    long signature = -1;
+    long oneThreadNps = 0;
+    long[] positionNodes = null;
+    for (int threads = 1; threads <= mMaxThreads; ++threads) {
+      long[] stats = new long[BonanzaJNI.NUM_BENCH_STATS];
+      int status = BonanzaJNI.bench(BonanzaJNI.DEFAULT_ENGINE, mDepth, threads, stats);
+      if (status != BonanzaJNI.R_OK) {
+        System.err.println(String.format("bench failed with %d threads: %d", threads, status));
+        return false;
+      }
+      final long nps = stats[BonanzaJNI.BENCH_NPS];
+      if (threads == 1) {
+        signature = stats[BonanzaJNI.BENCH_NODES];
+        oneThreadNps = nps;
+        positionNodes = stats;
+      }
+      System.out.println(String.format("%7d %12d %7d %10d  %.2f", threads,
+          stats[BonanzaJNI.BENCH_NODES], stats[BonanzaJNI.BENCH_TIME_MS], nps,
+          oneThreadNps > 0 ? (double)nps / oneThreadNps : 0.0));
+    }
+
+    System.out.println();
+    final int n = (int)Math.min(positionNodes[BonanzaJNI.BENCH_POSITIONS],
+        BonanzaJNI.MAX_BENCH_POSITIONS);
+    for (int i = 0; i < n; ++i) {
+      System.out.println(String.format("position %2d %12d", i + 1,
+          positionNodes[BonanzaJNI.BENCH_POSITION_NODES + i]));
+    }
+    System.out.println("signature " + signature);
+    if (mExpectedNodes >= 0 && signature != mExpectedNodes) {
+      System.err.println(String.format("expected %d nodes, got %d", mExpectedNodes, signature));
+      return false;
+    }
+    return true;
+  }
+}
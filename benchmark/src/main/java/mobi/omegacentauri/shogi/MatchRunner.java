@@ -0,0 +1,344 @@
+package mobi.omegacentauri.shogi;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.TreeMap;
+
+/**
+ * Plays games between two Bonanza engines without the UI, e.g., to tune the
+ * difficulty levels or to catch regressions in search speed. Runs on a
+ * desktop JVM against the host build of the JNI libraries; see
+ * benchmark/build.gradle.
+ *
+ *   java mobi.omegacentauri.shogi.MatchRunner [options]
+ *
+ *   -games N       number of games (default: two per start)
+ *   -a D[/T[/H]]   difficulty, number of threads and transposition table
+ *                  MB of engine A (default 4/1/0, 0 being the engine's
+ *                  default size)
+ *   -b D[/T[/H]]   the same for engine B
+ *   -time S[/B]    seconds per game per player, and per move after that
+ *                  (default 0/1)
+ *   -maxplies N    declare a draw after N plies (default 256)
+ *   -data DIR      the directory with fv.bin, book.bin, etc. (default .)
+ *   -out DIR       where the KIF files and summary.txt go (default match)
+ *
+ * The games cycle through the even-game openings of OPENINGS and then every
+ * handicap start. Each start is played twice, with the engines swapping
+ * sides. A and B run on separate engines (BonanzaJNI.newEngine()), without
+ * pondering; each is told the other's moves as human moves.
+ */
+public class MatchRunner {
+  // Openings of the even-game starts, as CSA moves.
+  private static final String[][] OPENINGS = {
+    {},
+    {"7776FU", "3334FU"},
+    {"7776FU", "8384FU"},
+    {"2726FU", "8384FU"},
+    {"2726FU", "3334FU"},
+    {"7776FU", "3334FU", "2726FU", "4344FU"},
+    {"7776FU", "3334FU", "6766FU"},
+    {"5756FU", "3334FU", "2858HI"},
+  };
+
+  private static final class Start {
+    final Handicap handicap;
+    final String[] opening;
+    Start(Handicap h, String[] o) { handicap = h; opening = o; }
+    @Override public String toString() {
+      return handicap == Handicap.NONE ?
+          "even " + join(opening) : handicap.toString();
+    }
+  }
+
+  // Settings and totals of one engine.
+  private static final class Side {
+    final String name;
+    final int difficulty;
+    final int threads;
+    final int hashMb;
+    long engine;
+    int instanceId;
+
+    int wins, losses, draws;
+    int searches;      // computer moves that were not book moves
+    int bookMoves;
+    long nodes;
+    long searchMs;     // time of the searches
+    long depthSum;
+    int maxDepth;
+    long[] hashStats = new long[BonanzaJNI.NUM_HASH_STATS];
+
+    Side(String name, String spec) {
+      this.name = name;
+      String[] f = spec.split("/");
+      difficulty = Integer.parseInt(f[0]);
+      threads = f.length > 1 ? Integer.parseInt(f[1]) : 1;
+      hashMb = f.length > 2 ? Integer.parseInt(f[2]) : 0;
+    }
+
+    String label() {
+      return String.format("%s d%d t%d", name, difficulty, threads)
+          + (hashMb > 0 ? String.format(" h%d", hashMb) : "");
+    }
+
+    // Add the transposition table counters of the game that just ended.
+    void addHashStats() {
+      long[] stats = new long[BonanzaJNI.NUM_HASH_STATS];
+      BonanzaJNI.getHashStats(engine, stats);
+      for (int i = 0; i < BonanzaJNI.HASH_SIZE_BYTES; ++i) hashStats[i] += stats[i];
+      hashStats[BonanzaJNI.HASH_SIZE_BYTES] = stats[BonanzaJNI.HASH_SIZE_BYTES];
+    }
+  }
+
+  private enum Outcome { BLACK_WON, WHITE_WON, DRAW }
+
+  private int mNumGames = -1;
+  private Side mA = new Side("A", "4/1");
+  private Side mB = new Side("B", "4/1");
+  private int mTotalSecs = 0;
+  private int mPerMoveSecs = 1;
+  private int mMaxPlies = 256;
+  private String mDataDir = ".";
+  private File mOutDir = new File("match");
+
+  public static void main(String[] args) throws IOException {
+    MatchRunner r = new MatchRunner();
+    for (int i = 0; i < args.length; ++i) {
+      final String arg = args[i];
+      if (i + 1 >= args.length) usage(arg);
+      final String value = args[++i];
+      if (arg.equals("-games")) {
+        r.mNumGames = Integer.parseInt(value);
+      } else if (arg.equals("-a")) {
+        r.mA = new Side("A", value);
+      } else if (arg.equals("-b")) {
+        r.mB = new Side("B", value);
+      } else if (arg.equals("-time")) {
+        String[] f = value.split("/");
+        r.mTotalSecs = Integer.parseInt(f[0]);
+        if (f.length > 1) r.mPerMoveSecs = Integer.parseInt(f[1]);
+      } else if (arg.equals("-maxplies")) {
+        r.mMaxPlies = Integer.parseInt(value);
+      } else if (arg.equals("-data")) {
+        r.mDataDir = value;
+      } else if (arg.equals("-out")) {
+        r.mOutDir = new File(value);
+      } else {
+        usage(arg);
+      }
+    }
+    System.exit(r.run() ? 0 : 1);
+  }
+
+  private static void usage(String arg) {
+    System.err.println(arg + ": bad option. See MatchRunner.java for usage.");
+    System.exit(2);
+  }
+
+  private boolean run() throws IOException {
+    ArrayList<Start> starts = new ArrayList<Start>();
+    for (String[] o : OPENINGS) starts.add(new Start(Handicap.NONE, o));
+    for (Handicap h : Handicap.values()) {
+      if (h != Handicap.NONE) starts.add(new Start(h, new String[0]));
+    }
+    if (mNumGames < 0) mNumGames = starts.size() * 2;
+
+    BonanzaJNI.initialize(mDataDir);
+    mA.engine = BonanzaJNI.DEFAULT_ENGINE;
+    mB.engine = BonanzaJNI.newEngine();
+    if (mB.engine < 0) throw new AssertionError("No second engine");
+    BonanzaJNI.setPondering(mA.engine, false);
+    BonanzaJNI.setPondering(mB.engine, false);
+
+    mOutDir.mkdirs();
+    PrintStream summary = new PrintStream(
+        new FileOutputStream(new File(mOutDir, "summary.txt")), true, "UTF-8");
+    summary.println(String.format("# %s vs %s, %d/%ds, %d games",
+        mA.label(), mB.label(), mTotalSecs, mPerMoveSecs, mNumGames));
+    boolean ok = true;
+    for (int g = 0; g < mNumGames; ++g) {
+      final Start start = starts.get((g / 2) % starts.size());
+      final boolean aIsBlack = (g % 2 == 0);
+      final String line = playGame(g, start,
+          aIsBlack ? mA : mB, aIsBlack ? mB : mA);
+      ok &= (line != null);
+      String s = String.format("game %3d  %-32s %s", g + 1, start,
+          line != null ? line : "ERROR");
+      System.out.println(s);
+      summary.println(s);
+    }
+    summary.println();
+    for (Side s : new Side[]{mA, mB}) {
+      String line = String.format(
+          "%s: +%d -%d =%d  %d searches, %d book moves, %d nodes/s, depth %.1f (max %d), %.2fs/move",
+          s.label(), s.wins, s.losses, s.draws, s.searches, s.bookMoves,
+          s.searchMs > 0 ? s.nodes * 1000 / s.searchMs : 0,
+          s.searches > 0 ? (double)s.depthSum / s.searches : 0.0, s.maxDepth,
+          s.searches > 0 ? s.searchMs / 1000.0 / s.searches : 0.0);
+      final long probes = Math.max(1, s.hashStats[BonanzaJNI.HASH_PROBES]);
+      line += String.format("%n  hash %dMB: %d%% hits, %d%% cutoffs, %.2f overwrites/probe",
+          s.hashStats[BonanzaJNI.HASH_SIZE_BYTES] >> 20,
+          s.hashStats[BonanzaJNI.HASH_HITS] * 100 / probes,
+          s.hashStats[BonanzaJNI.HASH_CUTOFFS] * 100 / probes,
+          (double)s.hashStats[BonanzaJNI.HASH_OVERWRITES] / probes);
+      System.out.println(line);
+      summary.println(line);
+    }
+    summary.close();
+    BonanzaJNI.deleteEngine(mB.engine);
+    return ok;
+  }
+
+  // Play a game and write its KIF file. Returns the summary line of the
+  // game, or null on an engine error.
+  private String playGame(int g, Start start, Side black, Side white) throws IOException {
+    BonanzaJNI.Result jr = new BonanzaJNI.Result();
+    Board board = new Board();
+    board.initialize(start.handicap);
+    for (Side s : new Side[]{black, white}) {
+      s.instanceId = BonanzaJNI.startGame(s.engine, 0, board, 0, s.difficulty,
+          s.threads, mTotalSecs, mPerMoveSecs, s.hashMb, jr);
+      if (jr.status != BonanzaJNI.R_OK) {
+        throw new AssertionError(String.format("startGame failed: %d %s", jr.status, jr.error));
+      }
+    }
+
+    ArrayList<Play> plays = new ArrayList<Play>();
+    Player player = Player.BLACK;
+    Outcome outcome = null;
+    String reason = null;
+    long[] nodes = new long[2];
+    long[] searchMs = new long[2];
+    int[] searches = new int[2];
+    final long gameStartMs = System.currentTimeMillis();
+
+    for (String csa : start.opening) {
+      for (Side s : new Side[]{black, white}) {
+        BonanzaJNI.humanMove(s.engine, s.instanceId, csa, jr);
+        if (jr.status != BonanzaJNI.R_OK) return null;
+      }
+      Play p = Play.fromCsaString(csa, player);
+      p.setTime(0, 0);
+      plays.add(p);
+      player = player.opponent();
+    }
+
+    while (outcome == null) {
+      if (plays.size() >= mMaxPlies) {
+        outcome = Outcome.DRAW;
+        reason = "max plies";
+        break;
+      }
+      final Side mover = (player == Player.BLACK) ? black : white;
+      final Side other = (player == Player.BLACK) ? white : black;
+      final long startMs = System.currentTimeMillis() - gameStartMs;
+      BonanzaJNI.computerMove(mover.engine, mover.instanceId, jr);
+      final long endMs = System.currentTimeMillis() - gameStartMs;
+      if (jr.searchNodes > 0) {
+        mover.searches++;
+        mover.nodes += jr.searchNodes;
+        mover.searchMs += jr.searchTimeMs;
+        mover.depthSum += jr.searchDepth;
+        mover.maxDepth = Math.max(mover.maxDepth, jr.searchDepth);
+        nodes[player.toIndex()] += jr.searchNodes;
+        searchMs[player.toIndex()] += jr.searchTimeMs;
+        searches[player.toIndex()]++;
+      } else if (jr.move != null) {
+        mover.bookMoves++;
+      }
+
+      final int status = jr.status;
+      if (jr.move != null) {
+        Play p = Play.fromCsaString(jr.move, player);
+        p.setTime(startMs, endMs);
+        plays.add(p);
+      }
+      switch (status) {
+        case BonanzaJNI.R_OK:
+          break;
+        case BonanzaJNI.R_CHECKMATE:
+          outcome = (player == Player.BLACK) ? Outcome.BLACK_WON : Outcome.WHITE_WON;
+          reason = "checkmate";
+          continue;
+        case BonanzaJNI.R_RESIGNED:
+        case BonanzaJNI.R_NO_VALID_MOVE:
+          outcome = (player == Player.BLACK) ? Outcome.WHITE_WON : Outcome.BLACK_WON;
+          reason = status == BonanzaJNI.R_RESIGNED ? "resigned" : "no legal move";
+          continue;
+        case BonanzaJNI.R_DRAW:
+          outcome = Outcome.DRAW;
+          reason = "repetition";
+          continue;
+        default:
+          System.err.println(String.format("game %d: computerMove: %d %s",
+              g + 1, status, jr.error));
+          return null;
+      }
+
+      BonanzaJNI.humanMove(other.engine, other.instanceId, jr.move, jr);
+      switch (jr.status) {
+        case BonanzaJNI.R_OK:
+          break;
+        case BonanzaJNI.R_DRAW:
+          outcome = Outcome.DRAW;
+          reason = "repetition";
+          break;
+        default:
+          System.err.println(String.format("game %d: humanMove: %d %s",
+              g + 1, jr.status, jr.error));
+          return null;
+      }
+      player = player.opponent();
+    }
+
+    black.addHashStats();
+    white.addHashStats();
+    if (outcome == Outcome.DRAW) {
+      black.draws++;
+      white.draws++;
+    } else {
+      Side winner = (outcome == Outcome.BLACK_WON) ? black : white;
+      Side loser = (winner == black) ? white : black;
+      winner.wins++;
+      loser.losses++;
+    }
+
+    TreeMap<String, String> attrs = new TreeMap<String, String>();
+    attrs.put(GameLog.ATTR_BLACK_PLAYER, "Bonanza " + black.label());
+    attrs.put(GameLog.ATTR_WHITE_PLAYER, "Bonanza " + white.label());
+    attrs.put(GameLog.ATTR_TITLE, String.format("MatchRunner game %d: %s", g + 1, start));
+    if (start.handicap != Handicap.NONE) {
+      attrs.put(GameLog.ATTR_HANDICAP, start.handicap.toJapaneseString());
+    }
+    GameLog log = GameLog.newLog(gameStartMs, attrs.entrySet(), plays, null);
+    FileOutputStream out = new FileOutputStream(
+        new File(mOutDir, String.format("game-%03d.kif", g + 1)));
+    log.toKif(out, "kif_utf8");
+
+    return String.format("%-20s %-10s %3d plies  black %s, white %s",
+        outcome == Outcome.DRAW ? "draw" :
+        (outcome == Outcome.BLACK_WON ? black : white).label() + " won",
+        "(" + reason + ")", plays.size(),
+        npsString(nodes[0], searchMs[0], searches[0]),
+        npsString(nodes[1], searchMs[1], searches[1]));
+  }
+
+  private static String npsString(long nodes, long ms, int searches) {
+    return String.format("%d nps %.2fs/move",
+        ms > 0 ? nodes * 1000 / ms : 0,
+        searches > 0 ? ms / 1000.0 / searches : 0.0);
+  }
+
+  private static String join(String[] moves) {
+    StringBuilder b = new StringBuilder();
+    for (String m : moves) {
+      if (b.length() > 0) b.append(' ');
+      b.append(m);
+    }
+    return b.length() > 0 ? b.toString() : "(start)";
+  }
+}
@@ -0,0 +1,135 @@
+package mobi.omegacentauri.shogi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Checks that GameReplay.seek() reaches the same positions as replaying a
+ * game from the start, for any mix of steps and checkpoint jumps. Runs on
+ * a desktop JVM; see benchmark/build.gradle.
+ *
+ *   java mobi.omegacentauri.shogi.ReplayCheck [-seeks N] [-seed N]
+ *
+ * Each game is checked with a complete PositionIndex, one with no
+ * checkpoints yet, and no index. Exits with status 1 on the first
+ * mismatch.
+ */
+public class ReplayCheck {
+  private static final int GAMES = 8;
+  private static final int PLIES = 160;
+
+  private int mSeeks = 2000;
+  private long mSeed = 12345;
+
+  public static void main(String[] args) {
+    ReplayCheck c = new ReplayCheck();
+    for (int i = 0; i < args.length; ++i) {
+      final String arg = args[i];
+      if (i + 1 >= args.length) usage(arg);
+      final String value = args[++i];
+      if (arg.equals("-seeks")) {
+        c.mSeeks = Integer.parseInt(value);
+      } else if (arg.equals("-seed")) {
+        c.mSeed = Long.parseLong(value);
+      } else {
+        usage(arg);
+      }
+    }
+    System.exit(c.run() ? 0 : 1);
+  }
+
+  private static void usage(String arg) {
+    System.err.println(arg + ": bad option. See ReplayCheck.java for usage.");
+    System.exit(2);
+  }
+
+  private boolean run() {
+    Random random = new Random(mSeed);
+    for (int g = 0; g < GAMES; ++g) {
+      GameLog log = randomGame(random);
+      byte[][] expected = snapshots(log);
+      PositionIndex built = new PositionIndex(log);
+      built.build();
+      PositionIndex empty = new PositionIndex(log);
+      PositionIndex[] indexes = { built, empty, null };
+      for (PositionIndex index : indexes) {
+        // Jump past a checkpoint, then step back onto it: the last play
+        // before the checkpoint has no undo record of the jump.
+        final int n = log.numPlays();
+        final int[] fixed = { Math.min(20, n), Math.min(PositionIndex.INTERVAL, n), 0, n };
+        GameReplay replay = new GameReplay(log, index);
+        for (int numPlays : fixed) {
+          if (!check(replay, numPlays, expected, g)) return false;
+        }
+        replay = new GameReplay(log, index);
+        for (int i = 0; i < mSeeks; ++i) {
+          final int step = random.nextInt(3) - 1;
+          final int numPlays = random.nextBoolean() ?
+              Math.max(0, Math.min(n, replay.numPlays() + step)) :
+              random.nextInt(n + 1);
+          if (!check(replay, numPlays, expected, g)) return false;
+        }
+      }
+      System.out.println(String.format("game %d: %d plies OK", g, log.numPlays()));
+    }
+    return true;
+  }
+
+  // Seek "replay" to "numPlays", and compare its board and previous board
+  // with "expected".
+  private static boolean check(GameReplay replay, int numPlays, byte[][] expected, int game) {
+    replay.seek(numPlays);
+    if (replay.numPlays() != numPlays || replay.plays().size() != numPlays ||
+        !Arrays.equals(snapshot(replay.board()), expected[numPlays])) {
+      System.out.println(String.format("game %d: wrong position at %d", game, numPlays));
+      return false;
+    }
+    if (!Arrays.equals(snapshot(replay.previousBoard()),
+                       expected[Math.max(0, numPlays - 1)])) {
+      System.out.println(String.format("game %d: wrong previous position at %d", game, numPlays));
+      return false;
+    }
+    return true;
+  }
+
+  private static byte[] snapshot(Board board) {
+    byte[] out = new byte[Board.SNAPSHOT_SIZE];
+    board.saveSnapshot(out, 0);
+    return out;
+  }
+
+  // expected[i] is the snapshot of the position after i plays of "log".
+  private static byte[][] snapshots(GameLog log) {
+    byte[][] expected = new byte[log.numPlays() + 1][];
+    Board board = new Board();
+    board.initialize(log.handicap());
+    Player player = Player.BLACK;
+    for (int i = 0; ; ++i) {
+      expected[i] = snapshot(board);
+      if (i == log.numPlays()) break;
+      board.applyPly(player, log.play(i));
+      player = player.opponent();
+    }
+    return expected;
+  }
+
+  // A game of random legal moves, with captures and drops.
+  private static GameLog randomGame(Random random) {
+    final int[] moves = new int[MoveGenerator.MAX_MOVES];
+    Board board = new Board();
+    board.initialize(Handicap.NONE);
+    Player player = Player.BLACK;
+    ArrayList<Play> plays = new ArrayList<Play>();
+    for (int i = 0; i < PLIES; ++i) {
+      final int n = MoveGenerator.generate(board, player, moves);
+      if (n == 0) break;
+      Play play = MoveGenerator.toPlay(moves[random.nextInt(n)]);
+      plays.add(play);
+      board.applyPly(player, play);
+      player = player.opponent();
+    }
+    return GameLog.newLog(0, new TreeMap<String, String>().entrySet(), plays, null);
+  }
+}